@@ -0,0 +1,69 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Immutable snapshot of one result column's metadata, captured once when the
+ * statement is prepared so the row loop never calls back into ResultSetMetaData.
+ */
+public class Column {
+    public final int index; // 1 based, as used by ResultSet
+    public final String name;
+    public final int type;
+    public final String typeName;
+    public final String className;
+    public final boolean isNullable;
+    public final boolean isSigned;
+    // string length, binary data length, max numeric precision
+    public final int precision;
+    // digits to the right of the decimal point, or 0 if not applicable
+    public final int scale;
+    public final boolean isAutoIncrement;
+
+    public Column(ResultSetMetaData metadata, int index) throws SQLException {
+        this.index = index;
+        this.name = metadata.getColumnName(index).intern();
+        this.type = metadata.getColumnType(index);
+        this.typeName = metadata.getColumnTypeName(index);
+        this.className = metadata.getColumnClassName(index);
+        // if nullability can't be determined, assume it is nullable
+        this.isNullable = metadata.isNullable(index) != ResultSetMetaData.columnNoNulls;
+        this.isSigned = metadata.isSigned(index);
+        this.precision = metadata.getPrecision(index);
+        this.scale = metadata.getScale(index);
+        this.isAutoIncrement = metadata.isAutoIncrement(index);
+    }
+
+    /**
+     * From the current row of DatabaseMetaData.getColumns. Signedness is not
+     * reported there, so numeric columns are taken as signed.
+     */
+    public Column(ResultSet columnsRow) throws SQLException {
+        this.index = columnsRow.getInt("ORDINAL_POSITION");
+        this.name = columnsRow.getString("COLUMN_NAME").intern();
+        this.type = columnsRow.getInt("DATA_TYPE");
+        this.typeName = columnsRow.getString("TYPE_NAME");
+        this.className = null;
+        this.isNullable = columnsRow.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+        this.isSigned = true;
+        this.precision = columnsRow.getInt("COLUMN_SIZE");
+        this.scale = columnsRow.getInt("DECIMAL_DIGITS");
+        this.isAutoIncrement = "YES".equals(columnsRow.getString("IS_AUTOINCREMENT"));
+    }
+
+    public static Column[] columns(ResultSetMetaData metadata) throws SQLException {
+        Column[] columns = new Column[metadata.getColumnCount()];
+        for (int col = 1; col <= columns.length; col++) {
+            columns[col - 1] = new Column(metadata, col);
+        }
+        return columns;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + name + " " + typeName + "/" + type;
+    }
+}
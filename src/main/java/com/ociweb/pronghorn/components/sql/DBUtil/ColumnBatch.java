@@ -0,0 +1,155 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Read side of the columnar batch mode (see JdbcSourceStage.setBatchRows): a
+ * view over one encoded batch that hands out each column as a primitive buffer
+ * on the batch bytes, nothing is copied. Call wrap() again for the next batch,
+ * views taken from the previous one are then invalid.
+ *
+ * A batch travels as one NamedByteArray message named BATCH_NAME. Layout, big
+ * endian, every section starting on an 8 byte boundary:
+ *
+ *   int rows, int columns
+ *   per column: int kind, int scale, int nullsOffset, int valuesOffset, int dataOffset
+ *   per column: null bitmap, one bit per row (bit row & 63 of long row >>> 6)
+ *               values, rows entries of the kind's width
+ *               BYTES and UTF8: values are rows + 1 int offsets into data
+ *
+ * Null entries hold 0 or an empty value. DECIMAL is the long mantissa with the
+ * column's scale in this batch, which may differ from batch to batch; dates and
+ * times are LONG milliseconds since the epoch.
+ */
+public class ColumnBatch {
+    public static final String BATCH_NAME = "**BATCH**";
+
+    public static final int INT = 1;
+    public static final int LONG = 2;
+    public static final int FLOAT = 3;
+    public static final int DOUBLE = 4;
+    public static final int BOOLEAN = 5; // one byte per row, 0 or 1
+    public static final int DECIMAL = 6;
+    public static final int BYTES = 7;
+    public static final int UTF8 = 8;
+
+    public static final int HEADER_SIZE = 8;
+    public static final int DIRECTORY_ENTRY_SIZE = 20;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    private ByteBuffer buffer;
+    private int rows;
+    private int columns;
+
+    public ColumnBatch wrap(byte[] bytes, int length) {
+        buffer = ByteBuffer.wrap(bytes, 0, length);
+        rows = buffer.getInt(0);
+        columns = buffer.getInt(4);
+        return this;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int kind(int col) {
+        return directory(col, 0);
+    }
+
+    public int scale(int col) {
+        return directory(col, 1);
+    }
+
+    public boolean isNull(int col, int row) {
+        long word = buffer.getLong(directory(col, 2) + ((row >>> 6) << 3));
+        return (word & (1L << (row & 63))) != 0;
+    }
+
+    /**
+     * The null bitmap as longs, so a consumer can skip 64 rows at a time.
+     */
+    public LongBuffer nulls(int col) {
+        return slice(directory(col, 2), bitmapSize(rows)).asLongBuffer();
+    }
+
+    public IntBuffer ints(int col) {
+        return slice(directory(col, 3), rows * 4).asIntBuffer();
+    }
+
+    /**
+     * LONG and DECIMAL columns.
+     */
+    public LongBuffer longs(int col) {
+        return slice(directory(col, 3), rows * 8).asLongBuffer();
+    }
+
+    public FloatBuffer floats(int col) {
+        return slice(directory(col, 3), rows * 4).asFloatBuffer();
+    }
+
+    public DoubleBuffer doubles(int col) {
+        return slice(directory(col, 3), rows * 8).asDoubleBuffer();
+    }
+
+    public ByteBuffer booleans(int col) {
+        return slice(directory(col, 3), rows);
+    }
+
+    /**
+     * BYTES and UTF8 columns: rows + 1 offsets into data(col), value row is
+     * offsets[row] until offsets[row + 1].
+     */
+    public IntBuffer offsets(int col) {
+        return slice(directory(col, 3), (rows + 1) * 4).asIntBuffer();
+    }
+
+    public ByteBuffer data(int col) {
+        int valuesOffset = directory(col, 3);
+        return slice(directory(col, 4), buffer.getInt(valuesOffset + rows * 4));
+    }
+
+    /**
+     * Convenience for UTF8 columns, allocates the String.
+     */
+    public String getString(int col, int row) {
+        if (isNull(col, row)) {
+            return null;
+        }
+        int valuesOffset = directory(col, 3);
+        int start = buffer.getInt(valuesOffset + row * 4);
+        int end = buffer.getInt(valuesOffset + row * 4 + 4);
+        return new String(buffer.array(), directory(col, 4) + start, end - start, UTF8_CHARSET);
+    }
+
+    private int directory(int col, int field) {
+        if (col < 0 || col >= columns) {
+            throw new IndexOutOfBoundsException("column " + col + " of " + columns);
+        }
+        return buffer.getInt(HEADER_SIZE + col * DIRECTORY_ENTRY_SIZE + field * 4);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    public static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    public static int bitmapSize(int rows) {
+        return ((rows + 63) >>> 6) << 3;
+    }
+}
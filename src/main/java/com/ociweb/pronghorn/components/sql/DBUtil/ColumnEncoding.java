@@ -0,0 +1,162 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Picks a wire encoding for each column of a typed/row mode template, from the
+ * column metadata and a sample of the first rows of the query:
+ *
+ * DELTA for integer and date/time columns that are auto increment or never
+ * decrease in the sample. The template field gets the FAST delta operator, so a
+ * FAST encoder sends the difference from the previous row; the pipe itself is
+ * unchanged.
+ *
+ * DICTIONARY for character columns with few distinct values in the sample. The
+ * column's field becomes a uInt32 code and the string goes in a companion
+ * column + "_DictValue" field only the first time it is seen, see
+ * UserColumnWriters.dictionaryWriter.
+ *
+ * A sample can only suggest: a DELTA column that later decreases still
+ * decodes correctly, the delta is just negative, and a dictionary that fills up
+ * falls back to sending the value.
+ */
+public class ColumnEncoding {
+    public static final int NONE = 0;
+    public static final int DELTA = 1;
+    public static final int DICTIONARY = 2;
+
+    public static final int DEFAULT_SAMPLE_ROWS = 1000;
+    // fewer sampled rows than this says too little about cardinality
+    private static final int MIN_DICTIONARY_SAMPLE = 16;
+    // at most one distinct value per this many sampled rows
+    private static final int DICTIONARY_RATIO = 8;
+
+    /**
+     * Runs sql, with parameters bound in order, limited to sampleRows rows and
+     * picks an encoding per column.
+     */
+    public static int[] choose(Connection conn, String sql, Column[] columns, int sampleRows, Object... parameters) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i + 1, parameters[i]);
+            }
+            return choose(stmt, columns, sampleRows);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Samples a statement whose parameters are already bound, e.g. a keyset
+     * query with its watermark. The statement's max rows is put back afterwards,
+     * so the same statement can then be handed to a stage.
+     */
+    public static int[] choose(PreparedStatement stmt, Column[] columns, int sampleRows) throws SQLException {
+        int maxRows = stmt.getMaxRows();
+        stmt.setMaxRows(sampleRows);
+        try {
+            ResultSet rs = stmt.executeQuery();
+            try {
+                return choose(columns, rs);
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.setMaxRows(maxRows);
+        }
+    }
+
+    /**
+     * Picks an encoding per column from the rows left in rs.
+     */
+    public static int[] choose(Column[] columns, ResultSet rs) throws SQLException {
+        int[] encodings = new int[columns.length];
+        long[] previous = new long[columns.length];
+        boolean[] seen = new boolean[columns.length];
+        @SuppressWarnings("unchecked")
+        Set<String>[] distinct = new Set[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (isDeltaCandidate(columns[i])) {
+                encodings[i] = DELTA;
+            } else if (isDictionaryCandidate(columns[i])) {
+                encodings[i] = DICTIONARY;
+                distinct[i] = new HashSet<String>();
+            }
+        }
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+            for (int i = 0; i < columns.length; i++) {
+                Column column = columns[i];
+                if (encodings[i] == DELTA && !column.isAutoIncrement) {
+                    long value = longValue(rs, column);
+                    if (rs.wasNull()) {
+                        continue;
+                    }
+                    if (seen[i] && value < previous[i]) {
+                        encodings[i] = NONE;
+                    }
+                    seen[i] = true;
+                    previous[i] = value;
+                } else if (encodings[i] == DICTIONARY) {
+                    String value = rs.getString(column.index);
+                    if (value != null) {
+                        distinct[i].add(value);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (encodings[i] == DICTIONARY && (rows < MIN_DICTIONARY_SAMPLE || distinct[i].size() * DICTIONARY_RATIO > rows)) {
+                encodings[i] = NONE;
+            }
+        }
+        return encodings;
+    }
+
+    private static long longValue(ResultSet rs, Column column) throws SQLException {
+        switch (column.type) {
+        case Types.DATE: // 91
+        case Types.TIME: // 92
+        case Types.TIMESTAMP: // 93
+            java.util.Date value = rs.getTimestamp(column.index);
+            return (value == null) ? 0 : value.getTime();
+        default:
+            return rs.getLong(column.index);
+        }
+    }
+
+    static boolean isDeltaCandidate(Column column) {
+        switch (column.type) {
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+        case Types.BIGINT: // -5
+        case Types.DATE: // 91
+        case Types.TIME: // 92
+        case Types.TIMESTAMP: // 93
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    static boolean isDictionaryCandidate(Column column) {
+        switch (column.type) {
+        case Types.CHAR: // 1
+        case Types.VARCHAR: // 12
+        case Types.NCHAR: // -15
+        case Types.NVARCHAR: // -9
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -7,9 +7,6 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Calendar;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -24,8 +21,9 @@ import org.xml.sax.SAXException;
 
 import com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageDefs;
 import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
-import com.ociweb.pronghorn.pipe.Pipe;
-import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+import com.ociweb.pronghorn.stage.scheduling.ThreadPerStageScheduler;
 
 public class DBTestUtil {
     // two hearts glyph (>0xFFFF): http://www.isthisthingon.org/unicode/index.phtml?glyph=1F495
@@ -35,24 +33,13 @@ public class DBTestUtil {
     
     public static FieldReferenceOffsetManager metaFROM = MetaMessageDefs.FROM;
     
-    public static List<Object> runTest(Runnable sqlStage, PronghornStage dumper) {
-        throw new UnsupportedOperationException("Must be rewriten to match.");
-//        try {
-//            ExecutorService service = Executors.newFixedThreadPool(2);
-//            service.submit(dumper);
-//            service.submit(sqlStage).get(); // submit for execution, and wait for termination
-//            dumper.stop();
-//
-//            service.shutdown();
-//            service.awaitTermination(1, TimeUnit.MINUTES);
-//        } catch (InterruptedException e) {
-//            // ignore
-//        } catch (ExecutionException e) {
-//            // ignore
-//        }
-//
-//        return dumper.result();
-//        return null;
+    public static List<Object> runTest(GraphManager gm, UserDumper dumper) {
+        // the source stage requests shutdown and publishes EOF when its result set is drained,
+        // the dumper shuts down when it reads that EOF
+        StageScheduler scheduler = new ThreadPerStageScheduler(gm);
+        scheduler.startup();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        return dumper.result();
     }
     
     
@@ -0,0 +1,92 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * How a source statement is prepared so the driver streams rows instead of
+ * materializing the whole result: cursor type and concurrency, the fetch size
+ * hint, and vendor session settings that bound the rows held in memory.
+ *
+ * The session settings apply to the whole connection, not just this statement.
+ * A setting the database rejects is logged as a warning and the statement is
+ * prepared with the vendor's default behaviour.
+ *
+ * H2 1.4.182, the version this project builds against, always materializes a
+ * result; the H2 policy only bounds how much of it stays on the heap. Streaming
+ * needs a newer H2 driver with "SET LAZY_QUERY_EXECUTION 1" as session SQL.
+ */
+public class FetchPolicy {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(FetchPolicy.class);
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    // driver defaults, what Stmt has always done
+    public static final FetchPolicy DEFAULT = new FetchPolicy(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, 0);
+    // rows beyond this are buffered on disk rather than on the heap; applies to
+    // the whole database and needs admin rights
+    public static final FetchPolicy H2 = new FetchPolicy(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, DEFAULT_FETCH_SIZE,
+                                                         "SET MAX_MEMORY_ROWS " + (10 * DEFAULT_FETCH_SIZE));
+    public static final FetchPolicy DERBY = new FetchPolicy(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, DEFAULT_FETCH_SIZE);
+    // rows beyond this are kept on disk rather than on the heap
+    public static final FetchPolicy HSQLDB = new FetchPolicy(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, DEFAULT_FETCH_SIZE,
+                                                             "SET SESSION RESULT MEMORY ROWS " + (10 * DEFAULT_FETCH_SIZE));
+    // a fetch size only limits buffering with a server cursor, so ask for one
+    public static final int SQLSERVER_SERVER_CURSOR_FORWARD_ONLY = 2004; // SQLServerResultSet.TYPE_SS_SERVER_CURSOR_FORWARD_ONLY
+    public static final FetchPolicy SQLSERVER = new FetchPolicy(SQLSERVER_SERVER_CURSOR_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, DEFAULT_FETCH_SIZE);
+
+    public final int resultSetType;
+    public final int resultSetConcurrency;
+    public final int fetchSize; // 0 leaves the driver default
+    private final String[] sessionSQL;
+
+    public FetchPolicy(int resultSetType, int resultSetConcurrency, int fetchSize, String... sessionSQL) {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("fetchSize must not be negative: " + fetchSize);
+        }
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.fetchSize = fetchSize;
+        this.sessionSQL = sessionSQL.clone();
+    }
+
+    public FetchPolicy withFetchSize(int fetchSize) {
+        return new FetchPolicy(resultSetType, resultSetConcurrency, fetchSize, sessionSQL);
+    }
+
+    public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        for (String setting : sessionSQL) {
+            applySessionSetting(conn, setting);
+        }
+        PreparedStatement stmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        if (fetchSize > 0) {
+            try {
+                stmt.setFetchSize(fetchSize);
+            } catch (SQLException e) {
+                stmt.close();
+                throw e;
+            }
+        }
+        return stmt;
+    }
+
+    private void applySessionSetting(Connection conn, String setting) {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.execute(setting);
+        } catch (SQLException e) {
+            logger.warn("FetchPolicy: '" + setting + "' failed, the result may be held in memory: " + e.getMessage());
+        } finally {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the decoded cells into a List<Object>, the form the tests check.
+ * This is the convenient adapter, not the fast one: every cell becomes an
+ * object.
+ */
+public class ListMetaVisitor implements MetaVisitor {
+
+    private final List<Object> output = new ArrayList<Object>();
+    private final ByteArrayOutputStream lobBytes = new ByteArrayOutputStream();
+    private final StringBuilder lobChars = new StringBuilder();
+    private boolean lobIsClob;
+
+    public List<Object> result() {
+        return output;
+    }
+
+    @Override
+    public void onSchemaColumn(int col, CharSequence name, int sqlType, int precision, int scale, boolean isNullable) {
+        // the names come back through onName on every row
+    }
+
+    @Override
+    public void onBeginGroup() {
+        output.add("**BEGIN GROUP**");
+    }
+
+    @Override
+    public void onEndGroup() {
+        output.add("**END GROUP**");
+    }
+
+    @Override
+    public void onName(int col, CharSequence name) {
+        output.add(name.toString());
+    }
+
+    @Override
+    public void onNull(int col) {
+        output.add(null);
+    }
+
+    @Override
+    public void onInt(int col, int value) {
+        output.add(value);
+    }
+
+    @Override
+    public void onLong(int col, long value) {
+        output.add(value);
+    }
+
+    @Override
+    public void onBoolean(int col, boolean value) {
+        output.add(value);
+    }
+
+    @Override
+    public void onFloat(int col, float value) {
+        output.add(value);
+    }
+
+    @Override
+    public void onDouble(int col, double value) {
+        output.add(value);
+    }
+
+    @Override
+    public void onDecimal(int col, int scale, long mantissa) {
+        output.add(BigDecimal.valueOf(mantissa, scale));
+    }
+
+    @Override
+    public void onASCII(int col, CharSequence value) {
+        output.add(value.toString());
+    }
+
+    @Override
+    public void onUTF8(int col, CharSequence value) {
+        output.add(value.toString());
+    }
+
+    @Override
+    public void onBytes(int col, byte[] value, int length) {
+        output.add(Arrays.copyOf(value, length));
+    }
+
+    @Override
+    public void onDateTime(int col, long millisecondsSinceEpoch) {
+        output.add(new java.util.Date(millisecondsSinceEpoch));
+    }
+
+    @Override
+    public void onTimestamp(int col, long millisecondsSinceEpoch, int nanos, int tzOffset) {
+        output.add(new java.util.Date(millisecondsSinceEpoch));
+        output.add(nanos);
+        output.add(tzOffset);
+    }
+
+    @Override
+    public void onSerialized(int col, byte[] value, int length) {
+        ByteArrayInputStream bis = new ByteArrayInputStream(value, 0, length);
+        ObjectInput in = null;
+        try {
+            in = new ObjectInputStream(bis);
+            output.add(in.readObject());
+        } catch (IOException e) {
+            throw new RuntimeException("deserialize column " + col, e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("deserialize column " + col, e);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ex) {
+                // ignore close exception
+            }
+        }
+    }
+
+    @Override
+    public void onLobBegin(int col, boolean isClob, long length) {
+        lobIsClob = isClob;
+        lobBytes.reset();
+        lobChars.setLength(0);
+    }
+
+    @Override
+    public void onLobBytes(int col, byte[] chunk, int length) {
+        lobBytes.write(chunk, 0, length);
+    }
+
+    @Override
+    public void onLobChars(int col, CharSequence chunk) {
+        lobChars.append(chunk);
+    }
+
+    @Override
+    public void onLobEnd(int col) {
+        output.add(lobIsClob ? lobChars.toString() : lobBytes.toByteArray());
+    }
+
+    /**
+     * Unpacks the batch row by row, so the output matches the cell messages
+     * without names. Dates and times come out as Long milliseconds.
+     */
+    @Override
+    public void onBatch(ColumnBatch batch) {
+        for (int row = 0; row < batch.rows(); row++) {
+            for (int col = 0; col < batch.columns(); col++) {
+                output.add(batch.isNull(col, row) ? null : batchValue(batch, col, row));
+            }
+        }
+    }
+
+    private static Object batchValue(ColumnBatch batch, int col, int row) {
+        switch (batch.kind(col)) {
+        case ColumnBatch.INT:
+            return batch.ints(col).get(row);
+        case ColumnBatch.LONG:
+            return batch.longs(col).get(row);
+        case ColumnBatch.FLOAT:
+            return batch.floats(col).get(row);
+        case ColumnBatch.DOUBLE:
+            return batch.doubles(col).get(row);
+        case ColumnBatch.BOOLEAN:
+            return batch.booleans(col).get(row) == 1;
+        case ColumnBatch.DECIMAL:
+            return BigDecimal.valueOf(batch.longs(col).get(row), batch.scale(col));
+        case ColumnBatch.UTF8:
+            return batch.getString(col, row);
+        case ColumnBatch.BYTES:
+            int start = batch.offsets(col).get(row);
+            byte[] value = new byte[batch.offsets(col).get(row + 1) - start];
+            ByteBuffer data = batch.data(col);
+            data.position(start);
+            data.get(value);
+            return value;
+        default:
+            throw new IllegalArgumentException("Unknown batch column kind " + batch.kind(col));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+
+/**
+ * Decodes the responses of a LookupStage or BatchLookupStage: a row as its
+ * CorrelationId followed by the columns, as RowDecoder gives them, and Done as
+ * "Done", CorrelationId, Rows, with "Failed" in place of "Done" when the query
+ * failed.
+ */
+public class LookupDecoder implements UserDumper.Decoder {
+    private final Column[] columns;
+    private final RowDecoder rows;
+
+    public LookupDecoder(Column[] columns) {
+        this.columns = columns;
+        this.rows = new RowDecoder(columns);
+    }
+
+    @Override
+    public boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception {
+        FieldReferenceOffsetManager FROM = Pipe.from(ring);
+        if (templateID == TemplateGenerator.ROW_TEMPLATE_ID) {
+            int loc = lookupTemplateLocator(TemplateGenerator.ROW_TEMPLATE_NAME, FROM);
+            output.add(PipeReader.readLong(ring, lookupFieldLocator(TemplateGenerator.CORRELATION_FIELD, loc, FROM)));
+            return rows.decode(ring, templateID, output);
+        }
+        int loc = lookupTemplateLocator(TemplateGenerator.DONE_TEMPLATE_NAME, FROM);
+        boolean failed = PipeReader.readInt(ring, lookupFieldLocator(TemplateGenerator.DONE_FAILED_FIELD, loc, FROM)) != 0;
+        output.add(failed ? TemplateGenerator.DONE_FAILED_FIELD : TemplateGenerator.DONE_TEMPLATE_NAME);
+        output.add(PipeReader.readLong(ring, lookupFieldLocator(TemplateGenerator.CORRELATION_FIELD, loc, FROM)));
+        output.add(PipeReader.readInt(ring, lookupFieldLocator(TemplateGenerator.DONE_ROWS_FIELD, loc, FROM)));
+        return true;
+    }
+
+    /**
+     * The part of a decoded result for one correlation ID, as batches
+     * interleave the requests: the column values of its rows, then "Done" or
+     * "Failed", the correlation ID and the row count.
+     */
+    public List<Object> request(List<Object> result, long correlationId) {
+        List<Object> request = new ArrayList<Object>();
+        int i = 0;
+        while (i < result.size()) {
+            Object first = result.get(i);
+            if (TemplateGenerator.DONE_TEMPLATE_NAME.equals(first) || TemplateGenerator.DONE_FAILED_FIELD.equals(first)) {
+                if (result.get(i + 1).equals(correlationId)) {
+                    request.addAll(result.subList(i, i + 3));
+                }
+                i += 3;
+            } else {
+                if (first.equals(correlationId)) {
+                    request.addAll(result.subList(i + 1, i + 1 + columns.length));
+                }
+                i += 1 + columns.length;
+            }
+        }
+        return request;
+    }
+}
@@ -0,0 +1,71 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Writes the requests for a LookupStage or BatchLookupStage, one value per
+ * field of the Lookup template, then EOF. Values are Long, Integer or String.
+ */
+public class LookupRequests extends PronghornStage {
+
+    /**
+     * A Lookup template with an int64 RequestId and an int32 Id key.
+     */
+    public static final String KEY_REQUEST_XML =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<templates xmlns=\"http://www.fixprotocol.org/ns/fast/td/1.1\">\n" +
+        "<template name=\"Lookup\" id=\"1\">\n" +
+        "\t<int64 name=\"RequestId\" id=\"1\"/>\n" +
+        "\t<int32 name=\"Id\" id=\"2\"/>\n" +
+        "</template>\n" +
+        "</templates>\n";
+
+    private final Pipe ring;
+    private final String[] fields;
+    private final Object[][] requests;
+    private final int loc;
+    private int next = 0;
+
+    public LookupRequests(GraphManager gm, Pipe ring, String[] fields, Object[][] requests) {
+        super(gm, NONE, ring);
+        this.ring = ring;
+        this.fields = fields;
+        this.requests = requests;
+        this.loc = lookupTemplateLocator("Lookup", Pipe.from(ring));
+    }
+
+    @Override
+    public void run() {
+        FieldReferenceOffsetManager FROM = Pipe.from(ring);
+        while (next < requests.length && PipeWriter.tryWriteFragment(ring, loc)) {
+            for (int i = 0; i < fields.length; i++) {
+                int fieldLoc = lookupFieldLocator(fields[i], loc, FROM);
+                Object value = requests[next][i];
+                if (value instanceof Long) {
+                    PipeWriter.writeLong(ring, fieldLoc, (Long) value);
+                } else if (value instanceof Integer) {
+                    PipeWriter.writeInt(ring, fieldLoc, (Integer) value);
+                } else {
+                    PipeWriter.writeUTF8(ring, fieldLoc, (String) value);
+                }
+            }
+            PipeWriter.publishWrites(ring);
+            next++;
+        }
+        if (next == requests.length) {
+            requestShutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        PipeWriter.publishEOF(ring);
+    }
+}
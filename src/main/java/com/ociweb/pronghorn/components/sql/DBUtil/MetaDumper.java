@@ -1,566 +1,534 @@
 package com.ociweb.pronghorn.components.sql.DBUtil;
 
 import com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageDefs;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ChunkedColumnWriter;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.JdbcSourceStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.PrimitiveMetaMessageWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.math.BigDecimal;
 import java.util.List;
 
 public class MetaDumper extends UserDumper {
-    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MetaDumper.class);
+    private final ListMetaVisitor list;
 
+    /**
+     * Collects the cells into result(), see ListMetaVisitor.
+     */
     public MetaDumper(GraphManager gm, Pipe ring) {
-        super(gm, ring, new MetaDecoder());
+        this(gm, ring, new ListMetaVisitor());
+    }
+
+    private MetaDumper(GraphManager gm, Pipe ring, ListMetaVisitor list) {
+        super(gm, ring, new MetaDecoder(list));
+        this.list = list;
+    }
+
+    /**
+     * Hands each cell to visitor without allocating; result() stays empty.
+     */
+    public MetaDumper(GraphManager gm, Pipe ring, MetaVisitor visitor) {
+        super(gm, ring, new MetaDecoder(visitor));
+        this.list = null;
+    }
+
+    @Override
+    public List<Object> result() {
+        return (list != null) ? list.result() : super.result();
     }
 }
 
 
-class MetaDecoder implements UserDumper.Decoder {
-        public boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception {
-            switch (templateID) {
-            case 128: // UInt32
-            {
-                int value = PipeReader.readInt(ring, MetaMessageDefs.UINT32_VALUE_LOC);
-                output.add(value);
-                return true;
-            }
-            case 130: // Int32
-            {
-                int value = PipeReader.readInt(ring, MetaMessageDefs.INT32_VALUE_LOC);
-                output.add(value);
-                return true;
-            }
-            case 134: // Int64
-            {
-                long value = PipeReader.readLong(ring, MetaMessageDefs.INT64_VALUE_LOC);
-                output.add(value);
-                return true;
-            }
-            case 136: // ASCII 
-            { 
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.ASCII_VALUE_LOC, sb);
-                output.add(sb.toString()); 
-                return true; 
-            }
-             case 138: // UTF8 
-             { 
-                 StringBuffer sb = new StringBuffer();
-                 PipeReader.readUTF8(ring, MetaMessageDefs.UTF8_VALUE_LOC, sb);
-                 output.add(sb.toString()); 
-                 return true; 
-             }
-            case 140: // Decimal
-            {
-                int exponent = PipeReader.readDecimalExponent(ring, MetaMessageDefs.DECIMAL_VALUE_LOC);
-                long mantissa = PipeReader.readDecimalMantissa(ring, MetaMessageDefs.DECIMAL_VALUE_LOC);
-                output.add(BigDecimal.valueOf(mantissa, exponent));
-                return true;
-            }
-            case 142: // ByteArray
-            {
-                // byte[] bytes = new byte[ring.maxAvgVarLen];
-                int len = PipeReader.readDataLength(ring, MetaMessageDefs.BYTEARRAY_VALUE_LOC);
-                byte[] value = new byte[len];
-                PipeReader.readBytes(ring, MetaMessageDefs.BYTEARRAY_VALUE_LOC, value, 0);
-                output.add(value);
-                return true;
-            }
-            case 144: // BeginGroup
-            {
-                output.add("**BEGIN GROUP**");
-                return true;
-            }
-            case 146: // EndGroup
-            {
-                output.add("**END GROUP**");
-                return true;
-            }
-            case 166: // Boolean
-            {
-                int value = PipeReader.readInt(ring, MetaMessageDefs.BOOLEAN_VALUE_LOC);
-                output.add(value == 1);
-                return true;
-            }
-            case 168: // Float
-            {
-                int bits = PipeReader.readInt(ring, MetaMessageDefs.FLOAT_VALUE_LOC);
-                float value = Float.intBitsToFloat(bits);
-                output.add(value);
-                return true;
-            }
-            case 170: // Double
-            {
-                long bits = PipeReader.readLong(ring, MetaMessageDefs.DOUBLE_VALUE_LOC);
-                double value = Double.longBitsToDouble(bits);
-                output.add(value);
-                return true;
-            }
-            case 172: // DateTime
-            {
-                long millisecondsSinceEpoch = PipeReader.readLong(ring, MetaMessageDefs.DATETIME_VALUE_LOC);
-                java.util.Date value = new java.util.Date(millisecondsSinceEpoch);
-                output.add(value);
-                return true;
-            }
-            case 174: // SerializedJavaObject
-            {
-                Object value = null;
-                int len = PipeReader.readDataLength(ring, MetaMessageDefs.SERIALIZEDJAVAOBJECT_VALUE_LOC);
-                byte[] bytes = new byte[len];
-                PipeReader.readBytes(ring, MetaMessageDefs.SERIALIZEDJAVAOBJECT_VALUE_LOC, bytes, 0);
-                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                ObjectInput in = null;
-                try {
-                    in = new ObjectInputStream(bis);
-                    value = in.readObject();
-                } finally {
-                    try {
-                        if (in != null)
-                            in.close();
-                    } catch (IOException ex) {
-                        // ignore close exception
-                    }
-                    try {
-                        bis.close();
-                    } catch (IOException ex) {
-                        // ignore close exception
-                    }
+/**
+ * Decodes meta messages into MetaVisitor calls. Each template gets a handler
+ * with its field LOCs bound when the decoder is built, stored in a table
+ * indexed by message LOC, so a message costs one array load and one call
+ * instead of a walk through a switch on the template ID. A new template is one
+ * more register() line.
+ */
+class MetaDecoder implements UserDumper.LocDecoder {
+
+        private abstract class Handler {
+            abstract void decode(Pipe ring);
+        }
+
+        private static final int NO_NAME = -1;
+
+        private static final int UTF8 = PrimitiveMetaMessageWriter.lookupTemplateLocator(138);
+        private static final int BYTEARRAY = PrimitiveMetaMessageWriter.lookupTemplateLocator(142);
+        private static final int NAMEDUINT32 = PrimitiveMetaMessageWriter.lookupTemplateLocator(192);
+        private static final int NAMEDINT64 = PrimitiveMetaMessageWriter.lookupTemplateLocator(198);
+        private static final int NAMEDUTF8 = PrimitiveMetaMessageWriter.lookupTemplateLocator(202);
+        private static final int NAMEDBYTEARRAY = PrimitiveMetaMessageWriter.lookupTemplateLocator(206);
+
+        private final MetaVisitor visitor;
+        private final Handler[] handlers = new Handler[MetaMessageDefs.FROM.fieldIdScript.length];
 
+        // reused for every cell, handed to the visitor as views
+        private final StringBuilder name = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+        private byte[] bytes = new byte[64];
+
+        private int col = 0;
+
+        // filled from the schema header, if the stage sent one
+        private String[] names = null;
+        private int headerRemaining = 0;
+        private int headerType;
+        private int headerPrecision;
+        private int headerScale;
+
+        // a chunked LOB in progress, see ChunkedColumnWriter
+        private boolean inLob = false;
+        private long lobRemaining;
+
+        private final ColumnBatch batch = new ColumnBatch();
+
+        MetaDecoder(MetaVisitor visitor) {
+            this.visitor = visitor;
+
+            register(128, new IntValue(NO_NAME, MetaMessageDefs.UINT32_VALUE_LOC));
+            register(130, new IntValue(NO_NAME, MetaMessageDefs.INT32_VALUE_LOC));
+            register(134, new LongValue(NO_NAME, MetaMessageDefs.INT64_VALUE_LOC));
+            register(136, new ASCIIValue(NO_NAME, MetaMessageDefs.ASCII_VALUE_LOC));
+            register(138, new UTF8Value(NO_NAME, MetaMessageDefs.UTF8_VALUE_LOC));
+            register(140, new DecimalValue(NO_NAME, MetaMessageDefs.DECIMAL_VALUE_LOC));
+            register(142, new BytesValue(NO_NAME, MetaMessageDefs.BYTEARRAY_VALUE_LOC));
+            register(144, new Handler() {
+                void decode(Pipe ring) {
+                    visitor.onBeginGroup();
+                    col = 0;
                 }
+            });
+            register(146, new Handler() {
+                void decode(Pipe ring) {
+                    visitor.onEndGroup();
+                }
+            });
+            register(166, new BooleanValue(NO_NAME, MetaMessageDefs.BOOLEAN_VALUE_LOC));
+            register(168, new FloatValue(NO_NAME, MetaMessageDefs.FLOAT_VALUE_LOC));
+            register(170, new DoubleValue(NO_NAME, MetaMessageDefs.DOUBLE_VALUE_LOC));
+            register(172, new DateTimeValue(NO_NAME, MetaMessageDefs.DATETIME_VALUE_LOC));
+            register(174, new SerializedValue(NO_NAME, MetaMessageDefs.SERIALIZEDJAVAOBJECT_VALUE_LOC));
+            register(176, new TimestampValue(NO_NAME, MetaMessageDefs.TIMESTAMP_DATETIME_LOC, MetaMessageDefs.TIMESTAMP_NANOS_LOC, MetaMessageDefs.TIMESTAMP_TZOFFSET_LOC));
 
-                output.add(value);
-                return true;
-            }
-            case 176: // Timestamp
-            {
-                long millisecondsSinceEpoch = PipeReader.readLong(ring, MetaMessageDefs.TIMESTAMP_DATETIME_LOC);
-                java.util.Date value = new java.util.Date(millisecondsSinceEpoch);
-                output.add(value);
-                output.add(PipeReader.readInt(ring, MetaMessageDefs.TIMESTAMP_NANOS_LOC));
-                output.add(PipeReader.readInt(ring, MetaMessageDefs.TIMESTAMP_TZOFFSET_LOC));
-                return true;
-            }
-            case 192: // NamedUInt32
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDUINT32_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                int value = PipeReader.readInt(ring, MetaMessageDefs.NAMEDUINT32_VALUE_LOC);
-                output.add(value);
-                return true;
-            }
-            case 194: // NamedInt32
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDINT32_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                int value = PipeReader.readInt(ring, MetaMessageDefs.NAMEDINT32_VALUE_LOC);
-                output.add(value);
-                return true;
+            register(192, new IntValue(MetaMessageDefs.NAMEDUINT32_NAME_LOC, MetaMessageDefs.NAMEDUINT32_VALUE_LOC));
+            register(194, new IntValue(MetaMessageDefs.NAMEDINT32_NAME_LOC, MetaMessageDefs.NAMEDINT32_VALUE_LOC));
+            register(198, new LongValue(MetaMessageDefs.NAMEDINT64_NAME_LOC, MetaMessageDefs.NAMEDINT64_VALUE_LOC));
+            register(200, new ASCIIValue(MetaMessageDefs.NAMEDASCII_NAME_LOC, MetaMessageDefs.NAMEDASCII_VALUE_LOC));
+            register(202, new UTF8Value(MetaMessageDefs.NAMEDUTF8_NAME_LOC, MetaMessageDefs.NAMEDUTF8_VALUE_LOC));
+            register(204, new DecimalValue(MetaMessageDefs.NAMEDDECIMAL_NAME_LOC, MetaMessageDefs.NAMEDDECIMAL_VALUE_LOC));
+            register(206, new BytesValue(MetaMessageDefs.NAMEDBYTEARRAY_NAME_LOC, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC));
+            register(230, new BooleanValue(MetaMessageDefs.NAMEDBOOLEAN_NAME_LOC, MetaMessageDefs.NAMEDBOOLEAN_VALUE_LOC));
+            register(232, new FloatValue(MetaMessageDefs.NAMEDFLOAT_NAME_LOC, MetaMessageDefs.NAMEDFLOAT_VALUE_LOC));
+            register(234, new DoubleValue(MetaMessageDefs.NAMEDDOUBLE_NAME_LOC, MetaMessageDefs.NAMEDDOUBLE_VALUE_LOC));
+            register(236, new DateTimeValue(MetaMessageDefs.NAMEDDATETIME_NAME_LOC, MetaMessageDefs.NAMEDDATETIME_VALUE_LOC));
+            register(238, new SerializedValue(MetaMessageDefs.NAMEDSERIALIZEDJAVAOBJECT_NAME_LOC, MetaMessageDefs.NAMEDSERIALIZEDJAVAOBJECT_VALUE_LOC));
+            register(240, new TimestampValue(MetaMessageDefs.NAMEDTIMESTAMP_NAME_LOC, MetaMessageDefs.NAMEDTIMESTAMP_DATETIME_LOC, MetaMessageDefs.NAMEDTIMESTAMP_NANOS_LOC, MetaMessageDefs.NAMEDTIMESTAMP_TZOFFSET_LOC));
+
+            register(384, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEUINT32_NOTNULL_LOC));
+            register(386, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEINT32_NOTNULL_LOC));
+            register(390, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEINT64_NOTNULL_LOC));
+            register(392, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEASCII_NOTNULL_LOC));
+            register(394, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEUTF8_NOTNULL_LOC));
+            register(396, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEDECIMAL_NOTNULL_LOC));
+            register(398, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEBYTEARRAY_NOTNULL_LOC));
+            register(423, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEBOOLEAN_NOTNULL_LOC));
+            register(425, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEFLOAT_NOTNULL_LOC));
+            register(427, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEDOUBLE_NOTNULL_LOC));
+            register(429, new NullValue(NO_NAME, MetaMessageDefs.NULLABLEDATETIME_NOTNULL_LOC));
+            register(431, new NullValue(NO_NAME, MetaMessageDefs.NULLABLESERIALIZEDJAVAOBJECT_NOTNULL_LOC));
+            register(433, new NullValue(NO_NAME, MetaMessageDefs.NULLABLETIMESTAMP_NOTNULL_LOC));
+
+            register(448, new NullValue(MetaMessageDefs.NAMEDNULLABLEUINT32_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEUINT32_NOTNULL_LOC));
+            register(450, new NullValue(MetaMessageDefs.NAMEDNULLABLEINT32_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEINT32_NOTNULL_LOC));
+            register(454, new NullValue(MetaMessageDefs.NAMEDNULLABLEINT64_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEINT64_NOTNULL_LOC));
+            register(456, new NullValue(MetaMessageDefs.NAMEDNULLABLEASCII_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEASCII_NOTNULL_LOC));
+            register(458, new NullValue(MetaMessageDefs.NAMEDNULLABLEUTF8_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEUTF8_NOTNULL_LOC));
+            register(460, new NullValue(MetaMessageDefs.NAMEDNULLABLEDECIMAL_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEDECIMAL_NOTNULL_LOC));
+            register(462, new NullValue(MetaMessageDefs.NAMEDNULLABLEBYTEARRAY_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEBYTEARRAY_NOTNULL_LOC));
+            register(487, new NullValue(MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NOTNULL_LOC));
+            register(489, new NullValue(MetaMessageDefs.NAMEDNULLABLEFLOAT_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEFLOAT_NOTNULL_LOC));
+            register(491, new NullValue(MetaMessageDefs.NAMEDNULLABLEDOUBLE_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEDOUBLE_NOTNULL_LOC));
+            register(493, new NullValue(MetaMessageDefs.NAMEDNULLABLEDATETIME_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEDATETIME_NOTNULL_LOC));
+            register(495, new NullValue(MetaMessageDefs.NAMEDNULLABLESERIALIZEDJAVAOBJECT_NAME_LOC, MetaMessageDefs.NAMEDNULLABLESERIALIZEDJAVAOBJECT_NOTNULL_LOC));
+            register(497, new NullValue(MetaMessageDefs.NAMEDNULLABLETIMESTAMP_NAME_LOC, MetaMessageDefs.NAMEDNULLABLETIMESTAMP_NOTNULL_LOC));
+        }
+
+        private void register(long templateID, Handler handler) {
+            handlers[PrimitiveMetaMessageWriter.lookupTemplateLocator(templateID)] = handler;
+        }
+
+        public boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception {
+            return decodeLoc(ring, PrimitiveMetaMessageWriter.lookupTemplateLocator(templateID), output);
+        }
+
+        public boolean decodeLoc(Pipe ring, int msgLoc, List<Object> output) throws Exception {
+            if (headerRemaining > 0) {
+                decodeHeader(ring);
+                return true;
+            }
+            if (inLob) {
+                return decodeLobChunk(ring, msgLoc);
+            }
+            if (msgLoc == NAMEDINT64) { // may open a chunked LOB
+                readName(ring, MetaMessageDefs.NAMEDINT64_NAME_LOC);
+                boolean isBlob = ChunkedColumnWriter.BLOB_HEADER_NAME.contentEquals(name);
+                if (isBlob || ChunkedColumnWriter.CLOB_HEADER_NAME.contentEquals(name)) {
+                    inLob = true;
+                    lobRemaining = PipeReader.readLong(ring, MetaMessageDefs.NAMEDINT64_VALUE_LOC);
+                    if (names != null) {
+                        visitor.onName(col, names[col]);
+                    }
+                    visitor.onLobBegin(col, !isBlob, lobRemaining);
+                    return true;
+                }
+            } else if (msgLoc == NAMEDBYTEARRAY) { // may be a columnar batch
+                readName(ring, MetaMessageDefs.NAMEDBYTEARRAY_NAME_LOC);
+                if (ColumnBatch.BATCH_NAME.contentEquals(name)) {
+                    int length = readBytes(ring, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC);
+                    visitor.onBatch(batch.wrap(bytes, length));
+                    return true;
+                }
+            } else if (msgLoc == NAMEDUINT32 && names == null) { // may open a schema header
+                readName(ring, MetaMessageDefs.NAMEDUINT32_NAME_LOC);
+                if (JdbcSourceStage.SCHEMA_HEADER_NAME.contentEquals(name)) {
+                    names = new String[PipeReader.readInt(ring, MetaMessageDefs.NAMEDUINT32_VALUE_LOC)];
+                    headerRemaining = names.length * 4;
+                    return true;
+                }
             }
-            case 198: // NamedInt64
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDINT64_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                long value = PipeReader.readLong(ring, MetaMessageDefs.NAMEDINT64_VALUE_LOC);
-                output.add(value);
-                return true;
+            Handler handler = (msgLoc < handlers.length) ? handlers[msgLoc] : null;
+            if (handler == null) {
+                return false;
             }
-            case 200: // NamedASCII
-            { 
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDASCII_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDASCII_VALUE_LOC, sb);
-                output.add(sb.toString()); 
-                return true; 
-            }
-            case 202: // NamedUTF8 
-            { 
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDUTF8_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                sb = new StringBuffer();
-                PipeReader.readUTF8(ring, MetaMessageDefs.NAMEDUTF8_VALUE_LOC, sb);
-                output.add(sb.toString()); 
-                return true; 
-            }
-            case 204: // NamedDecimal
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDDECIMAL_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                int exponent = PipeReader.readDecimalExponent(ring, MetaMessageDefs.NAMEDDECIMAL_VALUE_LOC);
-                long mantissa = PipeReader.readDecimalMantissa(ring, MetaMessageDefs.NAMEDDECIMAL_VALUE_LOC);
-                output.add(BigDecimal.valueOf(mantissa, exponent));
-                return true;
+            handler.decode(ring);
+            return true;
+        }
+
+        private void nextCol() {
+            col++;
+            if (names != null && col == names.length) {
+                col = 0;
             }
-            case 206: // NamedByteArray
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDDECIMAL_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                // byte[] bytes = new byte[ring.maxAvgVarLen];
-                int len = PipeReader.readDataLength(ring, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC);
-                byte[] value = new byte[len];
-                PipeReader.readBytes(ring, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC, value, 0);
-                output.add(value);
-                return true;
+        }
+
+        private void readName(Pipe ring, int loc) {
+            name.setLength(0);
+            PipeReader.readASCII(ring, loc, name);
+        }
+
+        /**
+         * Called by a handler only once it knows the message carries a cell, so a
+         * NOTNULL=1 marker ahead of its value does not name the column twice.
+         */
+        private void named(Pipe ring, int nameLoc) {
+            if (nameLoc != NO_NAME) {
+                readName(ring, nameLoc);
+                visitor.onName(col, name);
+            } else if (names != null) {
+                // positional cell, put the name back as the named messages would have
+                visitor.onName(col, names[col]);
             }
-            case 230: // NamedBoolean
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDBOOLEAN_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                int value = PipeReader.readInt(ring, MetaMessageDefs.NAMEDBOOLEAN_VALUE_LOC);
-                output.add(value == 1);
-                return true;
+        }
+
+        private CharSequence readASCII(Pipe ring, int loc) {
+            text.setLength(0);
+            PipeReader.readASCII(ring, loc, text);
+            return text;
+        }
+
+        private CharSequence readUTF8(Pipe ring, int loc) {
+            text.setLength(0);
+            PipeReader.readUTF8(ring, loc, text);
+            return text;
+        }
+
+        private int readBytes(Pipe ring, int loc) {
+            int length = PipeReader.readDataLength(ring, loc);
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
             }
-            case 232: // NamedFloat
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDFLOAT_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                int bits = PipeReader.readInt(ring, MetaMessageDefs.NAMEDFLOAT_VALUE_LOC);
-                float value = Float.intBitsToFloat(bits);
-                output.add(value);
-                return true;
+            PipeReader.readBytes(ring, loc, bytes, 0);
+            return length;
+        }
+
+        /**
+         * 4 messages per column: NamedInt32 (name, type), UInt32 precision, Int32
+         * scale, Boolean nullable.
+         */
+        private void decodeHeader(Pipe ring) {
+            int message = names.length * 4 - headerRemaining--;
+            int column = message / 4;
+            switch (message % 4) {
+            case 0:
+                readName(ring, MetaMessageDefs.NAMEDINT32_NAME_LOC);
+                names[column] = name.toString();
+                headerType = PipeReader.readInt(ring, MetaMessageDefs.NAMEDINT32_VALUE_LOC);
+                break;
+            case 1:
+                headerPrecision = PipeReader.readInt(ring, MetaMessageDefs.UINT32_VALUE_LOC);
+                break;
+            case 2:
+                headerScale = PipeReader.readInt(ring, MetaMessageDefs.INT32_VALUE_LOC);
+                break;
+            default:
+                boolean isNullable = PipeReader.readInt(ring, MetaMessageDefs.BOOLEAN_VALUE_LOC) == 1;
+                visitor.onSchemaColumn(column, names[column], headerType, headerPrecision, headerScale, isNullable);
+                break;
             }
-            case 234: // NamedDouble
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDDOUBLE_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                long bits = PipeReader.readLong(ring, MetaMessageDefs.NAMEDDOUBLE_VALUE_LOC);
-                double value = Double.longBitsToDouble(bits);
-                output.add(value);
-                return true;
+        }
+
+        private boolean decodeLobChunk(Pipe ring, int msgLoc) {
+            if (msgLoc == NAMEDBYTEARRAY) {
+                named(ring, MetaMessageDefs.NAMEDBYTEARRAY_NAME_LOC);
+                lobRemaining -= lobBytes(ring, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC);
+            } else if (msgLoc == BYTEARRAY) {
+                lobRemaining -= lobBytes(ring, MetaMessageDefs.BYTEARRAY_VALUE_LOC);
+            } else if (msgLoc == NAMEDUTF8) {
+                named(ring, MetaMessageDefs.NAMEDUTF8_NAME_LOC);
+                lobRemaining -= lobChars(ring, MetaMessageDefs.NAMEDUTF8_VALUE_LOC);
+            } else if (msgLoc == UTF8) {
+                lobRemaining -= lobChars(ring, MetaMessageDefs.UTF8_VALUE_LOC);
+            } else {
+                return false;
             }
-            case 236: // NamedDateTime
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDDATETIME_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                long millisecondsSinceEpoch = PipeReader.readLong(ring, MetaMessageDefs.NAMEDDATETIME_VALUE_LOC);
-                java.util.Date value = new java.util.Date(millisecondsSinceEpoch);
-                output.add(value);
-                return true;
+            if (lobRemaining <= 0) {
+                inLob = false;
+                visitor.onLobEnd(col);
+                nextCol();
             }
-            case 238: // NamedSerializedJavaObject
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDSERIALIZEDJAVAOBJECT_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                Object value = null;
-                int len = PipeReader.readDataLength(ring, MetaMessageDefs.NAMEDSERIALIZEDJAVAOBJECT_VALUE_LOC);
-                byte[] bytes = new byte[len];
-                PipeReader.readBytes(ring, MetaMessageDefs.NAMEDSERIALIZEDJAVAOBJECT_VALUE_LOC, bytes, 0);
-                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                ObjectInput in = null;
-                try {
-                    in = new ObjectInputStream(bis);
-                    value = in.readObject();
-                } finally {
-                    try {
-                        if (in != null)
-                            in.close();
-                    } catch (IOException ex) {
-                        // ignore close exception
-                    }
-                    try {
-                        bis.close();
-                    } catch (IOException ex) {
-                        // ignore close exception
-                    }
+            return true;
+        }
 
-                }
+        private int lobBytes(Pipe ring, int loc) {
+            int length = readBytes(ring, loc);
+            visitor.onLobBytes(col, bytes, length);
+            return length;
+        }
 
-                output.add(value);
-                return true;
-            }
-            case 240: // NamedTimestamp
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDTIMESTAMP_NAME_LOC, sb);
-                String s = sb.toString();
-                output.add(s);
-                long millisecondsSinceEpoch = PipeReader.readLong(ring, MetaMessageDefs.NAMEDTIMESTAMP_DATETIME_LOC);
-                java.util.Date value = new java.util.Date(millisecondsSinceEpoch);
-                output.add(value);
-                output.add(PipeReader.readInt(ring, MetaMessageDefs.NAMEDTIMESTAMP_NANOS_LOC));
-                output.add(PipeReader.readInt(ring, MetaMessageDefs.NAMEDTIMESTAMP_TZOFFSET_LOC));
-                return true;
+        private int lobChars(Pipe ring, int loc) {
+            CharSequence chunk = readUTF8(ring, loc);
+            visitor.onLobChars(col, chunk);
+            return chunk.length();
+        }
+
+        private class IntValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            IntValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 384: // NullableUInt32
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEUINT32_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onInt(col, PipeReader.readInt(ring, valueLoc));
+                nextCol();
             }
-            case 386: // NullableInt32
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEINT32_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class LongValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            LongValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 390: // NullableInt64
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEINT64_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onLong(col, PipeReader.readLong(ring, valueLoc));
+                nextCol();
             }
-            case 392: // NullableASCII
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEASCII_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class BooleanValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            BooleanValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 394: // NullableUTF8
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEUTF8_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onBoolean(col, PipeReader.readInt(ring, valueLoc) == 1);
+                nextCol();
             }
-            case 396: // NullableDecimal
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEDECIMAL_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class FloatValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            FloatValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 398: // NullableByteArray
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEBYTEARRAY_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onFloat(col, Float.intBitsToFloat(PipeReader.readInt(ring, valueLoc)));
+                nextCol();
             }
-            case 423: // NullableBoolean
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEBOOLEAN_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class DoubleValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            DoubleValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 425: // NullableFloat
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEFLOAT_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onDouble(col, Double.longBitsToDouble(PipeReader.readLong(ring, valueLoc)));
+                nextCol();
             }
-            case 427: // NullableDouble
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEDOUBLE_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class DecimalValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            DecimalValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 429: // NullableDateTime
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLEDATETIME_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                // the exponent field holds the scale, see MetaVisitor.onDecimal
+                visitor.onDecimal(col, PipeReader.readDecimalExponent(ring, valueLoc), PipeReader.readDecimalMantissa(ring, valueLoc));
+                nextCol();
             }
-            case 431: // NullableSerializedJavaObject
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLESERIALIZEDJAVAOBJECT_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
+        }
+
+        private class ASCIIValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            ASCIIValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 433: // NullableTimestamp
-            {
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NULLABLETIMESTAMP_NOTNULL_LOC);
-                if (notNull == 0)
-                    output.add(null);
-                return true;
-            }            
-            case 448: // NamedNullableUInt32
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEUINT32_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEUINT32_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onASCII(col, readASCII(ring, valueLoc));
+                nextCol();
             }
-            case 450: // NamedNullableInt32
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEINT32_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEINT32_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class UTF8Value extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            UTF8Value(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 454: // NamedNullableInt64
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEINT64_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEINT64_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onUTF8(col, readUTF8(ring, valueLoc));
+                nextCol();
             }
-            case 456: // NamedNullableASCII
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEASCII_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEASCII_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class BytesValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            BytesValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 458: // NamedNullableUTF8
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEUTF8_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEUTF8_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                int length = readBytes(ring, valueLoc); // may grow bytes
+                visitor.onBytes(col, bytes, length);
+                nextCol();
             }
-            case 460: // NamedNullableDecimal
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEDECIMAL_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEDECIMAL_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class DateTimeValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            DateTimeValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 462: // NamedNullableByteArray
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEBYTEARRAY_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEBYTEARRAY_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onDateTime(col, PipeReader.readLong(ring, valueLoc));
+                nextCol();
             }
-            case 487: // NamedNullableBoolean
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class SerializedValue extends Handler {
+            private final int nameLoc;
+            private final int valueLoc;
+
+            SerializedValue(int nameLoc, int valueLoc) {
+                this.nameLoc = nameLoc;
+                this.valueLoc = valueLoc;
             }
-            case 489: // NamedNullableFloat
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEFLOAT_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEFLOAT_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                int length = readBytes(ring, valueLoc); // may grow bytes
+                visitor.onSerialized(col, bytes, length);
+                nextCol();
             }
-            case 491: // NamedNullableDouble
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEDOUBLE_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEDOUBLE_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class TimestampValue extends Handler {
+            private final int nameLoc;
+            private final int dateTimeLoc;
+            private final int nanosLoc;
+            private final int tzOffsetLoc;
+
+            TimestampValue(int nameLoc, int dateTimeLoc, int nanosLoc, int tzOffsetLoc) {
+                this.nameLoc = nameLoc;
+                this.dateTimeLoc = dateTimeLoc;
+                this.nanosLoc = nanosLoc;
+                this.tzOffsetLoc = tzOffsetLoc;
             }
-            case 493: // NamedNullableDateTime
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLEDATETIME_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLEDATETIME_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+
+            void decode(Pipe ring) {
+                named(ring, nameLoc);
+                visitor.onTimestamp(col, PipeReader.readLong(ring, dateTimeLoc),
+                                    PipeReader.readInt(ring, nanosLoc), PipeReader.readInt(ring, tzOffsetLoc));
+                nextCol();
             }
-            case 495: // NamedNullableSerializedJavaObject
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLESERIALIZEDJAVAOBJECT_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLESERIALIZEDJAVAOBJECT_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
-                }
-                return true;
+        }
+
+        private class NullValue extends Handler {
+            private final int nameLoc;
+            private final int notNullLoc;
+
+            NullValue(int nameLoc, int notNullLoc) {
+                this.nameLoc = nameLoc;
+                this.notNullLoc = notNullLoc;
             }
-            case 497: // NamedNullableTimestamp
-            {
-                StringBuffer sb = new StringBuffer();
-                PipeReader.readASCII(ring, MetaMessageDefs.NAMEDNULLABLETIMESTAMP_NAME_LOC, sb);
-                String s = sb.toString();
-                int notNull = PipeReader.readInt(ring, MetaMessageDefs.NAMEDNULLABLETIMESTAMP_NOTNULL_LOC);
-                if (notNull == 0) {
-                    output.add(s);
-                    output.add(null);
+
+            void decode(Pipe ring) {
+                if (PipeReader.readInt(ring, notNullLoc) == 0) {
+                    named(ring, nameLoc);
+                    visitor.onNull(col);
+                    nextCol();
                 }
-                return true;
             }
-            default:
-                return false;
-            } // switch templateID
         }
     }
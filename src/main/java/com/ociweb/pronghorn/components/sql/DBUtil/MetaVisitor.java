@@ -0,0 +1,73 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+/**
+ * Receives the cells of a meta message stream as MetaDumper decodes them.
+ *
+ * Nothing passed in is allocated per cell: CharSequence and byte[] arguments
+ * are buffers owned by the decoder and are only valid for the duration of the
+ * call, so copy anything that has to be kept.
+ *
+ * col is the 0 based position in the row when rows are delimited (row markers
+ * or a schema header), otherwise a running cell count. A column name, when the
+ * stage sends names or a schema header, arrives through onName just before the
+ * value with the same col.
+ */
+public interface MetaVisitor {
+
+    void onSchemaColumn(int col, CharSequence name, int sqlType, int precision, int scale, boolean isNullable);
+
+    void onBeginGroup();
+
+    void onEndGroup();
+
+    void onName(int col, CharSequence name);
+
+    void onNull(int col);
+
+    void onInt(int col, int value);
+
+    void onLong(int col, long value);
+
+    void onBoolean(int col, boolean value);
+
+    void onFloat(int col, float value);
+
+    void onDouble(int col, double value);
+
+    /**
+     * The value is mantissa / 10^scale, BigDecimal.valueOf(mantissa, scale). The
+     * meta templates carry the scale in the decimal's exponent field, so it is
+     * the negated power of ten, not a true exponent.
+     */
+    void onDecimal(int col, int scale, long mantissa);
+
+    void onASCII(int col, CharSequence value);
+
+    void onUTF8(int col, CharSequence value);
+
+    void onBytes(int col, byte[] value, int length);
+
+    void onDateTime(int col, long millisecondsSinceEpoch);
+
+    void onTimestamp(int col, long millisecondsSinceEpoch, int nanos, int tzOffset);
+
+    void onSerialized(int col, byte[] value, int length);
+
+    /**
+     * A chunked LOB, see ChunkedColumnWriter: onLobBegin, then onLobBytes or
+     * onLobChars for each chunk, then onLobEnd.
+     */
+    void onLobBegin(int col, boolean isClob, long length);
+
+    void onLobBytes(int col, byte[] chunk, int length);
+
+    void onLobChars(int col, CharSequence chunk);
+
+    void onLobEnd(int col);
+
+    /**
+     * A columnar batch, see JdbcSourceStage.setBatchRows. The batch is a view
+     * on the decoder's buffer, valid for the duration of the call.
+     */
+    void onBatch(ColumnBatch batch);
+}
@@ -0,0 +1,96 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+/**
+ * MetaVisitor with every callback empty, to extend when only a few cell types
+ * matter.
+ */
+public abstract class MetaVisitorAdapter implements MetaVisitor {
+
+    @Override
+    public void onSchemaColumn(int col, CharSequence name, int sqlType, int precision, int scale, boolean isNullable) {
+    }
+
+    @Override
+    public void onBeginGroup() {
+    }
+
+    @Override
+    public void onEndGroup() {
+    }
+
+    @Override
+    public void onName(int col, CharSequence name) {
+    }
+
+    @Override
+    public void onNull(int col) {
+    }
+
+    @Override
+    public void onInt(int col, int value) {
+    }
+
+    @Override
+    public void onLong(int col, long value) {
+    }
+
+    @Override
+    public void onBoolean(int col, boolean value) {
+    }
+
+    @Override
+    public void onFloat(int col, float value) {
+    }
+
+    @Override
+    public void onDouble(int col, double value) {
+    }
+
+    @Override
+    public void onDecimal(int col, int scale, long mantissa) {
+    }
+
+    @Override
+    public void onASCII(int col, CharSequence value) {
+    }
+
+    @Override
+    public void onUTF8(int col, CharSequence value) {
+    }
+
+    @Override
+    public void onBytes(int col, byte[] value, int length) {
+    }
+
+    @Override
+    public void onDateTime(int col, long millisecondsSinceEpoch) {
+    }
+
+    @Override
+    public void onTimestamp(int col, long millisecondsSinceEpoch, int nanos, int tzOffset) {
+    }
+
+    @Override
+    public void onSerialized(int col, byte[] value, int length) {
+    }
+
+    @Override
+    public void onLobBegin(int col, boolean isClob, long length) {
+    }
+
+    @Override
+    public void onLobBytes(int col, byte[] chunk, int length) {
+    }
+
+    @Override
+    public void onLobChars(int col, CharSequence chunk) {
+    }
+
+    @Override
+    public void onLobEnd(int col) {
+    }
+
+    @Override
+    public void onBatch(ColumnBatch batch) {
+    }
+}
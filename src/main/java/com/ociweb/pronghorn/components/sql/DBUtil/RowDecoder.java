@@ -0,0 +1,165 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ociweb.pronghorn.components.sql.JdbcComponent.UserColumnWriters;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+
+/**
+ * Decodes the one-fragment-per-row messages of a template made by
+ * TemplateGenerator back into one output value per column. It is built from
+ * the same Column metadata the template came from, so no template has to be
+ * written or decoded by hand.
+ *
+ * Values come back as Integer, Long, Boolean, Float, Double, BigDecimal,
+ * String or byte[]; dates and times as Long millis; SQL NULL as null.
+ */
+public class RowDecoder implements UserDumper.Decoder {
+
+    private final Column[] columns;
+    private final long templateId;
+    private final String templateName;
+    private final StringBuilder sb = new StringBuilder();
+
+    // resolved against the pipe's FROM on the first row
+    private int[] valueLocs;
+    private int[] isNullLocs;
+    private int[] nullBitmapLocs; // null when the template has _IsNull fields
+    private long[] rowNulls;
+    private int[] dictValueLocs; // -1 unless the column is dictionary encoded
+    private List<String>[] dictionaries;
+
+    public RowDecoder(Column[] columns) {
+        this(columns, TemplateGenerator.ROW_TEMPLATE_NAME, TemplateGenerator.ROW_TEMPLATE_ID);
+    }
+
+    public RowDecoder(Column[] columns, String templateName, long templateId) {
+        this.columns = columns;
+        this.templateName = templateName;
+        this.templateId = templateId;
+    }
+
+    private void resolve(FieldReferenceOffsetManager FROM) {
+        int msgLoc = lookupTemplateLocator(templateName, FROM);
+        valueLocs = new int[columns.length];
+        isNullLocs = new int[columns.length];
+        nullBitmapLocs = UserColumnWriters.nullBitmapLocs(msgLoc, FROM, columns.length);
+        rowNulls = (nullBitmapLocs != null) ? new long[nullBitmapLocs.length] : null;
+        dictValueLocs = new int[columns.length];
+        dictionaries = newDictionaries(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            valueLocs[i] = lookupFieldLocator(column.name, msgLoc, FROM);
+            dictValueLocs[i] = UserColumnWriters.optionalFieldLocator(column.name + UserColumnWriters.DICTIONARY_VALUE_SUFFIX, msgLoc, FROM);
+            if (dictValueLocs[i] >= 0) {
+                dictionaries[i] = new ArrayList<String>();
+            }
+            isNullLocs[i] = (column.isNullable && rowNulls == null) ? lookupFieldLocator(column.name + UserColumnWriters.IS_NULL_SUFFIX, msgLoc, FROM) : -1;
+        }
+    }
+
+    @Override
+    public boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception {
+        if (templateID != templateId) {
+            return false;
+        }
+        if (valueLocs == null) {
+            resolve(Pipe.from(ring));
+        }
+        if (rowNulls != null) {
+            for (int i = 0; i < rowNulls.length; i++) {
+                rowNulls[i] = PipeReader.readLong(ring, nullBitmapLocs[i]);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (isNull(ring, i)) {
+                output.add(null);
+            } else if (dictValueLocs[i] >= 0) {
+                output.add(readDictionary(ring, i));
+            } else {
+                output.add(readValue(ring, columns[i], valueLocs[i]));
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String>[] newDictionaries(int columns) {
+        return new List[columns];
+    }
+
+    /**
+     * See UserColumnWriters.dictionaryWriter.
+     */
+    private String readDictionary(Pipe ring, int i) {
+        int code = PipeReader.readInt(ring, valueLocs[i]);
+        List<String> dictionary = dictionaries[i];
+        if (code > 0 && code <= dictionary.size()) {
+            return dictionary.get(code - 1);
+        }
+        sb.setLength(0);
+        PipeReader.readUTF8(ring, dictValueLocs[i], sb);
+        String value = sb.toString();
+        if (code > 0) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    private boolean isNull(Pipe ring, int i) {
+        if (rowNulls != null) {
+            return (rowNulls[i >>> 6] & (1L << (i & 63))) != 0;
+        }
+        return (isNullLocs[i] >= 0) && (PipeReader.readInt(ring, isNullLocs[i]) != 0);
+    }
+
+    private Object readValue(Pipe ring, Column column, int loc) {
+        switch (column.type) {
+        case Types.BIT: // -7
+        case Types.BOOLEAN: // 16
+            if ("byteVector".equals(TemplateGenerator.fieldType(column))) {
+                return readBytes(ring, loc);
+            }
+            return PipeReader.readInt(ring, loc) != 0;
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+            return PipeReader.readInt(ring, loc);
+        case Types.REAL: // 7
+            return Float.intBitsToFloat(PipeReader.readInt(ring, loc));
+        case Types.FLOAT: // 6
+        case Types.DOUBLE: // 8
+            return Double.longBitsToDouble(PipeReader.readLong(ring, loc));
+        case Types.NUMERIC: // 2
+        case Types.DECIMAL: // 3
+            // the writers send exponent = -scale
+            return BigDecimal.valueOf(PipeReader.readDecimalMantissa(ring, loc), -PipeReader.readDecimalExponent(ring, loc));
+        default:
+            break;
+        }
+        String fieldType = TemplateGenerator.fieldType(column);
+        if ("int64".equals(fieldType) || "uInt64".equals(fieldType)) {
+            return PipeReader.readLong(ring, loc);
+        } else if ("string".equals(fieldType)) {
+            sb.setLength(0);
+            PipeReader.readUTF8(ring, loc, sb);
+            return sb.toString();
+        } else {
+            return readBytes(ring, loc);
+        }
+    }
+
+    private static byte[] readBytes(Pipe ring, int loc) {
+        byte[] value = new byte[PipeReader.readDataLength(ring, loc)];
+        PipeReader.readBytes(ring, loc, value, 0);
+        return value;
+    }
+}
@@ -9,17 +9,24 @@ public class Stmt {
     private PreparedStatement stmt = null;
     private boolean ownStatement = false;
     private ResultSetMetaData metadata = null;
+    private Column[] columns = null;
     
     public Stmt(Connection conn, String sql) throws SQLException {
-        this.stmt = conn.prepareStatement(sql);
+        this(conn, sql, FetchPolicy.DEFAULT);
+    }
+
+    public Stmt(Connection conn, String sql, FetchPolicy policy) throws SQLException {
+        this.stmt = policy.prepare(conn, sql);
         ownStatement = true;
         this.metadata = stmt.getMetaData();
+        this.columns = Column.columns(metadata);
     }
     
     public Stmt(PreparedStatement stmt) throws SQLException {
         this.stmt = stmt;
         ownStatement = false;
         this.metadata = stmt.getMetaData();
+        this.columns = Column.columns(metadata);
     }
     
     public void close() throws SQLException {
@@ -35,4 +42,8 @@ public class Stmt {
     public ResultSetMetaData getMetadata() {
         return metadata;
     }
+    
+    public Column[] getColumns() {
+        return columns;
+    }
 }
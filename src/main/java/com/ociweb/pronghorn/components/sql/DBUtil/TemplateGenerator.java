@@ -0,0 +1,301 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.NotImplementedException;
+
+import com.ociweb.pronghorn.components.sql.JdbcComponent.UserColumnWriters;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+
+/**
+ * Generates the FAST template for the typed (user message) mode of a query or
+ * table, so userTemplate.xml style files no longer have to be written by hand.
+ *
+ * The field types are the ones JdbcSourceStage.buildUserColumnWriter writes:
+ * ints as int32/uInt32, BIGINT as int64, float/double as their IEEE bits,
+ * dates and times as int64 millis, DECIMAL/NUMERIC as decimal, character data
+ * as unicode strings (ASCII content encodes the same in UTF-8) and binary or
+ * serialized data as byteVector. Nullable columns get the companion
+ * column + "_IsNull" int32 the writers fill in, or with nullBitmap the whole
+ * row shares int64 "_NullBitmap0".. fields, one bit per column, which is much
+ * smaller for wide tables. Row mode templates use the bitmap.
+ *
+ * Per column encodings chosen by ColumnEncoding add the FAST delta operator or
+ * turn a string field into a dictionary code plus column + "_DictValue".
+ *
+ * The XML can be saved and loaded later with DBUtil.buildFROM, or turned into
+ * a FieldReferenceOffsetManager directly with buildFROM here.
+ */
+public class TemplateGenerator {
+
+    // row mode: the stage derives this template from the query itself
+    public static final String ROW_TEMPLATE_NAME = "Row";
+    public static final long ROW_TEMPLATE_ID = 1;
+
+    // lookup responses: rows tagged with the request's correlation ID, then Done
+    public static final String CORRELATION_FIELD = "CorrelationId";
+    public static final String DONE_TEMPLATE_NAME = "Done";
+    public static final long DONE_TEMPLATE_ID = 2;
+    public static final String DONE_ROWS_FIELD = "Rows";
+    public static final String DONE_FAILED_FIELD = "Failed";
+
+    public static String templateXML(Connection conn, String sql, String templateName, long templateId) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            return templateXML(templateName, templateId, Column.columns(stmt.getMetaData()));
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Template for "SELECT * FROM table", taken from DatabaseMetaData so no
+     * statement has to be prepared. Unquoted identifiers must be passed in the
+     * case the database stores them (upper case for H2, HSQLDB and Derby).
+     */
+    public static String tableTemplateXML(Connection conn, String catalog, String schemaPattern, String table, long templateId) throws SQLException {
+        List<Column> columns = new ArrayList<Column>();
+        DatabaseMetaData metadata = conn.getMetaData();
+        ResultSet rs = metadata.getColumns(catalog, schemaPattern, table, null);
+        try {
+            while (rs.next()) {
+                columns.add(new Column(rs));
+            }
+        } finally {
+            rs.close();
+        }
+        if (columns.isEmpty()) {
+            throw new SQLException("No columns found for table " + table);
+        }
+        return templateXML(table, templateId, columns.toArray(new Column[columns.size()]));
+    }
+
+    public static String templateXML(String templateName, long templateId, Column[] columns) {
+        return templateXML(templateName, templateId, columns, false);
+    }
+
+    public static String templateXML(String templateName, long templateId, Column[] columns, boolean nullBitmap) {
+        return templateXML(templateName, templateId, columns, nullBitmap, new int[columns.length]);
+    }
+
+    public static String templateXML(String templateName, long templateId, Column[] columns, boolean nullBitmap, int[] encodings) {
+        StringBuilder xml = new StringBuilder();
+        appendHeader(xml);
+        appendTemplate(xml, templateName, templateId, null, columns, nullBitmap, encodings);
+        xml.append("</templates>\n");
+        return xml.toString();
+    }
+
+    /**
+     * The response templates of a LookupStage: the row template with an int64
+     * CORRELATION_FIELD ahead of the columns, and DONE_TEMPLATE_NAME with the
+     * correlation ID and a uInt32 DONE_ROWS_FIELD count, sent after the last row
+     * of every request, including requests that found nothing. DONE_FAILED_FIELD
+     * is 1 when the query failed; the rows sent for that request are incomplete
+     * and should be dropped.
+     */
+    public static String lookupTemplateXML(Column[] columns) {
+        StringBuilder xml = new StringBuilder();
+        appendHeader(xml);
+        appendTemplate(xml, ROW_TEMPLATE_NAME, ROW_TEMPLATE_ID, CORRELATION_FIELD, columns, true, new int[columns.length]);
+        xml.append("<template name=\"").append(DONE_TEMPLATE_NAME).append("\" id=\"").append(DONE_TEMPLATE_ID).append("\">\n");
+        appendField(xml, "int64", CORRELATION_FIELD, 1, null, null);
+        appendField(xml, "uInt32", DONE_ROWS_FIELD, 2, null, null);
+        appendField(xml, "uInt32", DONE_FAILED_FIELD, 3, null, null);
+        xml.append("</template>\n");
+        xml.append("</templates>\n");
+        return xml.toString();
+    }
+
+    public static FieldReferenceOffsetManager lookupFROM(Column[] columns) {
+        return buildFROM(lookupTemplateXML(columns));
+    }
+
+    private static void appendHeader(StringBuilder xml) {
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<templates xmlns=\"http://www.fixprotocol.org/ns/fast/td/1.1\">\n");
+    }
+
+    private static void appendTemplate(StringBuilder xml, String templateName, long templateId, String correlationField, Column[] columns, boolean nullBitmap, int[] encodings) {
+        xml.append("<template name=\"").append(escape(templateName)).append("\" id=\"").append(templateId).append("\">\n");
+        int id = 1;
+        if (correlationField != null) {
+            appendField(xml, "int64", correlationField, id++, null, null);
+        }
+        if (nullBitmap) {
+            for (int i = 0; i < UserColumnWriters.nullBitmapFields(columns.length); i++) {
+                appendField(xml, "int64", UserColumnWriters.NULL_BITMAP_PREFIX + i, id++, null, null);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            if (column.isNullable && !nullBitmap) {
+                appendField(xml, "int32", column.name + UserColumnWriters.IS_NULL_SUFFIX, id++, null, null);
+            }
+            switch (encodings[i]) {
+            case ColumnEncoding.DELTA:
+                appendField(xml, fieldType(column), column.name, id++, charset(column), "delta");
+                break;
+            case ColumnEncoding.DICTIONARY:
+                appendField(xml, "uInt32", column.name, id++, null, null);
+                appendField(xml, "string", column.name + UserColumnWriters.DICTIONARY_VALUE_SUFFIX, id++, "unicode", null);
+                break;
+            default:
+                appendField(xml, fieldType(column), column.name, id++, charset(column), null);
+                break;
+            }
+        }
+        xml.append("</template>\n");
+    }
+
+    /**
+     * The single-fragment row template for a query, for sizing the pipe handed to
+     * the row mode stage constructors.
+     */
+    public static FieldReferenceOffsetManager rowFROM(Connection conn, String sql) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            return rowFROM(Column.columns(stmt.getMetaData()));
+        } finally {
+            stmt.close();
+        }
+    }
+
+    public static FieldReferenceOffsetManager rowFROM(Column[] columns) {
+        return buildFROM(templateXML(ROW_TEMPLATE_NAME, ROW_TEMPLATE_ID, columns, true));
+    }
+
+    /**
+     * Row template with the column encodings ColumnEncoding picks from the first
+     * sampleRows rows of the query, with parameters bound in order, for pipes
+     * that are sent over a network link or to disk.
+     */
+    public static FieldReferenceOffsetManager rowFROM(Connection conn, String sql, int sampleRows, Object... parameters) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i + 1, parameters[i]);
+            }
+            return rowFROM(stmt, sampleRows);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Row template sampled from a statement whose parameters are already bound,
+     * see ColumnEncoding.choose.
+     */
+    public static FieldReferenceOffsetManager rowFROM(PreparedStatement stmt, int sampleRows) throws SQLException {
+        Column[] columns = Column.columns(stmt.getMetaData());
+        int[] encodings = ColumnEncoding.choose(stmt, columns, sampleRows);
+        return buildFROM(templateXML(ROW_TEMPLATE_NAME, ROW_TEMPLATE_ID, columns, true, encodings));
+    }
+
+    public static FieldReferenceOffsetManager buildFROM(Connection conn, String sql, String templateName, long templateId) throws SQLException {
+        return buildFROM(templateXML(conn, sql, templateName, templateId));
+    }
+
+    /**
+     * TemplateHandler loads from a resource or a file, so the XML goes through a
+     * temporary file.
+     */
+    public static FieldReferenceOffsetManager buildFROM(String templateXML) {
+        File file = null;
+        try {
+            file = File.createTempFile("template", ".xml");
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(templateXML);
+            } finally {
+                out.close();
+            }
+            return DBUtil.buildFROM(file.getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("buildFROM", e);
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    static String fieldType(Column column) {
+        switch (column.type) {
+        case Types.BIT: // -7
+            // BIT(n) with n > 1 is bit data, sent as bytes
+            return column.precision > 1 ? "byteVector" : "uInt32";
+        case Types.BOOLEAN: // 16
+            return "uInt32";
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+            return column.isSigned ? "int32" : "uInt32";
+        case Types.BIGINT: // -5
+            return column.isSigned ? "int64" : "uInt64";
+        case Types.REAL: // 7
+            return "int32";
+        case Types.FLOAT: // 6
+        case Types.DOUBLE: // 8
+        case Types.DATE: // 91
+        case Types.TIME: // 92
+        case Types.TIMESTAMP: // 93
+        case -155: // SQL Server datetimeoffset
+            return "int64";
+        case Types.NUMERIC: // 2
+        case Types.DECIMAL: // 3
+            return "decimal";
+        case Types.CHAR: // 1
+        case Types.VARCHAR: // 12
+        case Types.LONGVARCHAR: // -1
+        case Types.NCHAR: // -15
+        case Types.NVARCHAR: // -9
+        case Types.LONGNVARCHAR: // -16
+        case Types.CLOB: // 2005
+        case Types.NCLOB: // 2011
+            return "string";
+        case Types.BINARY: // -2
+        case Types.VARBINARY: // -3
+        case Types.LONGVARBINARY: // -4
+        case Types.BLOB: // 2004
+        case Types.OTHER: // 1111
+        case Types.JAVA_OBJECT: // 2000
+        case Types.ARRAY: // 2003
+            return "byteVector";
+        default:
+            throw new NotImplementedException(column.typeName + "/" + column.type + " not implemented for column " + column.index + "/" + column.name);
+        } // switch on column type
+    }
+
+    private static String charset(Column column) {
+        return "string".equals(fieldType(column)) ? "unicode" : null;
+    }
+
+    private static void appendField(StringBuilder xml, String type, String name, int id, String charset, String operator) {
+        xml.append("\t<").append(type).append(" name=\"").append(escape(name)).append("\" id=\"").append(id).append('"');
+        if (charset != null) {
+            xml.append(" charset=\"").append(charset).append('"');
+        }
+        if (operator == null) {
+            xml.append("/>\n");
+        } else {
+            xml.append("><").append(operator).append("/></").append(type).append(">\n");
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
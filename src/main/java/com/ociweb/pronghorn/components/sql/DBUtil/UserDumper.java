@@ -18,46 +18,61 @@ public class UserDumper extends PronghornStage {
         public abstract boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception;
     }
 
+    /**
+     * A decoder that dispatches on the message LOC directly, typically through a
+     * table built once from the FieldReferenceOffsetManager, so the dumper skips
+     * the template ID lookup.
+     */
+    public interface LocDecoder extends Decoder {
+        public abstract boolean decodeLoc(Pipe ring, int msgLoc, List<Object> output) throws Exception;
+    }
+
     private Pipe ring;
     private Decoder decoder;
+    private LocDecoder locDecoder; // decoder, when it can take the LOC
+    private final FieldReferenceOffsetManager FROM;
     private List<Object> output;
-    private boolean loop = true;
     private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(UserDumper.class);
     
     public UserDumper(GraphManager gm, Pipe ring, Decoder decoder) {
         super(gm,ring, NONE);
         this.ring = ring;
         this.decoder = decoder;
+        this.locDecoder = (decoder instanceof LocDecoder) ? (LocDecoder) decoder : null;
+        this.FROM = Pipe.from(ring);
         this.output = new ArrayList<Object>();
     }
 
     @Override
     public void run() {
         try {
-            FieldReferenceOffsetManager FROM = Pipe.from(ring);
-
-            do {
-                if (tryReadFragment(ring)) {
-                    if (isNewMessage(ring)) {
-                        int msgLoc = getMsgIdx(ring);
-                        int templateID = (int)FROM.fieldIdScript[msgLoc];
-                        if (!decoder.decode(ring, templateID, output)) {
-                            logger.error("Dumper: Unknown template ID " + templateID);
-                            throw new NotImplementedException("Dumper: Unknown template ID " + templateID);
-                        }
-                    } // if isNewMessage
-                } else { // while tryReadFragment
-                    // do something else
-                    Thread.yield();
-                }
-            } while (loop || (Pipe.contentRemaining(ring) > 0));
+            // drain whatever is available, then give the thread back to the scheduler
+            while (tryReadFragment(ring)) {
+                if (isNewMessage(ring)) {
+                    int msgLoc = getMsgIdx(ring);
+                    if (msgLoc < 0) {
+                        // EOF published by the source stage
+                        requestShutdown();
+                        return;
+                    }
+                    boolean decoded = (locDecoder != null) ? locDecoder.decodeLoc(ring, msgLoc, output)
+                                                           : decoder.decode(ring, (int)FROM.fieldIdScript[msgLoc], output);
+                    if (!decoded) {
+                        long templateID = FROM.fieldIdScript[msgLoc];
+                        logger.error("Dumper: Unknown template ID " + templateID);
+                        throw new NotImplementedException("Dumper: Unknown template ID " + templateID);
+                    }
+                } // if isNewMessage
+                releaseReadLock(ring);
+            }
         } catch (Exception e) {
             logger.error("Dumper: " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
         }
     }
 
     public void stop() {
-        loop = false;
+        requestShutdown();
     }
 
     public List<Object> result() {
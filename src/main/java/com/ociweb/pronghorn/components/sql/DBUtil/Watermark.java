@@ -0,0 +1,159 @@
+package com.ociweb.pronghorn.components.sql.DBUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * The highest key a source has emitted, for queries that only want what came
+ * after it ("... WHERE key > ? ORDER BY key"). The key is an integer column or
+ * a date/time column; the value is kept in a small text file so a restarted
+ * stage carries on from where it stopped.
+ *
+ * The file is replaced atomically: written next to the target, synced to disk
+ * and moved over it, so a crash leaves either the old or the new watermark,
+ * never a partial one. A file that is there but empty or unreadable is an
+ * error rather than a reason to start again from the initial watermark.
+ */
+public class Watermark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String keyColumn;
+    private final File file;
+    private final String initial;
+
+    private int keyIndex = -1;
+    private boolean isTimestamp;
+    private long value;
+    private Timestamp timestamp;
+
+    /**
+     * @param keyColumn name of the key in the query's select list
+     * @param file where the watermark is kept, null to keep it in memory only
+     * @param initial watermark when there is no file yet: a number, or for a
+     *                date/time key a java.sql.Timestamp string
+     */
+    public Watermark(String keyColumn, File file, String initial) {
+        this.keyColumn = keyColumn;
+        this.file = file;
+        this.initial = initial;
+    }
+
+    /**
+     * Finds the key among the query's columns and reads the stored watermark.
+     * Throws IOException when the file exists but holds no valid watermark.
+     */
+    public void open(Column[] columns) throws IOException {
+        for (Column column : columns) {
+            if (column.name.equalsIgnoreCase(keyColumn)) {
+                keyIndex = column.index;
+                isTimestamp = (column.type == Types.DATE) || (column.type == Types.TIME) || (column.type == Types.TIMESTAMP);
+            }
+        }
+        if (keyIndex < 0) {
+            throw new IllegalArgumentException("Watermark key " + keyColumn + " is not in the query");
+        }
+        if (file == null || !file.exists()) {
+            parse(initial);
+            return;
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+        String stored = lines.isEmpty() ? "" : lines.get(0).trim();
+        if (stored.isEmpty()) {
+            throw new IOException("Watermark file " + file + " is empty");
+        }
+        try {
+            parse(stored);
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            throw new IOException("Watermark file " + file + " holds '" + stored + "', not a watermark for " + keyColumn, e);
+        }
+    }
+
+    private void parse(String text) {
+        if (isTimestamp) {
+            timestamp = Timestamp.valueOf(text);
+        } else {
+            value = Long.parseLong(text);
+        }
+    }
+
+    /**
+     * Binds the watermark to the query's parameter.
+     */
+    public void bind(PreparedStatement stmt, int parameterIndex) throws SQLException {
+        if (isTimestamp) {
+            stmt.setTimestamp(parameterIndex, timestamp);
+        } else {
+            stmt.setLong(parameterIndex, value);
+        }
+    }
+
+    /**
+     * Moves the watermark to the key of the current row. NULL keys are skipped.
+     */
+    public void track(ResultSet rs) throws SQLException {
+        if (isTimestamp) {
+            Timestamp key = rs.getTimestamp(keyIndex);
+            if (key != null) {
+                timestamp = key;
+            }
+        } else {
+            long key = rs.getLong(keyIndex);
+            if (!rs.wasNull()) {
+                value = key;
+            }
+        }
+    }
+
+    /**
+     * Writes the current watermark to the file.
+     */
+    public void store() throws IOException {
+        store(toString());
+    }
+
+    /**
+     * Writes a watermark taken earlier with toString(), e.g. once the rows up to
+     * it have been acknowledged.
+     */
+    public void store(String mark) throws IOException {
+        if (file == null) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            Writer out = new OutputStreamWriter(stream, UTF8);
+            try {
+                out.write(mark);
+                out.write('\n');
+                out.flush();
+                // the data must be on disk before the rename is, or a power loss can leave an empty file
+                stream.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isTimestamp ? String.valueOf(timestamp) : Long.toString(value);
+    }
+}
@@ -1,344 +1,132 @@
 package com.ociweb.pronghorn.components.sql.H2Component;
 
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeBeginGroupMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeBooleanMessage;
 import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeByteArrayMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeByteMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeDateTimeMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeDecimalMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeDoubleMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeEndGroupMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeFloatMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeIntMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeLongMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeSerializedMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeShortMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeTimestampMessage;
-import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeUTF8Message;
-import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.sql.Blob;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 import org.apache.commons.lang3.NotImplementedException;
 
-import com.ociweb.pronghorn.components.sql.DBUtil.DBUtil;
-import com.ociweb.pronghorn.components.sql.DBUtil.Stmt;
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ColumnWriter;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.JdbcSourceStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.MetaColumnWriters;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.UserColumnWriters;
 import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
-public class H2Stage implements Runnable {
-    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(H2Stage.class);
-    private Pipe ring = null;
-    private boolean emitFieldNames = false;
-    private boolean emitRowMarkers = false;
-    private Stmt stmt = null;
-    private boolean useMetaMessages = false;
-    private String message = null;
-    private FieldReferenceOffsetManager FROM = null;
+public class H2Stage extends JdbcSourceStage {
 
-    public H2Stage(Connection conn, String sql, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
-        this.useMetaMessages = true;
-        this.emitFieldNames = emitFieldNames;
-        this.emitRowMarkers = emitRowMarkers;
-        this.stmt = new Stmt(conn, sql);
-        this.ring = ring;
-    }
-    
-    public H2Stage(PreparedStatement stmt, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
-        this.useMetaMessages = true;
-        this.emitFieldNames = emitFieldNames;
-        this.emitRowMarkers = emitRowMarkers;
-        this.stmt = new Stmt(stmt);
-        this.ring = ring;
+    public H2Stage(GraphManager gm, Connection conn, String sql, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
+        super(gm, conn, sql, FetchPolicy.H2, emitFieldNames, emitRowMarkers, ring);
     }
 
-    public H2Stage(Connection conn, String sql, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
-        this.useMetaMessages = false;
-        this.stmt = new Stmt(conn, sql);
-        this.ring = ring;
-        this.message = message;
-        this.FROM = FROM;
-    }
-    
-    public H2Stage(PreparedStatement stmt, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
-        this.useMetaMessages = false;
-        this.stmt = new Stmt(stmt);
-        this.ring = ring;
-        this.message = message;
-        this.FROM = FROM;
+    public H2Stage(GraphManager gm, PreparedStatement stmt, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
+        super(gm, stmt, emitFieldNames, emitRowMarkers, ring);
     }
 
-    public void close() {
-        try {
-            if (stmt != null) {
-                stmt.close();
-                stmt = null;
-            }
-        } catch (SQLException e) {
-        }
+    public H2Stage(GraphManager gm, Connection conn, String sql, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
+        super(gm, conn, sql, FetchPolicy.H2, message, FROM, ring);
     }
 
-    @Override
-    protected void finalize() {
-        close();
+    public H2Stage(GraphManager gm, PreparedStatement stmt, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
+        super(gm, stmt, message, FROM, ring);
     }
 
-    @Override
-    public void run() {
-        try {
-            if (useMetaMessages) {
-                runMetaMessages();
-            }
-            else {
-                runFROM();
-            }
-        } catch (Exception e) {
-            logger.error("H2Stage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
-        }
+    // row mode, ring built from TemplateGenerator.rowFROM for the same query
+    public H2Stage(GraphManager gm, Connection conn, String sql, Pipe ring) throws SQLException {
+        super(gm, conn, sql, FetchPolicy.H2, ring);
     }
 
-    public void runMetaMessages() throws SQLException, IOException {
-        ResultSet rs = stmt.getStatement().executeQuery();
-        ResultSetMetaData metadata = stmt.getMetadata();
-
-        while (rs.next()) {
-            if (emitRowMarkers)
-                writeBeginGroupMessage(ring, null);
-
-            // should metadata be cached instead of referenced on each loop iteration?
-            for (int col = 1; col <= metadata.getColumnCount(); col++) {
-
-                String columnName = emitFieldNames ? metadata.getColumnName(col) : null;
-                // if nullability can't be determined, assume it is nullable
-                boolean isNullable = metadata.isNullable(col) != ResultSetMetaData.columnNoNulls;
-                boolean isSigned = metadata.isSigned(col);
-
-                Object value = rs.getObject(col);
+    public H2Stage(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+        super(gm, stmt, ring);
+    }
 
-                switch (metadata.getColumnType(col)) {
-                case Types.TINYINT: // -6
-                    writeByteMessage(ring, isNullable, isSigned, columnName, value);
-                    break;
-                case Types.SMALLINT: // 5
-                    writeShortMessage(ring, isNullable, isSigned, columnName, value);
-                    break;
-                case Types.INTEGER: // 4
-                    writeIntMessage(ring, isNullable, isSigned, columnName, value);
-                    break;
-                case Types.BIGINT: // -5
-                    writeLongMessage(ring, isNullable, isSigned, columnName, value);
-                    break;
-                case Types.REAL: // 7
-                    writeFloatMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.DOUBLE: // 8
-                    writeDoubleMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.DECIMAL: // 3
-                    writeDecimalMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.DATE: // 91
-                    writeDateTimeMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.TIME: // 92
-                    writeDateTimeMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.TIMESTAMP: // 93
-                    writeTimestampMessage(ring, isNullable, columnName, (java.sql.Timestamp)value, 0);
-                    break;
-                case Types.BINARY: // -2
+    @Override
+    protected ColumnWriter buildColumnWriter(Column column, String columnName) throws SQLException {
+        switch (column.type) {
+        case Types.TINYINT: // -6
+            return MetaColumnWriters.byteWriter(column, columnName);
+        case Types.SMALLINT: // 5
+            return MetaColumnWriters.shortWriter(column, columnName);
+        case Types.INTEGER: // 4
+            return MetaColumnWriters.intWriter(column, columnName);
+        case Types.BIGINT: // -5
+            return MetaColumnWriters.longWriter(column, columnName);
+        case Types.REAL: // 7
+            return MetaColumnWriters.floatWriter(column, columnName);
+        case Types.DOUBLE: // 8
+            return MetaColumnWriters.doubleWriter(column, columnName);
+        case Types.DECIMAL: // 3
+            return MetaColumnWriters.decimalWriter(column, columnName);
+        case Types.DATE: // 91
+            return MetaColumnWriters.dateTimeWriter(column, columnName);
+        case Types.TIME: // 92
+            return MetaColumnWriters.dateTimeWriter(column, columnName);
+        case Types.TIMESTAMP: // 93
+            return MetaColumnWriters.timestampWriter(column, columnName);
+        case Types.BINARY: // -2
+            // H2 reports UUID columns as BINARY
+            return new ColumnWriter(column, columnName) {
+                @Override
+                public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                    Object value = rs.getObject(index);
                     if (value != null) {
                         UUID uuid = (UUID) value;
                         ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
                         bb.putLong(uuid.getMostSignificantBits());
                         bb.putLong(uuid.getLeastSignificantBits());
-                        writeByteArrayMessage(ring, isNullable, columnName, bb.array());
+                        writeByteArrayMessage(ring, isNullable, name, bb.array());
                     } else
-                        writeByteArrayMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.VARBINARY: // -3
-                    writeByteArrayMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.OTHER: // 1111
-                    writeSerializedMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.ARRAY: // 2003
-                    writeSerializedMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.BLOB: // 2004
-                {
-                    // should write this in small pieces, instead of reading the entire blob at one time
-                    Blob blob = (Blob) value;
-                    byte[] bytes = (value == null) ? null : blob.getBytes(1l, (int) blob.length());
-                    writeByteArrayMessage(ring, isNullable, columnName, bytes);
-                    break;
+                        writeByteArrayMessage(ring, isNullable, name, value);
                 }
-                case Types.BOOLEAN: // 16
-                    writeBooleanMessage(ring, isNullable, columnName, value);
-                    break;
-                case Types.VARCHAR: // 12
-                    writeUTF8Message(ring, isNullable, columnName, value);
-                    break;
-                case Types.CLOB: // 2005
-                {
-                    // should really stream, but for now
-                    org.h2.jdbc.JdbcClob clob = (org.h2.jdbc.JdbcClob)value;
-                    String s = (value == null) ? null : clob.getSubString(1l, (int)clob.length());
-                    writeUTF8Message(ring, isNullable, columnName, s);
-                    break;
-                }
-                default:
-                    throw new NotImplementedException(metadata.getColumnTypeName(col) + "/" + metadata.getColumnType(col) + " not implemented for column " + col + "/" + metadata.getColumnName(col));
-                } // switch on column type
-            } // column loop
-
-            if (emitRowMarkers)
-                writeEndGroupMessage(ring);
-
-        } // while rs.next()
+            };
+        case Types.VARBINARY: // -3
+            return MetaColumnWriters.byteArrayWriter(column, columnName);
+        case Types.OTHER: // 1111
+            return MetaColumnWriters.serializedWriter(column, columnName);
+        case Types.ARRAY: // 2003
+            return MetaColumnWriters.serializedWriter(column, columnName);
+        case Types.BLOB: // 2004
+            return MetaColumnWriters.blobWriter(column, columnName);
+        case Types.BOOLEAN: // 16
+            return MetaColumnWriters.booleanWriter(column, columnName);
+        case Types.VARCHAR: // 12
+            return MetaColumnWriters.utf8Writer(column, columnName);
+        case Types.CLOB: // 2005
+            return MetaColumnWriters.clobWriter(column, columnName);
+        default:
+            throw new NotImplementedException(column.typeName + "/" + column.type + " not implemented for column " + column.index + "/" + column.name);
+        } // switch on column type
     }
 
-    public void runFROM() throws SQLException {
-            Map<String, Integer> fieldMap = new HashMap<String, Integer>();
-            final int message_loc = lookupTemplateLocator(message, FROM);
-            int templateID = (int)FROM.fieldIdScript[message_loc];
-            logger.info("templateID: " + templateID);
-            
-            /*
-            for (int col = 1; col <= metadata.getColumnCount(); col++) {
-                String columnName = metadata.getColumnName(col);
-                fieldMap.put(columnName, lookupFieldLocator(columnName, message_loc, FROM));   
-                
-                // if nullability can't be determined, assume it is nullable
-                boolean isNullable = metadata.isNullable(col) != ResultSetMetaData.columnNoNulls;
-                if (isNullable)
-                    fieldMap.put(columnName + "_IsNull", lookupFieldLocator(columnName + "_IsNull", message_loc, FROM));
+    @Override
+    protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+        if (column.type != Types.BINARY) {
+            return super.buildUserColumnWriter(column, valueLoc, isNullLoc);
+        }
+        // H2 reports UUID columns as BINARY
+        return new UserColumnWriters.UserColumnWriter(column, valueLoc, isNullLoc) {
+            private final byte[] bytes = new byte[16];
+
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                UUID uuid = (UUID) rs.getObject(index);
+                writeIsNull(ring, uuid == null);
+                ByteBuffer bb = ByteBuffer.wrap(bytes);
+                bb.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+                bb.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+                PipeWriter.writeBytes(ring, valueLoc, bytes);
             }
-            
-            int field_loc = 0;
-            */
-            
-            ResultSet rs = stmt.getStatement().executeQuery();
-            ResultSetMetaData metadata = stmt.getMetadata();
-            
-            while (rs.next()) {
-                logger.info("NEXT ROW");
-                
-                waitForRing(ring, message_loc);
-                
-                for (int col = 1; col <= metadata.getColumnCount(); col++) {
-
-                    String columnName = metadata.getColumnName(col);
-                    // if nullability can't be determined, assume it is nullable
-                    boolean isNullable = metadata.isNullable(col) != ResultSetMetaData.columnNoNulls;
-                    
-                    Object value = rs.getObject(col);
-                    if (isNullable) {
-                        // field_loc = fieldMap.get(columnName + "_IsNull");
-                        logger.info("writing " + columnName + "_IsNull: " + ((value == null) ? 1 : 0));
-                        writeInt(ring, (value == null) ? 1 : 0);
-                    }
-                    
-                    // for now, all fields must be written in order - eventually write using IDs
-                    if (true || value != null) {
-                        switch (metadata.getColumnType(col)) {
-                        /*
-                        case Types.TINYINT: // -6
-                            writeByteMessage(ring, isNullable, isSigned, columnName, value);
-                            break;
-                        case Types.SMALLINT: // 5
-                            writeShortMessage(ring, isNullable, isSigned, columnName, value);
-                            break;
-                        */
-                        case Types.INTEGER: // 4
-                            if (value == null) value = -1;
-                            logger.info("writing " + columnName + ": " + (int)value);
-                            writeInt(ring, (int)value);
-                            break;
-                        /*
-                        case Types.BIGINT: // -5
-                            writeLongMessage(ring, isNullable, isSigned, columnName, value);
-                            break;
-                        case Types.REAL: // 7
-                            writeFloatMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.DOUBLE: // 8
-                            writeDoubleMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.DECIMAL: // 3
-                            writeDecimalMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.DATE: // 91
-                            writeDateTimeMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.TIME: // 92
-                            writeDateTimeMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.TIMESTAMP: // 93
-                            // should really include nanos - resolution is limited to milliseconds otherwise
-                            writeDateTimeMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.BINARY: // -2
-                            if (value != null) {
-                                UUID uuid = (UUID) value;
-                                ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-                                bb.putLong(uuid.getMostSignificantBits());
-                                bb.putLong(uuid.getLeastSignificantBits());
-                                writeByteArrayMessage(ring, isNullable, columnName, bb.array());
-                            } else
-                                writeByteArrayMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.VARBINARY: // -3
-                            writeByteArrayMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.OTHER: // 1111
-                            writeSerializedMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.ARRAY: // 2003
-                            writeSerializedMessage(ring, isNullable, columnName, value);
-                            break;
-                        case Types.BLOB: // 2004
-                        {
-                            // should write this in small pieces, instead of reading the entire blob at one time
-                            Blob blob = (Blob) value;
-                            byte[] bytes = (value == null) ? null : blob.getBytes(1l, (int) blob.length());
-                            writeByteArrayMessage(ring, isNullable, columnName, bytes);
-                            break;
-                        }
-                        case Types.BOOLEAN: // 16
-                            writeBooleanMessage(ring, isNullable, columnName, value);
-                            break;
-                        */
-                        default:
-                            throw new NotImplementedException(metadata.getColumnTypeName(col) + " not implemented for column " + col + "/" + metadata.getColumnName(col));
-                        } // switch on column type
-                    }
-                } // column loop
-                
-                Pipe.publishWrites(ring);
-
-            } // while rs.next()
-
-
-    }
-
-    private void waitForRing(Pipe ring2, int message_loc) {
-        throw new UnsupportedOperationException();
-    }
-
-    private void writeInt(Pipe ring2, int i) {
-        throw new UnsupportedOperationException("This method should provide the LOC if using the high level api.");
+        };
     }
 }
@@ -0,0 +1,436 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.pipe.token.TokenBuilder;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Key lookups like LookupStage, but pending requests are collected into one
+ * "... WHERE key IN (?,?,...)" query, so a burst of lookups costs one round
+ * trip instead of one each. The query is given with a single "(?)" where the
+ * list goes, e.g. "SELECT Id, Status FROM Data WHERE Id IN (?)", and must
+ * select the key column so rows can be matched back to their requests.
+ *
+ * A batch is sent when maxBatch requests are pending, when the first of them
+ * has waited windowMicros, or when no more requests are waiting and the window
+ * is 0 (the default), so batches only form under load. Statements are prepared
+ * once for each power of two up to maxBatch; a batch uses the smallest that
+ * fits and repeats its last key in the spare places.
+ *
+ * The responses are those of LookupStage: every row goes to each request for
+ * its key with that request's correlation ID, then every request gets its Done
+ * message. When a query fails, the requests of the batch still without a Done
+ * get one with DONE_FAILED_FIELD set, as in LookupStage, and the stage goes on
+ * with the next batch.
+ *
+ * Keys are integers, in an integer request field and an integer (or scale 0
+ * numeric) key column; rows with a NULL key match nothing. Text keys are not
+ * taken: matching rows back in Java would ignore the database's collation and
+ * CHAR padding, so use LookupStage for those.
+ */
+public class BatchLookupStage extends PronghornStage {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(BatchLookupStage.class);
+
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final String IN_LIST = "(?)";
+
+    // what run() is doing with the current batch
+    private static final int COLLECTING = 0;
+    private static final int ROWS = 1;
+    private static final int DONE = 2;
+    private static final int FAILED = 3; // failed Dones waiting for room
+
+    private final Connection conn;
+    private final String sqlPrefix;
+    private final String sqlSuffix;
+    private final Pipe requests;
+    private final Pipe responses;
+    private final Column[] columns;
+    private final int keyIndex; // of the key column in the result
+
+    private final int requestLoc;
+    private final int correlationLoc;
+    private final int correlationKind;
+    private final int keyLoc;
+    private final int keyKind;
+
+    private final LookupResponseWriter writer;
+    private int rowsPerRun = JdbcSourceStage.DEFAULT_ROWS_PER_RUN;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private long windowNanos = 0;
+
+    private PreparedStatement[] statements; // statements[i] has 1 << i markers
+
+    // the batch
+    private int state = COLLECTING;
+    private int pending = 0;
+    private long firstPending; // System.nanoTime() of the oldest pending request
+    private long[] correlationIds;
+    private long[] keys;
+    private int[] rowCounts;
+    private boolean requestsDone = false;
+    private ResultSet rs = null;
+    private int fanout = -1; // next request to match the current row against, -1 between rows
+    private long rowKey;
+    private boolean rowKeyIsNull;
+    private int nextDone;
+
+    /**
+     * @param sql query with IN_LIST where the keys go
+     * @param keyColumn the key in the query's select list
+     * @param requestMessage name of the request template in the requests pipe
+     * @param correlationField integer field of the request, echoed in the responses
+     * @param keyField integer field of the request with the key
+     * @param responses pipe with the TemplateGenerator.lookupFROM templates
+     */
+    public BatchLookupStage(GraphManager gm, Connection conn, String sql, String keyColumn, Pipe requests, String requestMessage, String correlationField, String keyField, Pipe responses) throws SQLException {
+        super(gm, requests, responses);
+        int marker = sql.indexOf(IN_LIST);
+        if (marker < 0 || sql.indexOf(IN_LIST, marker + 1) >= 0) {
+            throw new IllegalArgumentException("The query needs exactly one " + IN_LIST + " for the key list: " + sql);
+        }
+        this.conn = conn;
+        this.sqlPrefix = sql.substring(0, marker);
+        this.sqlSuffix = sql.substring(marker + IN_LIST.length());
+        this.requests = requests;
+        this.responses = responses;
+
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            this.columns = Column.columns(stmt.getMetaData());
+        } finally {
+            stmt.close();
+        }
+        int keyIndex = -1;
+        for (Column column : columns) {
+            if (column.name.equalsIgnoreCase(keyColumn)) {
+                keyIndex = column.index;
+                if (!isIntegerColumn(column)) {
+                    throw new IllegalArgumentException("Key " + keyColumn + " must be an integer column, use LookupStage for " + column.typeName + " keys");
+                }
+            }
+        }
+        if (keyIndex < 0) {
+            throw new IllegalArgumentException("Key " + keyColumn + " is not in the query");
+        }
+        this.keyIndex = keyIndex;
+
+        FieldReferenceOffsetManager FROM = Pipe.from(requests);
+        this.requestLoc = lookupTemplateLocator(requestMessage, FROM);
+        this.correlationLoc = lookupFieldLocator(correlationField, requestLoc, FROM);
+        this.keyLoc = lookupFieldLocator(keyField, requestLoc, FROM);
+        int correlationKind = -1;
+        int keyKind = -1;
+        int end = requestLoc + FROM.fragScriptSize[requestLoc];
+        for (int i = requestLoc + 1; i < end; i++) {
+            int loc = lookupFieldLocator(FROM.fieldNameScript[i], requestLoc, FROM);
+            if (loc == correlationLoc) {
+                correlationKind = LookupStage.bindKind(TokenBuilder.extractType(FROM.tokens[i]), correlationField);
+            } else if (loc == keyLoc) {
+                keyKind = LookupStage.bindKind(TokenBuilder.extractType(FROM.tokens[i]), keyField);
+            }
+        }
+        if (!isInteger(correlationKind)) {
+            throw new IllegalArgumentException("Correlation field " + correlationField + " must be an integer field");
+        }
+        if (!isInteger(keyKind)) {
+            throw new IllegalArgumentException("Key field " + keyField + " must be an integer field, use LookupStage for text keys");
+        }
+        this.correlationKind = correlationKind;
+        this.keyKind = keyKind;
+        this.writer = new LookupResponseWriter(responses, columns);
+    }
+
+    /**
+     * Index of the smallest power of two that holds keys.
+     */
+    private static int markersLog2(int keys) {
+        int log2 = 0;
+        while ((1 << log2) < keys) {
+            log2++;
+        }
+        return log2;
+    }
+
+    private static boolean isInteger(int kind) {
+        return kind == LookupStage.BIND_INT || kind == LookupStage.BIND_UINT || kind == LookupStage.BIND_LONG;
+    }
+
+    private static boolean isIntegerColumn(Column column) {
+        switch (column.type) {
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+        case Types.BIGINT: // -5
+            return true;
+        case Types.NUMERIC: // 2
+        case Types.DECIMAL: // 3
+            return column.scale == 0 && column.precision <= 18;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Most requests in one query, rounded up to a power of two. Must be called
+     * before the stage starts.
+     */
+    public void setMaxBatch(int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+        this.maxBatch = 1 << markersLog2(maxBatch);
+    }
+
+    /**
+     * Longest a request waits for others to join its batch.
+     */
+    public void setWindowMicros(long windowMicros) {
+        if (windowMicros < 0) {
+            throw new IllegalArgumentException("windowMicros must not be negative: " + windowMicros);
+        }
+        this.windowNanos = windowMicros * 1000;
+    }
+
+    /**
+     * Upper bound on the rows written by a single call to run().
+     */
+    public void setRowsPerRun(int rowsPerRun) {
+        if (rowsPerRun < 1) {
+            throw new IllegalArgumentException("rowsPerRun must be positive: " + rowsPerRun);
+        }
+        this.rowsPerRun = rowsPerRun;
+    }
+
+    @Override
+    public void startup() {
+        try {
+            ColumnWriter[] plan = new ColumnWriter[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                plan[i] = buildUserColumnWriter(columns[i], writer.valueLoc(columns[i]), writer.isNullLoc(columns[i]));
+            }
+            writer.setPlan(plan);
+
+            statements = new PreparedStatement[markersLog2(maxBatch) + 1];
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = conn.prepareStatement(sql(1 << i));
+            }
+            correlationIds = new long[maxBatch];
+            keys = new long[maxBatch];
+            rowCounts = new int[maxBatch];
+        } catch (Exception e) {
+            logger.error("BatchLookupStage.startup(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    String sql(int keys) {
+        StringBuilder sql = new StringBuilder(sqlPrefix.length() + sqlSuffix.length() + 2 * keys + 1);
+        sql.append(sqlPrefix).append('(');
+        for (int i = 0; i < keys; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').append(sqlSuffix).toString();
+    }
+
+    /**
+     * Maps one column onto its response field, vendors override for driver
+     * specific value classes as in JdbcSourceStage.
+     */
+    protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+        return UserColumnWriters.writer(column, valueLoc, isNullLoc);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (state == FAILED && !failBatch()) {
+                return;
+            }
+            int rows = rowsPerRun;
+            while (true) {
+                if (state == COLLECTING) {
+                    collect();
+                    if (pending == 0) {
+                        if (requestsDone) {
+                            requestShutdown();
+                        }
+                        return;
+                    }
+                    if (pending < maxBatch && !requestsDone && System.nanoTime() - firstPending < windowNanos) {
+                        return;
+                    }
+                    state = ROWS;
+                    execute();
+                }
+                if (state == ROWS) {
+                    if (fanout < 0) {
+                        if (--rows < 0) {
+                            return;
+                        }
+                        if (!rs.next()) {
+                            closeResultSet();
+                            nextDone = 0;
+                            state = DONE;
+                            continue;
+                        }
+                        readRowKey();
+                        fanout = 0;
+                    }
+                    // the row goes to every request for its key
+                    for (; fanout < pending; fanout++) {
+                        if (matches(fanout)) {
+                            if (!Pipe.roomToLowLevelWrite(responses, writer.room)) {
+                                return;
+                            }
+                            writer.writeRow(rs, correlationIds[fanout]);
+                            rowCounts[fanout]++;
+                        }
+                    }
+                    fanout = -1;
+                } else {
+                    for (; nextDone < pending; nextDone++) {
+                        if (!Pipe.roomToLowLevelWrite(responses, writer.room)) {
+                            return;
+                        }
+                        writer.writeDone(correlationIds[nextDone], rowCounts[nextDone], false);
+                    }
+                    pending = 0;
+                    state = COLLECTING;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("BatchLookupStage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            closeResultSet();
+            if (state == COLLECTING) {
+                return; // nothing was sent for the batch yet, it goes out as usual
+            }
+            if (state != DONE) {
+                nextDone = 0;
+            }
+            state = FAILED;
+            failBatch();
+        }
+    }
+
+    /**
+     * Ends the requests of the batch still without a Done with a failed Done,
+     * then goes back to collecting. Returns false when the output pipe is full.
+     */
+    private boolean failBatch() {
+        if (fanout >= 0) {
+            writer.abandonRow(correlationIds[fanout]);
+            fanout = -1;
+        }
+        for (; nextDone < pending; nextDone++) {
+            if (!Pipe.roomToLowLevelWrite(responses, writer.room)) {
+                return false;
+            }
+            writer.writeDone(correlationIds[nextDone], rowCounts[nextDone], true);
+        }
+        pending = 0;
+        state = COLLECTING;
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        PipeWriter.publishEOF(responses);
+        closeResultSet();
+        if (statements != null) {
+            for (PreparedStatement stmt : statements) {
+                try {
+                    if (stmt != null) {
+                        stmt.close();
+                    }
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    private void closeResultSet() {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException e) {
+        } finally {
+            rs = null;
+        }
+    }
+
+    /**
+     * Takes the waiting requests into the batch, up to maxBatch.
+     */
+    private void collect() {
+        while (pending < maxBatch && !requestsDone && PipeReader.tryReadFragment(requests)) {
+            if (PipeReader.isNewMessage(requests)) {
+                int msgLoc = PipeReader.getMsgIdx(requests);
+                if (msgLoc < 0) {
+                    requestsDone = true;
+                } else if (msgLoc != requestLoc) {
+                    PipeReader.releaseReadLock(requests);
+                    throw new IllegalStateException("BatchLookupStage got template " + Pipe.from(requests).fieldIdScript[msgLoc]);
+                } else {
+                    if (pending == 0) {
+                        firstPending = System.nanoTime();
+                    }
+                    correlationIds[pending] = readInteger(correlationKind, correlationLoc);
+                    rowCounts[pending] = 0;
+                    keys[pending] = readInteger(keyKind, keyLoc);
+                    pending++;
+                }
+            }
+            PipeReader.releaseReadLock(requests);
+        }
+    }
+
+    private long readInteger(int kind, int loc) {
+        switch (kind) {
+        case LookupStage.BIND_UINT:
+            return PipeReader.readInt(requests, loc) & 0xFFFFFFFFL;
+        case LookupStage.BIND_INT:
+            return PipeReader.readInt(requests, loc);
+        default:
+            return PipeReader.readLong(requests, loc);
+        }
+    }
+
+    /**
+     * Binds the pending keys to the smallest statement that holds them.
+     */
+    private void execute() throws SQLException {
+        int size = markersLog2(pending);
+        PreparedStatement stmt = statements[size];
+        int markers = 1 << size;
+        for (int i = 0; i < markers; i++) {
+            stmt.setLong(i + 1, keys[Math.min(i, pending - 1)]);
+        }
+        rs = stmt.executeQuery();
+        fanout = -1;
+    }
+
+    private void readRowKey() throws SQLException {
+        rowKey = rs.getLong(keyIndex);
+        rowKeyIsNull = rs.wasNull();
+    }
+
+    private boolean matches(int request) {
+        return !rowKeyIsNull && rowKey == keys[request];
+    }
+}
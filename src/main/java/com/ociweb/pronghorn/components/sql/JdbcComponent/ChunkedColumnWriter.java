@@ -0,0 +1,61 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.Pipe;
+
+/**
+ * A column whose value is written as a sequence of messages rather than one,
+ * so a LOB never has to be held in memory or in the pipe all at once.
+ *
+ * A non null value is a NamedInt64 header (BLOB_HEADER_NAME or CLOB_HEADER_NAME,
+ * value = length in bytes or chars) followed by ByteArray or UTF8 chunks until
+ * that length has been sent; only the first chunk carries the column name. A
+ * zero length value still has one empty chunk. Null is the usual nullable
+ * message.
+ *
+ * The stage calls writeChunk once per message, checking for room in between,
+ * and moves on to the next column when it returns true. The open stream is
+ * kept here between calls, which is the resumable part of the row position.
+ */
+public abstract class ChunkedColumnWriter extends ColumnWriter {
+    public static final String BLOB_HEADER_NAME = "**BLOB**";
+    public static final String CLOB_HEADER_NAME = "**CLOB**";
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    protected int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    protected ChunkedColumnWriter(Column column, String columnName) {
+        super(column, columnName);
+    }
+
+    /**
+     * Bytes per chunk message. Keep it within the variable length the pipe was
+     * configured for. Must be set before the first row.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 4) {
+            throw new IllegalArgumentException("LOB chunk size too small: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Writes the next message of this column's value.
+     *
+     * @return true once the whole value has been written
+     */
+    public abstract boolean writeChunk(ResultSet rs, Pipe ring) throws SQLException, IOException;
+
+    /**
+     * Writes the whole value without checking for room between chunks.
+     */
+    @Override
+    public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+        while (!writeChunk(rs, ring)) {
+        }
+    }
+}
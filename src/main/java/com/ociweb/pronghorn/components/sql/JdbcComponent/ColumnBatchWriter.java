@@ -0,0 +1,603 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.NotImplementedException;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.ColumnBatch;
+import com.ociweb.pronghorn.pipe.Pipe;
+
+/**
+ * Write side of the columnar batch mode: rows are appended column by column
+ * into primitive arrays, and every batchRows rows the whole batch is encoded
+ * in the ColumnBatch layout and sent as one NamedByteArray message. The arrays
+ * and the encode buffer are allocated once and reused for every batch.
+ */
+public class ColumnBatchWriter {
+
+    /**
+     * One column of the batch, built by the factories below. The default mapping
+     * is column(); vendors map driver specific types onto the other factories.
+     */
+    public abstract static class BatchColumn {
+        public final Column column;
+        public final int index;
+        public final int kind;
+        protected final long[] nulls;
+
+        protected BatchColumn(Column column, int kind, int batchRows) {
+            this.column = column;
+            this.index = column.index;
+            this.kind = kind;
+            this.nulls = new long[ColumnBatch.bitmapSize(batchRows) >>> 3];
+        }
+
+        protected final void setNull(int row, boolean isNull) {
+            if (isNull) {
+                nulls[row >>> 6] |= 1L << (row & 63);
+            }
+        }
+
+        void clear() {
+            Arrays.fill(nulls, 0);
+        }
+
+        int scale() {
+            return 0;
+        }
+
+        /**
+         * Reads the current row of rs into row of the batch.
+         */
+        public abstract void read(ResultSet rs, int row) throws SQLException, IOException;
+
+        abstract int valuesSize(int rows);
+
+        abstract void encodeValues(ByteBuffer out, int rows);
+
+        int dataSize(int rows) {
+            return 0;
+        }
+
+        void encodeData(ByteBuffer out, int rows) {
+        }
+    }
+
+    private final BatchColumn[] columns;
+    private final int batchRows;
+    private int rows = 0;
+    private final int[] offsets; // nulls, values and data offset of each column
+    private byte[] encoded = new byte[0];
+
+    public ColumnBatchWriter(BatchColumn[] columns, int batchRows) {
+        this.columns = columns;
+        this.batchRows = batchRows;
+        this.offsets = new int[columns.length * 3];
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public boolean isFull() {
+        return rows == batchRows;
+    }
+
+    public void append(ResultSet rs) throws SQLException, IOException {
+        for (BatchColumn column : columns) {
+            column.read(rs, rows);
+        }
+        rows++;
+    }
+
+    /**
+     * Encodes the rows appended so far, writes them as one message and starts
+     * the next batch. The caller checks for room first. A batch too long for the
+     * pipe's variable length fails with an IllegalStateException before anything
+     * is written.
+     */
+    public void publish(Pipe ring) {
+        int length = encode();
+        if (length > ring.maxAvgVarLen) {
+            throw new IllegalStateException("A batch of " + rows + " rows encodes to " + length + " bytes, more than the output pipe's variable length "
+                    + ring.maxAvgVarLen + "; lower batchRows or give the pipe a larger blob ring");
+        }
+        PrimitiveMetaMessageWriter.writeByteArrayMessage(ring, ColumnBatch.BATCH_NAME, encoded, length);
+        for (BatchColumn column : columns) {
+            column.clear();
+        }
+        rows = 0;
+    }
+
+    int encode() {
+        int size = ColumnBatch.align(ColumnBatch.HEADER_SIZE + columns.length * ColumnBatch.DIRECTORY_ENTRY_SIZE);
+        final int[] offsets = this.offsets;
+        for (int i = 0; i < columns.length; i++) {
+            BatchColumn column = columns[i];
+            offsets[i * 3] = size;
+            size += ColumnBatch.bitmapSize(rows);
+            offsets[i * 3 + 1] = size;
+            size += ColumnBatch.align(column.valuesSize(rows));
+            offsets[i * 3 + 2] = size;
+            size += ColumnBatch.align(column.dataSize(rows));
+        }
+        if (encoded.length < size) {
+            encoded = new byte[size];
+        }
+        ByteBuffer out = ByteBuffer.wrap(encoded);
+        out.putInt(rows);
+        out.putInt(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            BatchColumn column = columns[i];
+            out.putInt(column.kind);
+            out.putInt(column.scale());
+            out.putInt(offsets[i * 3]);
+            out.putInt(offsets[i * 3 + 1]);
+            out.putInt(isVariable(column) ? offsets[i * 3 + 2] : -1);
+        }
+        int words = ColumnBatch.bitmapSize(rows) >>> 3;
+        for (int i = 0; i < columns.length; i++) {
+            BatchColumn column = columns[i];
+            out.position(offsets[i * 3]);
+            for (int w = 0; w < words; w++) {
+                out.putLong(column.nulls[w]);
+            }
+            out.position(offsets[i * 3 + 1]);
+            column.encodeValues(out, rows);
+            out.position(offsets[i * 3 + 2]);
+            column.encodeData(out, rows);
+        }
+        return size;
+    }
+
+    /**
+     * The longest a batch of rows rows of columns can encode to, taking 8 bytes
+     * for every value and the declared precision as the longest text or binary
+     * value, at 3 bytes a char for text. Columns without a usable precision
+     * (LOBs, unbounded VARCHAR) count only their offsets, so the batch may still
+     * come out longer; publish() checks each one.
+     */
+    public static long maxEncodedSize(Column[] columns, int rows) {
+        long size = ColumnBatch.align(ColumnBatch.HEADER_SIZE + columns.length * ColumnBatch.DIRECTORY_ENTRY_SIZE);
+        for (Column column : columns) {
+            size += ColumnBatch.bitmapSize(rows) + (rows + 1L) * 8;
+            size += ((long) rows * maxValueWidth(column) + 7) & ~7L;
+        }
+        return size;
+    }
+
+    private static int maxValueWidth(Column column) {
+        if (column.precision <= 0 || column.precision > MAX_DECLARED_WIDTH) {
+            return 0;
+        }
+        switch (column.type) {
+        case Types.CHAR: // 1
+        case Types.VARCHAR: // 12
+        case Types.NCHAR: // -15
+        case Types.NVARCHAR: // -9
+            return column.precision * 3;
+        case Types.BINARY: // -2
+        case Types.VARBINARY: // -3
+            return column.precision;
+        default:
+            return 0;
+        }
+    }
+
+    // larger declared widths are taken as unbounded
+    private static final int MAX_DECLARED_WIDTH = 1 << 20;
+
+    private static boolean isVariable(BatchColumn column) {
+        return column.kind == ColumnBatch.BYTES || column.kind == ColumnBatch.UTF8;
+    }
+
+    /**
+     * Default mapping from java.sql.Types onto a batch column, the same value
+     * encodings as the typed mode.
+     */
+    public static BatchColumn column(Column column, int batchRows) {
+        switch (column.type) {
+        case Types.BIT: // -7
+        case Types.BOOLEAN: // 16
+            return booleanColumn(column, batchRows);
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+            return intColumn(column, batchRows);
+        case Types.BIGINT: // -5
+            return longColumn(column, batchRows);
+        case Types.REAL: // 7
+            return floatColumn(column, batchRows);
+        case Types.FLOAT: // 6
+        case Types.DOUBLE: // 8
+            return doubleColumn(column, batchRows);
+        case Types.NUMERIC: // 2
+        case Types.DECIMAL: // 3
+            return decimalColumn(column, batchRows);
+        case Types.DATE: // 91
+        case Types.TIME: // 92
+        case Types.TIMESTAMP: // 93
+            return dateTimeColumn(column, batchRows);
+        case Types.CHAR: // 1
+        case Types.VARCHAR: // 12
+        case Types.LONGVARCHAR: // -1
+        case Types.NCHAR: // -15
+        case Types.NVARCHAR: // -9
+        case Types.LONGNVARCHAR: // -16
+        case Types.CLOB: // 2005
+        case Types.NCLOB: // 2011
+            return utf8Column(column, batchRows);
+        case Types.BINARY: // -2
+        case Types.VARBINARY: // -3
+        case Types.LONGVARBINARY: // -4
+        case Types.BLOB: // 2004
+            return bytesColumn(column, batchRows);
+        default:
+            throw new NotImplementedException(column.typeName + "/" + column.type + " not implemented in batch mode for column " + column.index + "/" + column.name);
+        } // switch on column type
+    }
+
+    public static BatchColumn intColumn(Column column, int batchRows) {
+        final int[] values = new int[batchRows];
+        return new BatchColumn(column, ColumnBatch.INT, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                values[row] = rs.getInt(index);
+                setNull(row, rs.wasNull());
+            }
+
+            @Override
+            int valuesSize(int rows) {
+                return rows * 4;
+            }
+
+            @Override
+            void encodeValues(ByteBuffer out, int rows) {
+                out.asIntBuffer().put(values, 0, rows);
+            }
+        };
+    }
+
+    public static BatchColumn longColumn(Column column, int batchRows) {
+        return new LongColumn(column, ColumnBatch.LONG, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                values[row] = rs.getLong(index);
+                setNull(row, rs.wasNull());
+            }
+        };
+    }
+
+    public static BatchColumn dateTimeColumn(Column column, int batchRows) {
+        return new LongColumn(column, ColumnBatch.LONG, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                java.util.Date value;
+                switch (column.type) {
+                case Types.DATE: // 91
+                    value = rs.getDate(index);
+                    break;
+                case Types.TIME: // 92
+                    value = rs.getTime(index);
+                    break;
+                default:
+                    value = rs.getTimestamp(index);
+                    break;
+                }
+                values[row] = (value == null) ? 0 : value.getTime();
+                setNull(row, value == null);
+            }
+        };
+    }
+
+    /**
+     * The mantissa at one scale per batch: the declared scale, raised to the
+     * largest scale of a value in the batch, so computed columns (SUM, AVG,
+     * NUMERIC with no declared scale) are never rounded. Values with a smaller
+     * scale are multiplied up when the batch is encoded; one that no longer fits
+     * in 64 bits fails the batch with an ArithmeticException.
+     */
+    public static BatchColumn decimalColumn(Column column, int batchRows) {
+        final int[] scales = new int[batchRows];
+        final int declaredScale = (column.scale >= 0 && column.scale < POW10.length) ? column.scale : 0;
+        return new LongColumn(column, ColumnBatch.DECIMAL, batchRows) {
+            private int batchScale = declaredScale;
+
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                BigDecimal value = rs.getBigDecimal(index);
+                if (value == null) {
+                    values[row] = 0;
+                    scales[row] = batchScale;
+                    setNull(row, true);
+                    return;
+                }
+                if (value.unscaledValue().bitLength() > 63) {
+                    value = value.stripTrailingZeros();
+                }
+                if (value.unscaledValue().bitLength() > 63) {
+                    throw new ArithmeticException("Decimal " + value + " does not fit in a 64 bit mantissa for column " + column);
+                }
+                values[row] = value.unscaledValue().longValue();
+                scales[row] = value.scale();
+                batchScale = Math.max(batchScale, value.scale());
+            }
+
+            @Override
+            int scale() {
+                return batchScale;
+            }
+
+            @Override
+            void encodeValues(ByteBuffer out, int rows) {
+                for (int row = 0; row < rows; row++) {
+                    values[row] = rescale(values[row], batchScale - scales[row]);
+                    scales[row] = batchScale;
+                }
+                super.encodeValues(out, rows);
+            }
+
+            @Override
+            void clear() {
+                super.clear();
+                batchScale = declaredScale;
+            }
+
+            private long rescale(long mantissa, int digits) {
+                if (digits == 0 || mantissa == 0) {
+                    return mantissa;
+                }
+                if (digits < 0 || digits >= POW10.length || mantissa > Long.MAX_VALUE / POW10[digits] || mantissa < -Long.MAX_VALUE / POW10[digits]) {
+                    throw new ArithmeticException("Decimal " + BigDecimal.valueOf(mantissa, batchScale - digits) + " does not fit in a 64 bit mantissa at scale " + batchScale + " for column " + column);
+                }
+                return mantissa * POW10[digits];
+            }
+        };
+    }
+
+    private static final long[] POW10 = new long[19];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    public static BatchColumn floatColumn(Column column, int batchRows) {
+        final float[] values = new float[batchRows];
+        return new BatchColumn(column, ColumnBatch.FLOAT, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                values[row] = rs.getFloat(index);
+                setNull(row, rs.wasNull());
+            }
+
+            @Override
+            int valuesSize(int rows) {
+                return rows * 4;
+            }
+
+            @Override
+            void encodeValues(ByteBuffer out, int rows) {
+                out.asFloatBuffer().put(values, 0, rows);
+            }
+        };
+    }
+
+    public static BatchColumn doubleColumn(Column column, int batchRows) {
+        final double[] values = new double[batchRows];
+        return new BatchColumn(column, ColumnBatch.DOUBLE, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                values[row] = rs.getDouble(index);
+                setNull(row, rs.wasNull());
+            }
+
+            @Override
+            int valuesSize(int rows) {
+                return rows * 8;
+            }
+
+            @Override
+            void encodeValues(ByteBuffer out, int rows) {
+                out.asDoubleBuffer().put(values, 0, rows);
+            }
+        };
+    }
+
+    public static BatchColumn booleanColumn(Column column, int batchRows) {
+        final byte[] values = new byte[batchRows];
+        return new BatchColumn(column, ColumnBatch.BOOLEAN, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException {
+                values[row] = (byte) (rs.getBoolean(index) ? 1 : 0);
+                setNull(row, rs.wasNull());
+            }
+
+            @Override
+            int valuesSize(int rows) {
+                return rows;
+            }
+
+            @Override
+            void encodeValues(ByteBuffer out, int rows) {
+                out.put(values, 0, rows);
+            }
+        };
+    }
+
+    public static BatchColumn bytesColumn(Column column, int batchRows) {
+        return new VariableColumn(column, ColumnBatch.BYTES, batchRows) {
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException, IOException {
+                InputStream in = rs.getBinaryStream(index);
+                if (in == null) {
+                    setNull(row, true);
+                } else {
+                    try {
+                        int n;
+                        while ((n = in.read(reserve(1), length, data.length - length)) >= 0) {
+                            length += n;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                ends[row] = length;
+            }
+        };
+    }
+
+    /**
+     * Text is encoded to UTF-8 straight from the driver's Reader into the
+     * column's data array.
+     */
+    public static BatchColumn utf8Column(Column column, int batchRows) {
+        return new VariableColumn(column, ColumnBatch.UTF8, batchRows) {
+            private final char[] chars = new char[1024];
+            private char highSurrogate = 0;
+
+            @Override
+            public void read(ResultSet rs, int row) throws SQLException, IOException {
+                Reader in = rs.getCharacterStream(index);
+                if (in == null) {
+                    setNull(row, true);
+                } else {
+                    try {
+                        int n;
+                        while ((n = in.read(chars, 0, chars.length)) >= 0) {
+                            encode(n);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    if (highSurrogate != 0) {
+                        // unpaired at the end of the value
+                        putCodePoint(reserve(3), highSurrogate);
+                        highSurrogate = 0;
+                    }
+                }
+                ends[row] = length;
+            }
+
+            private void encode(int n) {
+                // at most 3 bytes a char, plus a high surrogate held over from the last read
+                byte[] data = reserve(n * 3 + 3);
+                for (int i = 0; i < n; i++) {
+                    char c = chars[i];
+                    if (highSurrogate != 0) {
+                        char high = highSurrogate;
+                        highSurrogate = 0;
+                        if (Character.isLowSurrogate(c)) {
+                            putCodePoint(data, Character.toCodePoint(high, c));
+                            continue;
+                        }
+                        putCodePoint(data, high);
+                    }
+                    if (c < 0x80) {
+                        data[length++] = (byte) c;
+                    } else if (Character.isHighSurrogate(c)) {
+                        highSurrogate = c;
+                    } else {
+                        putCodePoint(data, c);
+                    }
+                }
+            }
+
+            private void putCodePoint(byte[] data, int cp) {
+                if (cp < 0x80) {
+                    data[length++] = (byte) cp;
+                } else if (cp < 0x800) {
+                    data[length++] = (byte) (0xC0 | (cp >> 6));
+                    data[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (cp < 0x10000) {
+                    data[length++] = (byte) (0xE0 | (cp >> 12));
+                    data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    data[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    data[length++] = (byte) (0xF0 | (cp >> 18));
+                    data[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    data[length++] = (byte) (0x80 | (cp & 0x3F));
+                }
+            }
+        };
+    }
+
+    private abstract static class LongColumn extends BatchColumn {
+        protected final long[] values;
+
+        LongColumn(Column column, int kind, int batchRows) {
+            super(column, kind, batchRows);
+            this.values = new long[batchRows];
+        }
+
+        @Override
+        int valuesSize(int rows) {
+            return rows * 8;
+        }
+
+        @Override
+        void encodeValues(ByteBuffer out, int rows) {
+            out.asLongBuffer().put(values, 0, rows);
+        }
+    }
+
+    /**
+     * Values appended back to back into one data array that grows to the
+     * largest batch seen; ends[row] is the end of row's value.
+     */
+    private abstract static class VariableColumn extends BatchColumn {
+        protected final int[] ends;
+        protected byte[] data = new byte[1024];
+        protected int length = 0;
+
+        VariableColumn(Column column, int kind, int batchRows) {
+            super(column, kind, batchRows);
+            this.ends = new int[batchRows];
+        }
+
+        protected final byte[] reserve(int size) {
+            if (data.length - length < size) {
+                data = Arrays.copyOf(data, Math.max(length + size, data.length * 2));
+            }
+            return data;
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            length = 0;
+        }
+
+        @Override
+        int valuesSize(int rows) {
+            return (rows + 1) * 4;
+        }
+
+        @Override
+        void encodeValues(ByteBuffer out, int rows) {
+            out.putInt(0);
+            out.asIntBuffer().put(ends, 0, rows);
+        }
+
+        @Override
+        int dataSize(int rows) {
+            return length;
+        }
+
+        @Override
+        void encodeData(ByteBuffer out, int rows) {
+            out.put(data, 0, length);
+        }
+    }
+}
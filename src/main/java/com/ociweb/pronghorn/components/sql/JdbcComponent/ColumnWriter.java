@@ -0,0 +1,124 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.Pipe;
+
+/**
+ * One step of a stage's write plan. Writers are built once per query from the
+ * cached Column metadata, the row loop only calls write() on each in turn.
+ */
+public abstract class ColumnWriter {
+    public final Column column;
+    public final int index;
+    public final String name; // null unless field names are emitted
+    public final boolean isNullable;
+    public final boolean isSigned;
+
+    private byte[] buffer = new byte[0]; // reused for every row, see readBinary
+    private char[] chars = new char[0]; // reused for every row, see readCharacters
+
+    protected ColumnWriter(Column column, String columnName) {
+        this.column = column;
+        this.index = column.index;
+        this.name = columnName;
+        this.isNullable = column.isNullable;
+        this.isSigned = column.isSigned;
+    }
+
+    public abstract void write(ResultSet rs, Pipe ring) throws SQLException, IOException;
+
+    protected Object getObject(ResultSet rs) throws SQLException {
+        try {
+            return rs.getObject(index);
+        } catch (SQLSyntaxErrorException e) {
+            // try to handle org.hsqldb.types.BinaryData as getObject() causes an internal exception
+            if ("[B".equals(column.className))
+                return rs.getBytes(index);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the column through getBinaryStream into this writer's buffer, which
+     * grows to the largest value seen and is then reused, so binary cells do not
+     * allocate a byte[] per row. The bytes are only valid until the next call.
+     *
+     * The value is copied once more into the blob ring: the length has to be
+     * known before the field is written, and the stream may wrap past the end
+     * of the ring, which PipeWriter.writeBytes handles for us.
+     *
+     * @return the length read into buffer(), or -1 for SQL NULL
+     */
+    protected int readBinary(ResultSet rs) throws SQLException, IOException {
+        InputStream in = rs.getBinaryStream(index);
+        if (in == null) {
+            return -1;
+        }
+        try {
+            int length = 0;
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += n;
+                if (length == buffer.length) {
+                    int next = in.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.max(64, buffer.length * 2));
+                    buffer[length++] = (byte) next;
+                }
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    protected final byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Character column counterpart of readBinary: reads getCharacterStream into
+     * a reused char buffer so the value can be encoded straight into the pipe
+     * without a String per cell.
+     *
+     * @return the length read into chars(), or -1 for SQL NULL
+     */
+    protected int readCharacters(ResultSet rs) throws SQLException, IOException {
+        Reader in = rs.getCharacterStream(index);
+        if (in == null) {
+            return -1;
+        }
+        try {
+            int length = 0;
+            int n;
+            while ((n = in.read(chars, length, chars.length - length)) >= 0) {
+                length += n;
+                if (length == chars.length) {
+                    int next = in.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    chars = Arrays.copyOf(chars, Math.max(64, chars.length * 2));
+                    chars[length++] = (char) next;
+                }
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    protected final char[] chars() {
+        return chars;
+    }
+}
@@ -0,0 +1,253 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.pipe.token.TokenBuilder;
+import com.ociweb.pronghorn.pipe.token.TypeMask;
+
+/**
+ * The fields of a one-fragment message, built once from the template, for
+ * moving fragments without decoding them: ints and longs as slab values, text
+ * and byte vectors as blob bytes, decimals as exponent and mantissa. Fragments
+ * can be copied pipe to pipe, or recorded into a ByteBuffer and written back
+ * to a pipe later.
+ */
+class FragmentPlan {
+    static final int COPY_INT = 0;
+    static final int COPY_LONG = 1;
+    static final int COPY_BYTES = 2;
+    static final int COPY_DECIMAL = 3;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final int messageLoc;
+    final int[] locs;
+    final int[] kinds;
+    final int[] types;
+
+    FragmentPlan(FieldReferenceOffsetManager FROM, int messageLoc) {
+        this.messageLoc = messageLoc;
+        int start = messageLoc + 1;
+        int end = messageLoc + FROM.fragScriptSize[messageLoc];
+        int[] locs = new int[end - start];
+        int[] kinds = new int[end - start];
+        int[] types = new int[end - start];
+        int fields = 0;
+        for (int i = start; i < end; i++) {
+            int type = TokenBuilder.extractType(FROM.tokens[i]);
+            locs[fields] = lookupFieldLocator(FROM.fieldNameScript[i], messageLoc, FROM);
+            types[fields] = type;
+            kinds[fields++] = copyKind(type, FROM.fieldNameScript[i]);
+            if ((type & ~1) == TypeMask.Decimal) {
+                i++; // the mantissa is the next script entry
+            }
+        }
+        this.locs = Arrays.copyOf(locs, fields);
+        this.kinds = Arrays.copyOf(kinds, fields);
+        this.types = Arrays.copyOf(types, fields);
+    }
+
+    private FragmentPlan(int messageLoc, int[] locs, int[] kinds, int[] types) {
+        this.messageLoc = messageLoc;
+        this.locs = locs;
+        this.kinds = kinds;
+        this.types = types;
+    }
+
+    /**
+     * The same plan without the fields at excluded, for a caller that writes
+     * those itself.
+     */
+    FragmentPlan without(int... excluded) {
+        int[] locs = new int[this.locs.length];
+        int[] kinds = new int[this.locs.length];
+        int[] types = new int[this.locs.length];
+        int fields = 0;
+        for (int f = 0; f < this.locs.length; f++) {
+            boolean keep = true;
+            for (int loc : excluded) {
+                keep &= (this.locs[f] != loc);
+            }
+            if (keep) {
+                locs[fields] = this.locs[f];
+                kinds[fields] = this.kinds[f];
+                types[fields++] = this.types[f];
+            }
+        }
+        return new FragmentPlan(messageLoc, Arrays.copyOf(locs, fields), Arrays.copyOf(kinds, fields), Arrays.copyOf(types, fields));
+    }
+
+    /**
+     * A plan for every message of the template, indexed by message LOC; null
+     * where no message starts.
+     */
+    static FragmentPlan[] plans(FieldReferenceOffsetManager FROM) {
+        FragmentPlan[] plans = new FragmentPlan[FROM.fieldIdScript.length];
+        for (int loc : FROM.messageStarts) {
+            plans[loc] = new FragmentPlan(FROM, loc);
+        }
+        return plans;
+    }
+
+    private static int copyKind(int type, String name) {
+        switch (type & ~1) { // ignore optional
+        case TypeMask.IntegerUnsigned:
+        case TypeMask.IntegerSigned:
+            return COPY_INT;
+        case TypeMask.LongUnsigned:
+        case TypeMask.LongSigned:
+            return COPY_LONG;
+        case TypeMask.TextASCII:
+        case TypeMask.TextUTF8:
+        case TypeMask.ByteVector:
+            return COPY_BYTES;
+        case TypeMask.Decimal:
+            return COPY_DECIMAL;
+        default:
+            throw new IllegalArgumentException("Can not copy field " + name + " of type " + type);
+        }
+    }
+
+    /**
+     * Copies the fields of the fragment open on source into the fragment open on
+     * target.
+     */
+    void copy(Pipe source, Pipe target) {
+        final int[] locs = this.locs;
+        final int[] kinds = this.kinds;
+        for (int f = 0; f < locs.length; f++) {
+            int loc = locs[f];
+            switch (kinds[f]) {
+            case COPY_INT:
+                PipeWriter.writeInt(target, loc, PipeReader.readInt(source, loc));
+                break;
+            case COPY_LONG:
+                PipeWriter.writeLong(target, loc, PipeReader.readLong(source, loc));
+                break;
+            case COPY_BYTES:
+                PipeReader.copyBytes(source, target, loc, loc);
+                break;
+            default:
+                PipeWriter.writeDecimal(target, loc, PipeReader.readDecimalExponent(source, loc), PipeReader.readDecimalMantissa(source, loc));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes zero or empty into every field of the fragment open on target, so
+     * a fragment abandoned part way can still be published well formed.
+     */
+    void writeEmpty(Pipe target) {
+        final int[] locs = this.locs;
+        final int[] kinds = this.kinds;
+        for (int f = 0; f < locs.length; f++) {
+            int loc = locs[f];
+            switch (kinds[f]) {
+            case COPY_INT:
+                PipeWriter.writeInt(target, loc, 0);
+                break;
+            case COPY_LONG:
+                PipeWriter.writeLong(target, loc, 0);
+                break;
+            case COPY_BYTES:
+                PipeWriter.writeBytes(target, loc, EMPTY, 0, 0);
+                break;
+            default:
+                PipeWriter.writeDecimal(target, loc, 0, 0);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Bytes record() needs for the fragment open on source.
+     */
+    int recordSize(Pipe source) {
+        int size = 4; // the message LOC
+        for (int f = 0; f < locs.length; f++) {
+            switch (kinds[f]) {
+            case COPY_INT:
+                size += 4;
+                break;
+            case COPY_LONG:
+                size += 8;
+                break;
+            case COPY_BYTES:
+                size += 4 + Math.max(0, PipeReader.readDataLength(source, locs[f]));
+                break;
+            default:
+                size += 12;
+                break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Appends the fragment open on source: the message LOC, then each field.
+     * scratch must hold the longest byte field.
+     */
+    void record(Pipe source, ByteBuffer target, byte[] scratch) {
+        target.putInt(messageLoc);
+        final int[] locs = this.locs;
+        final int[] kinds = this.kinds;
+        for (int f = 0; f < locs.length; f++) {
+            int loc = locs[f];
+            switch (kinds[f]) {
+            case COPY_INT:
+                target.putInt(PipeReader.readInt(source, loc));
+                break;
+            case COPY_LONG:
+                target.putLong(PipeReader.readLong(source, loc));
+                break;
+            case COPY_BYTES:
+                int length = Math.max(0, PipeReader.readDataLength(source, loc));
+                PipeReader.readBytes(source, loc, scratch, 0);
+                target.putInt(length);
+                target.put(scratch, 0, length);
+                break;
+            default:
+                target.putInt(PipeReader.readDecimalExponent(source, loc));
+                target.putLong(PipeReader.readDecimalMantissa(source, loc));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the fields of a recorded fragment, positioned after its message
+     * LOC, into the fragment open on target.
+     */
+    void replay(ByteBuffer source, Pipe target, byte[] scratch) {
+        final int[] locs = this.locs;
+        final int[] kinds = this.kinds;
+        for (int f = 0; f < locs.length; f++) {
+            int loc = locs[f];
+            switch (kinds[f]) {
+            case COPY_INT:
+                PipeWriter.writeInt(target, loc, source.getInt());
+                break;
+            case COPY_LONG:
+                PipeWriter.writeLong(target, loc, source.getLong());
+                break;
+            case COPY_BYTES:
+                int length = source.getInt();
+                source.get(scratch, 0, length);
+                PipeWriter.writeBytes(target, loc, scratch, 0, length);
+                break;
+            default:
+                int exponent = source.getInt();
+                PipeWriter.writeDecimal(target, loc, exponent, source.getLong());
+                break;
+            }
+        }
+    }
+}
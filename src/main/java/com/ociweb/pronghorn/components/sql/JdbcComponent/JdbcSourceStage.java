@@ -0,0 +1,601 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeBeginGroupMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeEndGroupMessage;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
+import com.ociweb.pronghorn.components.sql.DBUtil.Stmt;
+import com.ociweb.pronghorn.components.sql.DBUtil.TemplateGenerator;
+import com.ociweb.pronghorn.components.sql.DBUtil.Watermark;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Cooperative JDBC source. Each call to run() advances the cursor by at most
+ * rowsPerRun rows and returns early when the output pipe has no room for the
+ * next fragment, so many queries can share a small scheduler thread pool and a
+ * slow consumer leaves the stage idle rather than spinning. In meta mode a row
+ * is many messages; the stage remembers the next column and resumes the row
+ * on the following call, so rows wider than the pipe still make progress. When the result
+ * set is exhausted the stage requests shutdown and publishes EOF on the pipe,
+ * unless it polls for new rows or pages through a table, see setPolling and
+ * setPaging.
+ *
+ * Three output modes: meta messages (one message per cell), a user supplied
+ * template (one fragment per row, fields matched to columns by name) and row
+ * mode, which is the user mode with the template derived from the query by
+ * TemplateGenerator.rowFROM. Meta mode can instead pack rows column-major into
+ * batches, see setBatchRows.
+ *
+ * Statements prepared by the stage use the vendor's FetchPolicy so the driver
+ * streams the result; for a caller's PreparedStatement use FetchPolicy.prepare.
+ *
+ * Vendor stages extend this class and supply the column type mapping, which is
+ * compiled once into an array of ColumnWriters when the stage starts.
+ */
+public abstract class JdbcSourceStage extends PronghornStage {
+    public static final int DEFAULT_ROWS_PER_RUN = 256;
+    // name of the NamedUInt32 (value = column count) that opens a schema header
+    public static final String SCHEMA_HEADER_NAME = "**SCHEMA**";
+
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(JdbcSourceStage.class);
+    protected final Pipe ring;
+    protected boolean emitFieldNames = false;
+    protected boolean emitRowMarkers = false;
+    protected boolean emitSchemaHeader = false;
+    protected Stmt stmt = null;
+    protected boolean useMetaMessages = false;
+    protected String message = null;
+    protected FieldReferenceOffsetManager FROM = null;
+
+    private int rowsPerRun = DEFAULT_ROWS_PER_RUN;
+    private int lobChunkSize; // meta mode: defaults to the pipe's variable length
+    private int rowSize; // user mode: the whole row is one fragment
+    private int cellSize; // meta mode: room needed for any one message
+    private int nextColumn = -1; // meta mode: -1 between rows, plan.length when only the end marker is left
+    private ResultSet rs = null;
+    private ColumnWriter[] plan;
+    private int messageLoc = -1;
+    private int headerColumn = NO_HEADER; // next schema header column, -1 for the opening message
+    private static final int NO_HEADER = -2;
+    private int batchRows = 0;
+    private ColumnBatchWriter batch = null;
+    private boolean batchResultsDone = false; // the last batch may still be waiting for room
+    private int[] nullBitmapLocs = null; // user mode, when the template has a row null bitmap
+    private long[] rowNulls = null;
+    private Watermark watermark = null; // polling and paging: the query is re-run for rows after it
+    private long pollInterval = 0;
+    private long nextPoll = 0;
+    private int pageRows = 0; // paging: a page shorter than this is the last one
+    private int pageRowCount = 0;
+    private boolean lastPage = false;
+    private volatile boolean complete = false; // read to the end, not stopped or failed
+    // watermarks of published pages, oldest first, waiting for the consumer to pass them
+    private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<Checkpoint>();
+
+    protected JdbcSourceStage(GraphManager gm, Connection conn, String sql, FetchPolicy policy, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
+        this(gm, new Stmt(conn, sql, policy), emitFieldNames, emitRowMarkers, ring);
+    }
+
+    protected JdbcSourceStage(GraphManager gm, PreparedStatement stmt, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
+        this(gm, new Stmt(stmt), emitFieldNames, emitRowMarkers, ring);
+    }
+
+    protected JdbcSourceStage(GraphManager gm, Connection conn, String sql, FetchPolicy policy, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
+        this(gm, new Stmt(conn, sql, policy), message, FROM, ring);
+    }
+
+    protected JdbcSourceStage(GraphManager gm, PreparedStatement stmt, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
+        this(gm, new Stmt(stmt), message, FROM, ring);
+    }
+
+    protected JdbcSourceStage(GraphManager gm, Connection conn, String sql, FetchPolicy policy, Pipe ring) throws SQLException {
+        this(gm, new Stmt(conn, sql, policy), TemplateGenerator.ROW_TEMPLATE_NAME, Pipe.from(ring), ring);
+    }
+
+    protected JdbcSourceStage(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+        this(gm, new Stmt(stmt), TemplateGenerator.ROW_TEMPLATE_NAME, Pipe.from(ring), ring);
+    }
+
+    private JdbcSourceStage(GraphManager gm, Stmt stmt, boolean emitFieldNames, boolean emitRowMarkers, Pipe ring) throws SQLException {
+        super(gm, NONE, ring);
+        this.useMetaMessages = true;
+        this.emitFieldNames = emitFieldNames;
+        this.emitRowMarkers = emitRowMarkers;
+        this.stmt = stmt;
+        this.ring = ring;
+        this.cellSize = maxFragmentSize(Pipe.from(ring));
+        this.lobChunkSize = ring.maxAvgVarLen;
+    }
+
+    private JdbcSourceStage(GraphManager gm, Stmt stmt, String message, FieldReferenceOffsetManager FROM, Pipe ring) throws SQLException {
+        super(gm, NONE, ring);
+        this.useMetaMessages = false;
+        this.stmt = stmt;
+        this.ring = ring;
+        this.message = message;
+        this.FROM = FROM;
+        this.messageLoc = lookupTemplateLocator(message, FROM);
+        this.rowSize = FROM.fragDataSize[messageLoc];
+    }
+
+    private static int maxFragmentSize(FieldReferenceOffsetManager from) {
+        int max = 0;
+        for (int size : from.fragDataSize) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    /**
+     * Upper bound on the rows written by a single call to run(). Smaller values
+     * give other stages on the same thread a turn sooner.
+     */
+    public void setRowsPerRun(int rowsPerRun) {
+        if (rowsPerRun < 1) {
+            throw new IllegalArgumentException("rowsPerRun must be positive: " + rowsPerRun);
+        }
+        this.rowsPerRun = rowsPerRun;
+    }
+
+    /**
+     * Meta mode only: write the column names and types once, in a header ahead of
+     * the first row, and send the cells without names. MetaDumper puts the names
+     * back from the header. Must be called before the stage starts.
+     */
+    public void setEmitSchemaHeader(boolean emitSchemaHeader) {
+        if (!useMetaMessages) {
+            throw new IllegalStateException("The schema header is only written in meta message mode");
+        }
+        this.emitSchemaHeader = emitSchemaHeader;
+    }
+
+    /**
+     * Bytes per message when meta mode streams BLOB and CLOB columns. The default
+     * is the variable length the output pipe was configured for, which is also
+     * the largest size allowed, so a LOB of any size goes through a small pipe.
+     */
+    public void setLobChunkSize(int lobChunkSize) {
+        if (lobChunkSize < 4) {
+            throw new IllegalArgumentException("LOB chunk size too small: " + lobChunkSize);
+        }
+        if (lobChunkSize > ring.maxAvgVarLen) {
+            throw new IllegalArgumentException("LOB chunk size " + lobChunkSize + " exceeds the output pipe's variable length " + ring.maxAvgVarLen);
+        }
+        this.lobChunkSize = lobChunkSize;
+    }
+
+    /**
+     * Meta mode only: send rows in column-major batches of up to batchRows rows,
+     * one NamedByteArray message per batch in the ColumnBatch layout, instead of
+     * a message per cell. The pipe's variable length must hold a whole batch,
+     * see ColumnBatchWriter.maxEncodedSize. 0, the default, sends cells. Must be
+     * called before the stage starts.
+     */
+    public void setBatchRows(int batchRows) {
+        if (!useMetaMessages) {
+            throw new IllegalStateException("Batches are only written in meta message mode");
+        }
+        if (batchRows < 0) {
+            throw new IllegalArgumentException("batchRows must not be negative: " + batchRows);
+        }
+        long maxSize = ColumnBatchWriter.maxEncodedSize(stmt.getColumns(), batchRows);
+        if (batchRows > 0 && maxSize > ring.maxAvgVarLen) {
+            throw new IllegalArgumentException("A batch of " + batchRows + " rows may encode to " + maxSize + " bytes, more than the output pipe's variable length " + ring.maxAvgVarLen);
+        }
+        this.batchRows = batchRows;
+    }
+
+    /**
+     * Polls for new rows instead of ending with the result set. The query's first
+     * parameter is bound to the watermark and the query orders by its key, e.g.
+     * "SELECT ... WHERE Id > ? ORDER BY Id"; each time the rows run out the
+     * same statement is executed again once intervalMillis have passed. The
+     * watermark is stored once the consumer has released the rows up to it, so a
+     * row may be sent again after a crash, never skipped. The stage runs until
+     * stop() is called. Must be called before the stage starts.
+     */
+    public void setPolling(Watermark watermark, long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis must not be negative: " + intervalMillis);
+        }
+        this.watermark = watermark;
+        this.pollInterval = intervalMillis;
+        this.pageRows = 0;
+    }
+
+    /**
+     * Exports a table in keyset pages of at most pageRows rows: like setPolling,
+     * with the same "... WHERE Id > ? ORDER BY Id" query, but each page is
+     * limited by Statement.setMaxRows and the next page is read right away. The
+     * first page shorter than pageRows ends the export. Every page is a short
+     * statement of its own, so locks and transactions on the source stay small,
+     * and a restart with the same watermark file resumes after the last page the
+     * consumer acknowledged. Must be called before the stage starts.
+     */
+    public void setPaging(Watermark watermark, int pageRows) {
+        if (pageRows < 1) {
+            throw new IllegalArgumentException("pageRows must be positive: " + pageRows);
+        }
+        this.watermark = watermark;
+        this.pollInterval = 0;
+        this.pageRows = pageRows;
+    }
+
+    public void stop() {
+        requestShutdown();
+    }
+
+    /**
+     * True once the result has been read to its end. A stage that failed or was
+     * stopped publishes EOF all the same, after only part of the rows; set
+     * before that EOF, so a consumer that has read it can tell the two apart.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public void startup() {
+        try {
+            Column[] columns = stmt.getColumns();
+            plan = new ColumnWriter[columns.length];
+            ColumnBatchWriter.BatchColumn[] batchColumns = (batchRows > 0) ? new ColumnBatchWriter.BatchColumn[columns.length] : null;
+            if (!useMetaMessages) {
+                nullBitmapLocs = UserColumnWriters.nullBitmapLocs(messageLoc, FROM, columns.length);
+                rowNulls = (nullBitmapLocs != null) ? new long[nullBitmapLocs.length] : null;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                Column column = columns[i];
+                if (batchColumns != null) {
+                    batchColumns[i] = buildBatchColumn(column, batchRows);
+                } else if (useMetaMessages) {
+                    plan[i] = buildColumnWriter(column, (emitFieldNames && !emitSchemaHeader) ? column.name : null);
+                    if (plan[i] instanceof ChunkedColumnWriter) {
+                        ((ChunkedColumnWriter) plan[i]).setChunkSize(lobChunkSize);
+                    }
+                } else {
+                    // fields are matched to columns by name, nullable columns also need a <name>_IsNull int32
+                    // unless the template has a null bitmap
+                    int valueLoc = lookupFieldLocator(column.name, messageLoc, FROM);
+                    int isNullLoc = (column.isNullable && rowNulls == null) ? lookupFieldLocator(column.name + UserColumnWriters.IS_NULL_SUFFIX, messageLoc, FROM) : -1;
+                    int dictValueLoc = UserColumnWriters.optionalFieldLocator(column.name + UserColumnWriters.DICTIONARY_VALUE_SUFFIX, messageLoc, FROM);
+                    if (dictValueLoc >= 0) {
+                        // a dictionary encoded column, see ColumnEncoding
+                        plan[i] = UserColumnWriters.dictionaryWriter(column, valueLoc, dictValueLoc, isNullLoc);
+                    } else {
+                        plan[i] = buildUserColumnWriter(column, valueLoc, isNullLoc);
+                    }
+                    if (rowNulls != null && plan[i] instanceof UserColumnWriters.UserColumnWriter) {
+                        ((UserColumnWriters.UserColumnWriter) plan[i]).setRowNulls(rowNulls);
+                    }
+                }
+            }
+            batch = (batchColumns != null) ? new ColumnBatchWriter(batchColumns, batchRows) : null;
+            headerColumn = (useMetaMessages && emitSchemaHeader) ? -1 : NO_HEADER;
+            if (watermark != null) {
+                watermark.open(columns);
+                watermark.bind(stmt.getStatement(), 1);
+                if (pageRows > 0) {
+                    stmt.getStatement().setMaxRows(pageRows);
+                }
+            }
+            rs = stmt.getStatement().executeQuery();
+        } catch (Exception e) {
+            logger.error(getClass().getSimpleName() + ".startup(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (rs == null && watermark == null) {
+            return;
+        }
+        try {
+            if (!checkpoints.isEmpty()) {
+                acknowledge();
+            }
+            if (rs == null && !nextQuery()) {
+                return;
+            }
+            if (headerColumn != NO_HEADER && !runSchemaHeader()) {
+                return;
+            }
+            if (batch != null) {
+                runBatchRows();
+            } else if (useMetaMessages) {
+                runMetaRows();
+            } else {
+                runUserRows();
+            }
+        } catch (Exception e) {
+            logger.error(getClass().getSimpleName() + ".run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            closeResultSet();
+            requestShutdown();
+        }
+    }
+
+    /**
+     * Polling and paging: runs the statement again for the rows after the
+     * watermark, when it is time to.
+     */
+    private boolean nextQuery() throws SQLException {
+        if (lastPage) {
+            if (checkpoints.isEmpty()) {
+                complete = true;
+                requestShutdown();
+            }
+            return false;
+        }
+        if (System.currentTimeMillis() < nextPoll) {
+            return false;
+        }
+        watermark.bind(stmt.getStatement(), 1);
+        rs = stmt.getStatement().executeQuery();
+        pageRowCount = 0;
+        return true;
+    }
+
+    /**
+     * Stores the newest checkpoint the consumer has released everything
+     * published before, so a consumer that lags by several pages still moves the
+     * stored watermark along page by page.
+     */
+    private void acknowledge() throws IOException {
+        long tail = Pipe.tailPosition(ring);
+        String passed = null;
+        while (!checkpoints.isEmpty() && tail >= checkpoints.peek().position) {
+            passed = checkpoints.poll().mark;
+        }
+        if (passed != null) {
+            watermark.store(passed);
+        }
+    }
+
+    /**
+     * A watermark and the head position of the pipe when it was taken.
+     */
+    private static class Checkpoint {
+        final long position;
+        final String mark;
+
+        Checkpoint(long position, String mark) {
+            this.position = position;
+            this.mark = mark;
+        }
+    }
+
+    private void rowDone() throws SQLException {
+        if (watermark != null) {
+            watermark.track(rs);
+            pageRowCount++;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            if (!checkpoints.isEmpty()) {
+                acknowledge();
+            }
+        } catch (IOException e) {
+            logger.error(getClass().getSimpleName() + ".shutdown(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+        }
+        PipeWriter.publishEOF(ring);
+        closeResultSet();
+        try {
+            if (stmt != null) {
+                stmt.close();
+                stmt = null;
+            }
+        } catch (SQLException e) {
+        }
+    }
+
+    private void closeResultSet() {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException e) {
+        } finally {
+            rs = null;
+        }
+    }
+
+    /**
+     * NamedUInt32 SCHEMA_HEADER_NAME with the column count, then for each column
+     * in order: NamedInt32 (column name, java.sql.Types), UInt32 precision, Int32
+     * scale, Boolean nullable.
+     */
+    private boolean runSchemaHeader() {
+        Column[] columns = stmt.getColumns();
+        if (headerColumn < 0) {
+            if (!Pipe.roomToLowLevelWrite(ring, cellSize)) {
+                return false;
+            }
+            PrimitiveMetaMessageWriter.writeIntMessage(ring, false, SCHEMA_HEADER_NAME, columns.length, false);
+            headerColumn = 0;
+        }
+        while (headerColumn < columns.length) {
+            if (!Pipe.roomToLowLevelWrite(ring, 4 * cellSize)) {
+                return false;
+            }
+            writeSchemaColumn(columns[headerColumn++]);
+        }
+        headerColumn = NO_HEADER;
+        return true;
+    }
+
+    protected void writeSchemaColumn(Column column) {
+        PrimitiveMetaMessageWriter.writeIntMessage(ring, true, column.name, column.type, false);
+        PrimitiveMetaMessageWriter.writeIntMessage(ring, false, null, column.precision, false);
+        PrimitiveMetaMessageWriter.writeIntMessage(ring, true, null, column.scale, false);
+        PrimitiveMetaMessageWriter.writeBooleanMessage(ring, null, column.isNullable, false);
+    }
+
+    private void endOfResults() {
+        closeResultSet();
+        if (watermark != null) {
+            // everything up to here has been published, it is acknowledged once the consumer's tail passes the head
+            long head = Pipe.headPosition(ring);
+            if (!checkpoints.isEmpty() && checkpoints.peekLast().position == head) {
+                checkpoints.pollLast(); // an empty poll, nothing new to acknowledge
+            }
+            checkpoints.add(new Checkpoint(head, watermark.toString()));
+            batchResultsDone = false;
+            lastPage = (pageRows > 0) && (pageRowCount < pageRows);
+            nextPoll = System.currentTimeMillis() + pollInterval;
+        } else {
+            complete = true;
+            requestShutdown();
+        }
+    }
+
+    private void runUserRows() throws SQLException, IOException {
+        int rows = rowsPerRun;
+        while (--rows >= 0 && Pipe.roomToLowLevelWrite(ring, rowSize)) {
+            if (!rs.next()) {
+                endOfResults();
+                return;
+            }
+            writeUserRow(rs);
+            rowDone();
+        }
+    }
+
+    /**
+     * Appends rows to the batch and publishes it when full. When the pipe has no
+     * room the full batch is held and the cursor is not advanced; the final
+     * partial batch is published before the stage shuts down.
+     */
+    private void runBatchRows() throws SQLException, IOException {
+        int rows = rowsPerRun;
+        while (true) {
+            if (batch.isFull() || (batchResultsDone && batch.rows() > 0)) {
+                if (!Pipe.roomToLowLevelWrite(ring, cellSize)) {
+                    return;
+                }
+                batch.publish(ring);
+            }
+            if (batchResultsDone) {
+                endOfResults();
+                return;
+            }
+            if (--rows < 0) {
+                return;
+            }
+            if (rs.next()) {
+                batch.append(rs);
+                rowDone();
+            } else {
+                batchResultsDone = true;
+            }
+        }
+    }
+
+    /**
+     * Writes cells one message at a time, checking for room before each one. When
+     * the pipe fills mid-row the position is kept in nextColumn and the cursor is
+     * not advanced until the row is complete.
+     */
+    private void runMetaRows() throws SQLException, IOException {
+        final ColumnWriter[] plan = this.plan;
+        int rows = rowsPerRun;
+        while (rows > 0) {
+            if (nextColumn < 0) {
+                if (!Pipe.roomToLowLevelWrite(ring, cellSize)) {
+                    return;
+                }
+                if (!rs.next()) {
+                    endOfResults();
+                    return;
+                }
+                if (emitRowMarkers)
+                    writeBeginGroupMessage(ring, null);
+                nextColumn = 0;
+            }
+            while (nextColumn < plan.length) {
+                if (!Pipe.roomToLowLevelWrite(ring, cellSize)) {
+                    return;
+                }
+                ColumnWriter writer = plan[nextColumn];
+                if (writer instanceof ChunkedColumnWriter) {
+                    // LOBs go one chunk per room check, the open stream is kept in the writer
+                    if (((ChunkedColumnWriter) writer).writeChunk(rs, ring)) {
+                        nextColumn++;
+                    }
+                } else {
+                    writer.write(rs, ring);
+                    nextColumn++;
+                }
+            }
+            if (emitRowMarkers) {
+                if (!Pipe.roomToLowLevelWrite(ring, cellSize)) {
+                    return;
+                }
+                writeEndGroupMessage(ring);
+            }
+            rowDone();
+            nextColumn = -1;
+            rows--;
+        }
+    }
+
+    /**
+     * Maps one column onto its meta message writer. Called once per column when
+     * the stage starts, never from the row loop.
+     */
+    protected abstract ColumnWriter buildColumnWriter(Column column, String columnName) throws SQLException;
+
+    /**
+     * Maps one column onto its batch mode column, see ColumnBatchWriter.column.
+     */
+    protected ColumnBatchWriter.BatchColumn buildBatchColumn(Column column, int batchRows) throws SQLException {
+        return ColumnBatchWriter.column(column, batchRows);
+    }
+
+    protected void writeUserRow(ResultSet rs) throws SQLException, IOException {
+        PrimitiveMetaMessageWriter.beginFragment(ring, messageLoc);
+
+        final long[] rowNulls = this.rowNulls;
+        if (rowNulls != null) {
+            Arrays.fill(rowNulls, 0);
+        }
+        final ColumnWriter[] plan = this.plan;
+        for (int i = 0; i < plan.length; i++) {
+            plan[i].write(rs, ring);
+        }
+        if (rowNulls != null) {
+            for (int i = 0; i < rowNulls.length; i++) {
+                PipeWriter.writeLong(ring, nullBitmapLocs[i], rowNulls[i]);
+            }
+        }
+
+        PipeWriter.publishWrites(ring);
+    }
+
+    /**
+     * Maps one column onto its typed template field. The defaults cover the
+     * standard java.sql.Types; vendors override for driver specific value classes
+     * and fall back to this for everything else.
+     */
+    protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+        return UserColumnWriters.writer(column, valueLoc, isNullLoc);
+    }
+}
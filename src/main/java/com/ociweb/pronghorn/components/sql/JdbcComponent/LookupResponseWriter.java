@@ -0,0 +1,121 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.TemplateGenerator;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+/**
+ * Writes the lookup response templates of TemplateGenerator.lookupFROM: a row
+ * tagged with a correlation ID, and the Done message that closes a request.
+ * The caller checks for room before each write.
+ */
+class LookupResponseWriter {
+    private final Pipe ring;
+    private final FieldReferenceOffsetManager FROM;
+    private final int rowLoc;
+    private final int rowCorrelationLoc;
+    private final int doneLoc;
+    private final int doneCorrelationLoc;
+    private final int doneRowsLoc;
+    private final int doneFailedLoc;
+    final int room; // a row or the Done message
+
+    private final FragmentPlan rowFields; // for abandoning a row part way
+    private boolean rowOpen = false;
+
+    private final int[] nullBitmapLocs;
+    private final long[] rowNulls;
+    private ColumnWriter[] plan;
+
+    LookupResponseWriter(Pipe ring, Column[] columns) {
+        this.ring = ring;
+        this.FROM = Pipe.from(ring);
+        this.rowLoc = lookupTemplateLocator(TemplateGenerator.ROW_TEMPLATE_NAME, FROM);
+        this.rowCorrelationLoc = lookupFieldLocator(TemplateGenerator.CORRELATION_FIELD, rowLoc, FROM);
+        this.doneLoc = lookupTemplateLocator(TemplateGenerator.DONE_TEMPLATE_NAME, FROM);
+        this.doneCorrelationLoc = lookupFieldLocator(TemplateGenerator.CORRELATION_FIELD, doneLoc, FROM);
+        this.doneRowsLoc = lookupFieldLocator(TemplateGenerator.DONE_ROWS_FIELD, doneLoc, FROM);
+        this.doneFailedLoc = lookupFieldLocator(TemplateGenerator.DONE_FAILED_FIELD, doneLoc, FROM);
+        this.rowFields = new FragmentPlan(FROM, rowLoc);
+        this.room = Math.max(FROM.fragDataSize[rowLoc], FROM.fragDataSize[doneLoc]);
+        this.nullBitmapLocs = UserColumnWriters.nullBitmapLocs(rowLoc, FROM, columns.length);
+        this.rowNulls = (nullBitmapLocs != null) ? new long[nullBitmapLocs.length] : null;
+    }
+
+    int valueLoc(Column column) {
+        return lookupFieldLocator(column.name, rowLoc, FROM);
+    }
+
+    int isNullLoc(Column column) {
+        return (column.isNullable && rowNulls == null) ? lookupFieldLocator(column.name + UserColumnWriters.IS_NULL_SUFFIX, rowLoc, FROM) : -1;
+    }
+
+    /**
+     * The column writers, built by the stage on valueLoc and isNullLoc.
+     */
+    void setPlan(ColumnWriter[] plan) {
+        this.plan = plan;
+        if (rowNulls != null) {
+            for (ColumnWriter writer : plan) {
+                if (writer instanceof UserColumnWriters.UserColumnWriter) {
+                    ((UserColumnWriters.UserColumnWriter) writer).setRowNulls(rowNulls);
+                }
+            }
+        }
+    }
+
+    void writeRow(ResultSet rs, long correlationId) throws SQLException, IOException {
+        PrimitiveMetaMessageWriter.beginFragment(ring, rowLoc);
+        rowOpen = true;
+        PipeWriter.writeLong(ring, rowCorrelationLoc, correlationId);
+
+        final long[] rowNulls = this.rowNulls;
+        if (rowNulls != null) {
+            Arrays.fill(rowNulls, 0);
+        }
+        final ColumnWriter[] plan = this.plan;
+        for (int i = 0; i < plan.length; i++) {
+            plan[i].write(rs, ring);
+        }
+        if (rowNulls != null) {
+            for (int i = 0; i < rowNulls.length; i++) {
+                PipeWriter.writeLong(ring, nullBitmapLocs[i], rowNulls[i]);
+            }
+        }
+
+        PipeWriter.publishWrites(ring);
+        rowOpen = false;
+    }
+
+    /**
+     * After writeRow failed part way: publishes the row with empty fields under
+     * correlationId, so the pipe stays well formed. The Done that follows must
+     * be marked failed.
+     */
+    void abandonRow(long correlationId) {
+        if (rowOpen) {
+            rowFields.writeEmpty(ring);
+            PipeWriter.writeLong(ring, rowCorrelationLoc, correlationId);
+            PipeWriter.publishWrites(ring);
+            rowOpen = false;
+        }
+    }
+
+    void writeDone(long correlationId, int rows, boolean failed) {
+        PrimitiveMetaMessageWriter.beginFragment(ring, doneLoc);
+        PipeWriter.writeLong(ring, doneCorrelationLoc, correlationId);
+        PipeWriter.writeInt(ring, doneRowsLoc, rows);
+        PipeWriter.writeInt(ring, doneFailedLoc, failed ? 1 : 0);
+        PipeWriter.publishWrites(ring);
+    }
+}
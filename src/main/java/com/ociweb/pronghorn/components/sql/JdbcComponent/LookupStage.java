@@ -0,0 +1,323 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.pipe.token.TokenBuilder;
+import com.ociweb.pronghorn.pipe.token.TypeMask;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Runs one PreparedStatement per request read from an input pipe, for lookups
+ * and enrichment on a single connection. A request is one fragment: an integer
+ * correlation field and the statement's parameters, the other fields of the
+ * template in order, bound with the primitive setter of each field type. The
+ * rows go out in the lookup response templates of TemplateGenerator.lookupFROM,
+ * each tagged with the request's correlation ID, followed by a Done message
+ * with the row count, so an empty result is answered too.
+ *
+ * Like JdbcSourceStage, each call to run() writes at most rowsPerRun rows and
+ * returns early when the output pipe is full; the next request is only read
+ * when the current result set has been sent. The statement belongs to the
+ * caller and is not closed. Parameters can not be NULL.
+ *
+ * When a query fails, the request being answered gets a Done with
+ * DONE_FAILED_FIELD set after the rows sent so far, so no consumer is left
+ * waiting on its correlation ID, and the stage goes on with the next request.
+ */
+public class LookupStage extends PronghornStage {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LookupStage.class);
+
+    static final int BIND_INT = 0;
+    static final int BIND_UINT = 1;
+    static final int BIND_LONG = 2;
+    static final int BIND_ASCII = 3;
+    static final int BIND_UTF8 = 4;
+    static final int BIND_BYTES = 5;
+    static final int BIND_DECIMAL = 6;
+
+    private final PreparedStatement stmt;
+    private final Pipe requests;
+    private final Pipe responses;
+    private final Column[] columns;
+
+    private final int requestLoc;
+    private final int correlationLoc;
+    private final int correlationKind;
+    private final int[] paramLocs;
+    private final int[] paramKinds;
+
+    private final LookupResponseWriter writer;
+    private int rowsPerRun = JdbcSourceStage.DEFAULT_ROWS_PER_RUN;
+
+    private final StringBuilder text = new StringBuilder();
+
+    // the request being answered
+    private ResultSet rs = null;
+    private long correlationId;
+    private int rowCount;
+    private boolean answering = false; // taken from the pipe, Done not sent yet
+    private boolean failed = false; // its failed Done is waiting for room
+
+    /**
+     * @param requestMessage name of the request template in the requests pipe
+     * @param correlationField integer field of the request, echoed in the responses
+     * @param responses pipe with the TemplateGenerator.lookupFROM templates
+     */
+    public LookupStage(GraphManager gm, PreparedStatement stmt, Pipe requests, String requestMessage, String correlationField, Pipe responses) throws SQLException {
+        super(gm, requests, responses);
+        this.stmt = stmt;
+        this.requests = requests;
+        this.responses = responses;
+        this.columns = Column.columns(stmt.getMetaData());
+
+        FieldReferenceOffsetManager requestFROM = Pipe.from(requests);
+        this.requestLoc = lookupTemplateLocator(requestMessage, requestFROM);
+        this.correlationLoc = lookupFieldLocator(correlationField, requestLoc, requestFROM);
+        int start = requestLoc + 1;
+        int end = requestLoc + requestFROM.fragScriptSize[requestLoc];
+        int[] locs = new int[end - start];
+        int[] kinds = new int[end - start];
+        int params = 0;
+        int correlationKind = -1;
+        for (int i = start; i < end; i++) {
+            int type = TokenBuilder.extractType(requestFROM.tokens[i]);
+            int loc = lookupFieldLocator(requestFROM.fieldNameScript[i], requestLoc, requestFROM);
+            int kind = bindKind(type, requestFROM.fieldNameScript[i]);
+            if (loc == correlationLoc) {
+                correlationKind = kind;
+            } else {
+                locs[params] = loc;
+                kinds[params++] = kind;
+            }
+            if ((type & ~1) == TypeMask.Decimal) {
+                i++; // the mantissa is the next script entry
+            }
+        }
+        if (correlationKind != BIND_INT && correlationKind != BIND_UINT && correlationKind != BIND_LONG) {
+            throw new IllegalArgumentException("Correlation field " + correlationField + " must be an integer field");
+        }
+        this.correlationKind = correlationKind;
+        this.paramLocs = Arrays.copyOf(locs, params);
+        this.paramKinds = Arrays.copyOf(kinds, params);
+        int parameters = stmt.getParameterMetaData().getParameterCount();
+        if (params != parameters) {
+            throw new IllegalArgumentException("Request " + requestMessage + " has " + params + " parameter fields, the statement takes " + parameters);
+        }
+
+        this.writer = new LookupResponseWriter(responses, columns);
+    }
+
+    static int bindKind(int type, String name) {
+        switch (type & ~1) { // ignore optional
+        case TypeMask.IntegerUnsigned:
+            return BIND_UINT;
+        case TypeMask.IntegerSigned:
+            return BIND_INT;
+        case TypeMask.LongUnsigned:
+        case TypeMask.LongSigned:
+            return BIND_LONG;
+        case TypeMask.TextASCII:
+            return BIND_ASCII;
+        case TypeMask.TextUTF8:
+            return BIND_UTF8;
+        case TypeMask.ByteVector:
+            return BIND_BYTES;
+        case TypeMask.Decimal:
+            return BIND_DECIMAL;
+        default:
+            throw new IllegalArgumentException("LookupStage can not bind field " + name + " of type " + type);
+        }
+    }
+
+    /**
+     * Upper bound on the rows written by a single call to run().
+     */
+    public void setRowsPerRun(int rowsPerRun) {
+        if (rowsPerRun < 1) {
+            throw new IllegalArgumentException("rowsPerRun must be positive: " + rowsPerRun);
+        }
+        this.rowsPerRun = rowsPerRun;
+    }
+
+    @Override
+    public void startup() {
+        try {
+            ColumnWriter[] plan = new ColumnWriter[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                plan[i] = buildUserColumnWriter(columns[i], writer.valueLoc(columns[i]), writer.isNullLoc(columns[i]));
+            }
+            writer.setPlan(plan);
+        } catch (Exception e) {
+            logger.error("LookupStage.startup(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    /**
+     * Maps one column onto its response field, vendors override for driver
+     * specific value classes as in JdbcSourceStage.
+     */
+    protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+        return UserColumnWriters.writer(column, valueLoc, isNullLoc);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (failed && !answerFailed()) {
+                return;
+            }
+            int rows = rowsPerRun;
+            while (true) {
+                if (rs == null && !nextRequest()) {
+                    return;
+                }
+                if (!Pipe.roomToLowLevelWrite(responses, writer.room) || --rows < 0) {
+                    return;
+                }
+                if (rs.next()) {
+                    writer.writeRow(rs, correlationId);
+                    rowCount++;
+                } else {
+                    closeResultSet();
+                    writer.writeDone(correlationId, rowCount, false);
+                    answering = false;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("LookupStage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            closeResultSet();
+            failed = answering;
+            if (failed) {
+                answerFailed();
+            }
+        }
+    }
+
+    /**
+     * Ends the request being answered with a failed Done, so the next run() goes
+     * on with the next request. Returns false when the output pipe is full.
+     */
+    private boolean answerFailed() {
+        writer.abandonRow(correlationId);
+        if (!Pipe.roomToLowLevelWrite(responses, writer.room)) {
+            return false;
+        }
+        writer.writeDone(correlationId, rowCount, true);
+        answering = false;
+        failed = false;
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        PipeWriter.publishEOF(responses);
+        closeResultSet();
+    }
+
+    private void closeResultSet() {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException e) {
+        } finally {
+            rs = null;
+        }
+    }
+
+    /**
+     * Binds the next request and executes it. Returns false when there is none
+     * yet or the requests have ended.
+     */
+    private boolean nextRequest() throws SQLException {
+        while (PipeReader.tryReadFragment(requests)) {
+            if (PipeReader.isNewMessage(requests)) {
+                int msgLoc = PipeReader.getMsgIdx(requests);
+                if (msgLoc < 0) {
+                    PipeReader.releaseReadLock(requests);
+                    requestShutdown();
+                    return false;
+                }
+                if (msgLoc != requestLoc) {
+                    PipeReader.releaseReadLock(requests);
+                    throw new IllegalStateException("LookupStage got template " + Pipe.from(requests).fieldIdScript[msgLoc]);
+                }
+                correlationId = readCorrelation();
+                rowCount = 0;
+                answering = true;
+                try {
+                    bindParameters();
+                } finally {
+                    PipeReader.releaseReadLock(requests);
+                }
+                rs = stmt.executeQuery();
+                return true;
+            }
+            PipeReader.releaseReadLock(requests);
+        }
+        return false;
+    }
+
+    private long readCorrelation() {
+        switch (correlationKind) {
+        case BIND_UINT:
+            return PipeReader.readInt(requests, correlationLoc) & 0xFFFFFFFFL;
+        case BIND_INT:
+            return PipeReader.readInt(requests, correlationLoc);
+        default:
+            return PipeReader.readLong(requests, correlationLoc);
+        }
+    }
+
+    private void bindParameters() throws SQLException {
+        final int[] paramLocs = this.paramLocs;
+        final int[] paramKinds = this.paramKinds;
+        for (int p = 0; p < paramLocs.length; p++) {
+            int loc = paramLocs[p];
+            int parameter = p + 1;
+            switch (paramKinds[p]) {
+            case BIND_INT:
+                stmt.setInt(parameter, PipeReader.readInt(requests, loc));
+                break;
+            case BIND_UINT:
+                stmt.setLong(parameter, PipeReader.readInt(requests, loc) & 0xFFFFFFFFL);
+                break;
+            case BIND_LONG:
+                stmt.setLong(parameter, PipeReader.readLong(requests, loc));
+                break;
+            case BIND_ASCII:
+                text.setLength(0);
+                PipeReader.readASCII(requests, loc, text);
+                stmt.setString(parameter, text.toString());
+                break;
+            case BIND_UTF8:
+                text.setLength(0);
+                PipeReader.readUTF8(requests, loc, text);
+                stmt.setString(parameter, text.toString());
+                break;
+            case BIND_BYTES:
+                byte[] value = new byte[PipeReader.readDataLength(requests, loc)];
+                PipeReader.readBytes(requests, loc, value, 0);
+                stmt.setBytes(parameter, value);
+                break;
+            default:
+                stmt.setBigDecimal(parameter, BigDecimal.valueOf(PipeReader.readDecimalMantissa(requests, loc), -PipeReader.readDecimalExponent(requests, loc)));
+                break;
+            }
+        }
+    }
+}
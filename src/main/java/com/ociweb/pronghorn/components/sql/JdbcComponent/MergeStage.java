@@ -0,0 +1,284 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.pipe.token.TypeMask;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Merges N pipes of one-fragment rows, each already sorted by an integer key
+ * field, into one pipe in global key order, e.g. the partitions of an ordered
+ * PartitionedScan in row mode. All pipes carry the same template.
+ *
+ * The head row of every input is held under its read lock while the inputs
+ * are merged through a heap of primitive keys; only the key field is decoded.
+ * The winning row is copied field by field into the output: ints and longs as
+ * slab values, text and byte vectors as blob bytes, nothing is re-encoded.
+ * Equal keys come out in input order.
+ *
+ * Keys compare as signed longs (uInt32 as unsigned). A NULL key reads as 0, so
+ * merge on a NOT NULL key such as the primary key.
+ *
+ * Dictionary encoded columns (see ColumnEncoding) are the exception to the
+ * plain copy: every input numbered its strings on its own, so the codes are
+ * decoded with a dictionary per input and encoded again with one dictionary for
+ * the output, the way UserColumnWriters.dictionaryWriter does.
+ */
+public class MergeStage extends PronghornStage {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MergeStage.class);
+
+    private final Pipe[] inputs;
+    private final Pipe output;
+    private final int messageLoc;
+    private final int keyLoc;
+    private final int keyType;
+
+    // copy plan, built once from the template, without the dictionary columns
+    private final FragmentPlan plan;
+    private final Recoder[] recoders;
+
+    // heap of input indexes ordered by (keys[input], input)
+    private final int[] heap;
+    private int heapSize = 0;
+    private final long[] keys;
+    private final boolean[] hasHead;
+    private final boolean[] finished;
+    private int live;
+
+    public MergeStage(GraphManager gm, Pipe[] inputs, Pipe output, String message, String keyField) {
+        super(gm, inputs, output);
+        this.inputs = inputs;
+        this.output = output;
+        FieldReferenceOffsetManager FROM = Pipe.from(output);
+        this.messageLoc = lookupTemplateLocator(message, FROM);
+        this.keyLoc = lookupFieldLocator(keyField, messageLoc, FROM);
+
+        FragmentPlan plan = new FragmentPlan(FROM, messageLoc);
+        int keyType = -1;
+        for (int f = 0; f < plan.locs.length; f++) {
+            if (plan.locs[f] == keyLoc) {
+                keyType = plan.types[f];
+            }
+        }
+        if (!isInteger(keyType)) {
+            throw new IllegalArgumentException("Merge key " + keyField + " must be an integer field");
+        }
+        this.keyType = keyType;
+
+        List<Recoder> recoders = new ArrayList<Recoder>();
+        for (int i = messageLoc + 1; i < messageLoc + FROM.fragScriptSize[messageLoc]; i++) {
+            String name = FROM.fieldNameScript[i];
+            if (name != null && name.endsWith(UserColumnWriters.DICTIONARY_VALUE_SUFFIX)) {
+                String column = name.substring(0, name.length() - UserColumnWriters.DICTIONARY_VALUE_SUFFIX.length());
+                recoders.add(new Recoder(inputs.length, lookupFieldLocator(column, messageLoc, FROM), lookupFieldLocator(name, messageLoc, FROM)));
+            }
+        }
+        this.recoders = recoders.toArray(new Recoder[recoders.size()]);
+        int[] recoded = new int[this.recoders.length * 2];
+        for (int r = 0; r < this.recoders.length; r++) {
+            recoded[2 * r] = this.recoders[r].codeLoc;
+            recoded[2 * r + 1] = this.recoders[r].valueLoc;
+        }
+        this.plan = plan.without(recoded);
+
+        this.heap = new int[inputs.length];
+        this.keys = new long[inputs.length];
+        this.hasHead = new boolean[inputs.length];
+        this.finished = new boolean[inputs.length];
+        this.live = inputs.length;
+    }
+
+    private static boolean isInteger(int type) {
+        switch (type & ~1) {
+        case TypeMask.IntegerUnsigned:
+        case TypeMask.IntegerSigned:
+        case TypeMask.LongUnsigned:
+        case TypeMask.LongSigned:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            // a row can only go out once every live input shows its head row
+            for (int i = 0; i < inputs.length; i++) {
+                if (!hasHead[i] && !finished[i] && !readHead(i)) {
+                    return;
+                }
+            }
+            while (heapSize > 0) {
+                if (!PipeWriter.tryWriteFragment(output, messageLoc)) {
+                    return;
+                }
+                int input = heap[0];
+                plan.copy(inputs[input], output);
+                for (Recoder recoder : recoders) {
+                    recoder.copy(input, inputs[input], output);
+                }
+                PipeWriter.publishWrites(output);
+                PipeReader.releaseReadLock(inputs[input]);
+                hasHead[input] = false;
+                pop();
+                if (!readHead(input)) {
+                    return;
+                }
+            }
+            if (live == 0) {
+                requestShutdown();
+            }
+        } catch (Exception e) {
+            logger.error("MergeStage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        PipeWriter.publishEOF(output);
+    }
+
+    /**
+     * Takes the next row of input onto the heap, or marks the input finished at
+     * EOF. Returns false when the input has nothing yet.
+     */
+    private boolean readHead(int input) {
+        Pipe ring = inputs[input];
+        while (PipeReader.tryReadFragment(ring)) {
+            if (PipeReader.isNewMessage(ring)) {
+                int msgLoc = PipeReader.getMsgIdx(ring);
+                if (msgLoc < 0) {
+                    PipeReader.releaseReadLock(ring);
+                    finished[input] = true;
+                    live--;
+                    return true;
+                }
+                if (msgLoc != messageLoc) {
+                    throw new IllegalStateException("MergeStage input " + input + " sent template " + Pipe.from(ring).fieldIdScript[msgLoc]);
+                }
+                keys[input] = readKey(ring);
+                hasHead[input] = true;
+                push(input);
+                return true;
+            }
+            PipeReader.releaseReadLock(ring);
+        }
+        return false;
+    }
+
+    private long readKey(Pipe ring) {
+        switch (keyType & ~1) {
+        case TypeMask.IntegerUnsigned:
+            return PipeReader.readInt(ring, keyLoc) & 0xFFFFFFFFL;
+        case TypeMask.IntegerSigned:
+            return PipeReader.readInt(ring, keyLoc);
+        default:
+            return PipeReader.readLong(ring, keyLoc);
+        }
+    }
+
+    private boolean less(int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+    }
+
+    private void push(int input) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!less(input, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = input;
+    }
+
+    private void pop() {
+        int last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], last)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+    }
+
+    /**
+     * One dictionary encoded column: the code field and its _DictValue field.
+     */
+    private static class Recoder {
+        final int codeLoc;
+        final int valueLoc;
+        private final List<String>[] inputDictionaries; // code - 1 to value, per input
+        private final Map<String, Integer> codes = new HashMap<String, Integer>(); // output
+        private final StringBuilder text = new StringBuilder();
+
+        @SuppressWarnings("unchecked")
+        Recoder(int inputs, int codeLoc, int valueLoc) {
+            this.codeLoc = codeLoc;
+            this.valueLoc = valueLoc;
+            this.inputDictionaries = new List[inputs];
+            for (int i = 0; i < inputs; i++) {
+                inputDictionaries[i] = new ArrayList<String>();
+            }
+        }
+
+        void copy(int input, Pipe source, Pipe target) {
+            int code = PipeReader.readInt(source, codeLoc);
+            List<String> dictionary = inputDictionaries[input];
+            String value;
+            if (code > 0 && code <= dictionary.size()) {
+                value = dictionary.get(code - 1);
+            } else {
+                text.setLength(0);
+                PipeReader.readUTF8(source, valueLoc, text);
+                value = text.toString();
+                if (code > 0) {
+                    dictionary.add(value);
+                } else {
+                    // NULL, or past the input's dictionary: the value goes out as it came
+                    PipeWriter.writeInt(target, codeLoc, 0);
+                    PipeWriter.writeUTF8(target, valueLoc, value);
+                    return;
+                }
+            }
+            Integer outputCode = codes.get(value);
+            if (outputCode != null) {
+                PipeWriter.writeInt(target, codeLoc, outputCode);
+                PipeWriter.writeUTF8(target, valueLoc, "");
+            } else if (codes.size() < UserColumnWriters.MAX_DICTIONARY_SIZE) {
+                int next = codes.size() + 1;
+                codes.put(value, next);
+                PipeWriter.writeInt(target, codeLoc, next);
+                PipeWriter.writeUTF8(target, valueLoc, value);
+            } else {
+                PipeWriter.writeInt(target, codeLoc, 0);
+                PipeWriter.writeUTF8(target, valueLoc, value);
+            }
+        }
+    }
+}
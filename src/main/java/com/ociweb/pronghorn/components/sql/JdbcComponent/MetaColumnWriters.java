@@ -0,0 +1,295 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeASCIIMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeByteArrayMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeDateTimeMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeDecimalMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeSerializedMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeTimestampMessage;
+import static com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageWriter.writeUTF8Message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.Pipe;
+
+/**
+ * Column writers shared by the vendor stages for the meta message mode.
+ * Vendors compose their write plan from these and add their own writers only
+ * for driver specific value classes.
+ *
+ * Numeric and boolean columns are read with the primitive getters and wasNull()
+ * and written through PrimitiveMetaMessageWriter, so they never box.
+ */
+public class MetaColumnWriters {
+
+    public static ColumnWriter byteWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int value = rs.getInt(index);
+                PrimitiveMetaMessageWriter.writeIntMessage(ring, isSigned, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter shortWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int value = rs.getInt(index);
+                PrimitiveMetaMessageWriter.writeIntMessage(ring, isSigned, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter intWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int value = rs.getInt(index);
+                PrimitiveMetaMessageWriter.writeIntMessage(ring, isSigned, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter longWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                long value = rs.getLong(index);
+                PrimitiveMetaMessageWriter.writeLongMessage(ring, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter floatWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                float value = rs.getFloat(index);
+                PrimitiveMetaMessageWriter.writeFloatMessage(ring, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter doubleWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                double value = rs.getDouble(index);
+                PrimitiveMetaMessageWriter.writeDoubleMessage(ring, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter booleanWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                boolean value = rs.getBoolean(index);
+                PrimitiveMetaMessageWriter.writeBooleanMessage(ring, name, value, rs.wasNull());
+            }
+        };
+    }
+
+    public static ColumnWriter decimalWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                writeDecimalMessage(ring, isNullable, name, getObject(rs));
+            }
+        };
+    }
+
+    public static ColumnWriter dateTimeWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                writeDateTimeMessage(ring, isNullable, name, getObject(rs));
+            }
+        };
+    }
+
+    public static ColumnWriter timestampWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                writeTimestampMessage(ring, isNullable, name, rs.getTimestamp(index), 0);
+            }
+        };
+    }
+
+    public static ColumnWriter asciiWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readCharacters(rs);
+                if (length < 0) {
+                    writeASCIIMessage(ring, isNullable, name, null);
+                } else {
+                    PrimitiveMetaMessageWriter.writeASCIIMessage(ring, name, chars(), length);
+                }
+            }
+        };
+    }
+
+    public static ColumnWriter utf8Writer(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readCharacters(rs);
+                if (length < 0) {
+                    writeUTF8Message(ring, isNullable, name, null);
+                } else {
+                    PrimitiveMetaMessageWriter.writeUTF8Message(ring, name, chars(), length);
+                }
+            }
+        };
+    }
+
+    public static ColumnWriter byteArrayWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readBinary(rs);
+                if (length < 0) {
+                    writeByteArrayMessage(ring, isNullable, name, null);
+                } else {
+                    PrimitiveMetaMessageWriter.writeByteArrayMessage(ring, name, buffer(), length);
+                }
+            }
+        };
+    }
+
+    public static ColumnWriter serializedWriter(Column column, String columnName) {
+        return new ColumnWriter(column, columnName) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                writeSerializedMessage(ring, isNullable, name, getObject(rs));
+            }
+        };
+    }
+
+    public static ColumnWriter blobWriter(Column column, String columnName) {
+        return new ChunkedColumnWriter(column, columnName) {
+            private InputStream in = null;
+            private long remaining;
+            private boolean first;
+            private byte[] chunk;
+
+            @Override
+            public boolean writeChunk(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                if (in == null) {
+                    Blob blob = rs.getBlob(index);
+                    if (blob == null) {
+                        writeByteArrayMessage(ring, isNullable, name, null);
+                        return true;
+                    }
+                    remaining = blob.length();
+                    PrimitiveMetaMessageWriter.writeLongMessage(ring, BLOB_HEADER_NAME, remaining, false);
+                    in = blob.getBinaryStream();
+                    first = true;
+                    if (chunk == null || chunk.length != chunkSize) {
+                        chunk = new byte[chunkSize];
+                    }
+                    return false;
+                }
+                // into the reused chunk, then copied into the blob ring, as in readBinary
+                int length = (int) Math.min(chunk.length, remaining);
+                readFully(in, chunk, length);
+                PrimitiveMetaMessageWriter.writeByteArrayMessage(ring, first ? name : null, chunk, length);
+                first = false;
+                remaining -= length;
+                if (remaining > 0) {
+                    return false;
+                }
+                in.close();
+                in = null;
+                return true;
+            }
+        };
+    }
+
+    public static ColumnWriter clobWriter(Column column, String columnName) {
+        return new ChunkedColumnWriter(column, columnName) {
+            private Reader in = null;
+            private long remaining; // chars not yet read from the clob
+            private boolean first;
+            private char[] chunk;
+            private int carried; // high surrogate held back from the previous chunk
+
+            @Override
+            public boolean writeChunk(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                if (in == null) {
+                    Clob clob = rs.getClob(index);
+                    if (clob == null) {
+                        writeUTF8Message(ring, isNullable, name, null);
+                        return true;
+                    }
+                    remaining = clob.length();
+                    PrimitiveMetaMessageWriter.writeLongMessage(ring, CLOB_HEADER_NAME, remaining, false);
+                    in = clob.getCharacterStream();
+                    first = true;
+                    carried = 0;
+                    // up to 3 UTF-8 bytes per char keeps each chunk within chunkSize bytes
+                    int chars = Math.max(2, chunkSize / 3);
+                    if (chunk == null || chunk.length != chars) {
+                        chunk = new char[chars];
+                    }
+                    return false;
+                }
+                int read = (int) Math.min(chunk.length - carried, remaining);
+                readFully(in, chunk, carried, read);
+                remaining -= read;
+                int length = carried + read;
+                carried = 0;
+                if (remaining > 0 && Character.isHighSurrogate(chunk[length - 1])) {
+                    // never split a surrogate pair across two UTF-8 chunks
+                    carried = 1;
+                    length--;
+                }
+                PrimitiveMetaMessageWriter.writeUTF8Message(ring, first ? name : null, chunk, length);
+                first = false;
+                if (carried > 0) {
+                    chunk[0] = chunk[length];
+                }
+                if (remaining > 0) {
+                    return false;
+                }
+                in.close();
+                in = null;
+                return true;
+            }
+        };
+    }
+
+    static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(buffer, offset, length - offset);
+            if (n < 0) {
+                throw new EOFException("LOB ended " + (length - offset) + " bytes early");
+            }
+            offset += n;
+        }
+    }
+
+    static void readFully(Reader in, char[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int n = in.read(buffer, offset, end - offset);
+            if (n < 0) {
+                throw new EOFException("LOB ended " + (end - offset) + " chars early");
+            }
+            offset += n;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Splits a table scan into key ranges read in parallel: one source stage per
+ * range, each on its own connection and publishing to its own pipe, so an
+ * export is no longer bounded by one cursor on one core.
+ *
+ * The ranges divide MIN(key)..MAX(key) of a numeric key evenly; a skewed key
+ * gives uneven partitions but still the same rows. Rows with a NULL key go to
+ * the first partition. With setOrdered each partition is sorted by the key,
+ * ready for MergeStage.
+ *
+ * The statements are prepared on the caller's connections with the vendor's
+ * FetchPolicy; closing the connections once the graph has finished closes
+ * them.
+ */
+public class PartitionedScan {
+
+    /**
+     * Builds the vendor's source stage on a prepared partition statement, e.g.
+     * new H2Stage(gm, stmt, ring) for row mode.
+     */
+    public interface SourceFactory {
+        JdbcSourceStage create(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException;
+    }
+
+    private final String table;
+    private final String key;
+    private final String columns;
+    private final FetchPolicy policy;
+    private boolean ordered = false;
+
+    /**
+     * @param columns select list, "*" for all
+     */
+    public PartitionedScan(String table, String key, String columns, FetchPolicy policy) {
+        this.table = table;
+        this.key = key;
+        this.columns = columns;
+        this.policy = policy;
+    }
+
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * One stage per connection/pipe pair, connections[i] reading partition i
+     * into pipes[i]. The ranges are computed on connections[0].
+     */
+    public JdbcSourceStage[] stages(GraphManager gm, Connection[] connections, Pipe[] pipes, SourceFactory factory) throws SQLException {
+        if (connections.length != pipes.length) {
+            throw new IllegalArgumentException(connections.length + " connections for " + pipes.length + " pipes");
+        }
+        int partitions = connections.length;
+        long[] boundaries = boundaries(connections[0], partitions);
+        JdbcSourceStage[] stages = new JdbcSourceStage[partitions];
+        for (int i = 0; i < partitions; i++) {
+            PreparedStatement stmt = policy.prepare(connections[i], sql(i, partitions));
+            int parameter = 1;
+            if (i > 0) {
+                stmt.setLong(parameter++, boundaries[i - 1]);
+            }
+            if (i < partitions - 1) {
+                stmt.setLong(parameter++, boundaries[i]);
+            }
+            stages[i] = factory.create(gm, stmt, pipes[i]);
+        }
+        return stages;
+    }
+
+    /**
+     * The partitions - 1 keys where one range ends and the next begins.
+     */
+    public long[] boundaries(Connection conn, int partitions) throws SQLException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        long min = 0;
+        long max = 0;
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table);
+            try {
+                if (rs.next()) {
+                    min = rs.getLong(1);
+                    max = rs.getLong(2);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+        // max - min + 1 overflows a long for keys spanning the whole range
+        BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min)).add(BigInteger.ONE);
+        long[] boundaries = new long[partitions - 1];
+        for (int i = 1; i < partitions; i++) {
+            BigInteger offset = span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions));
+            boundaries[i - 1] = BigInteger.valueOf(min).add(offset).longValue();
+        }
+        return boundaries;
+    }
+
+    /**
+     * Partition 0 has no lower bound and takes the NULL keys, the last one has
+     * no upper bound.
+     */
+    public String sql(int partition, int partitions) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" FROM ").append(table);
+        if (partitions > 1) {
+            if (partition == 0) {
+                sql.append(" WHERE ").append(key).append(" < ? OR ").append(key).append(" IS NULL");
+            } else if (partition == partitions - 1) {
+                sql.append(" WHERE ").append(key).append(" >= ?");
+            } else {
+                sql.append(" WHERE ").append(key).append(" >= ? AND ").append(key).append(" < ?");
+            }
+        }
+        if (ordered) {
+            sql.append(" ORDER BY ").append(key);
+        }
+        return sql.toString();
+    }
+}
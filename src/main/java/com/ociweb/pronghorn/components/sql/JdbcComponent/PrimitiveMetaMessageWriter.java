@@ -0,0 +1,222 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import com.ociweb.pronghorn.components.ingestion.metaMessageUtil.MetaMessageDefs;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+/**
+ * Primitive equivalents of the numeric MetaMessageWriter methods. Values arrive
+ * as int/long/float/double/boolean plus a null flag taken from ResultSet.wasNull(),
+ * so nothing is boxed on the way from the driver into the pipe.
+ *
+ * The messages written are the same meta templates MetaDumper already decodes:
+ * a null value is sent as the Nullable* template with NOTNULL=0, anything else
+ * as the plain value template.
+ */
+public class PrimitiveMetaMessageWriter {
+
+    private static final int UINT32_LOC = lookupTemplateLocator(128);
+    private static final int INT32_LOC = lookupTemplateLocator(130);
+    private static final int INT64_LOC = lookupTemplateLocator(134);
+    private static final int BOOLEAN_LOC = lookupTemplateLocator(166);
+    private static final int FLOAT_LOC = lookupTemplateLocator(168);
+    private static final int DOUBLE_LOC = lookupTemplateLocator(170);
+    private static final int NAMEDUINT32_LOC = lookupTemplateLocator(192);
+    private static final int NAMEDINT32_LOC = lookupTemplateLocator(194);
+    private static final int NAMEDINT64_LOC = lookupTemplateLocator(198);
+    private static final int NAMEDBOOLEAN_LOC = lookupTemplateLocator(230);
+    private static final int NAMEDFLOAT_LOC = lookupTemplateLocator(232);
+    private static final int NAMEDDOUBLE_LOC = lookupTemplateLocator(234);
+    private static final int ASCII_LOC = lookupTemplateLocator(136);
+    private static final int UTF8_LOC = lookupTemplateLocator(138);
+    private static final int BYTEARRAY_LOC = lookupTemplateLocator(142);
+    private static final int NAMEDASCII_LOC = lookupTemplateLocator(200);
+    private static final int NAMEDUTF8_LOC = lookupTemplateLocator(202);
+    private static final int NAMEDBYTEARRAY_LOC = lookupTemplateLocator(206);
+    private static final int NULLABLEUINT32_LOC = lookupTemplateLocator(384);
+    private static final int NULLABLEINT32_LOC = lookupTemplateLocator(386);
+    private static final int NULLABLEINT64_LOC = lookupTemplateLocator(390);
+    private static final int NULLABLEBOOLEAN_LOC = lookupTemplateLocator(423);
+    private static final int NULLABLEFLOAT_LOC = lookupTemplateLocator(425);
+    private static final int NULLABLEDOUBLE_LOC = lookupTemplateLocator(427);
+    private static final int NAMEDNULLABLEUINT32_LOC = lookupTemplateLocator(448);
+    private static final int NAMEDNULLABLEINT32_LOC = lookupTemplateLocator(450);
+    private static final int NAMEDNULLABLEINT64_LOC = lookupTemplateLocator(454);
+    private static final int NAMEDNULLABLEBOOLEAN_LOC = lookupTemplateLocator(487);
+    private static final int NAMEDNULLABLEFLOAT_LOC = lookupTemplateLocator(489);
+    private static final int NAMEDNULLABLEDOUBLE_LOC = lookupTemplateLocator(491);
+
+    /**
+     * Message LOC of a meta template by its ID, MetaMessageDefs only has the
+     * field LOCs as constants.
+     */
+    public static int lookupTemplateLocator(long templateID) {
+        FieldReferenceOffsetManager from = MetaMessageDefs.FROM;
+        for (int loc : from.messageStarts) {
+            if (from.fieldIdScript[loc] == templateID) {
+                return loc;
+            }
+        }
+        throw new IllegalArgumentException("Meta template " + templateID + " not found");
+    }
+
+    static void beginFragment(Pipe ring, int loc) {
+        // the stage checks for room before each row, so this only fails if that check is wrong
+        if (!PipeWriter.tryWriteFragment(ring, loc)) {
+            throw new IllegalStateException("No room in pipe for template " + MetaMessageDefs.FROM.fieldIdScript[loc]);
+        }
+    }
+
+    private static void writeNull(Pipe ring, String name, int loc, int notNullLoc, int namedLoc, int namedNameLoc, int namedNotNullLoc) {
+        if (name == null) {
+            beginFragment(ring, loc);
+            PipeWriter.writeInt(ring, notNullLoc, 0);
+        } else {
+            beginFragment(ring, namedLoc);
+            PipeWriter.writeASCII(ring, namedNameLoc, name);
+            PipeWriter.writeInt(ring, namedNotNullLoc, 0);
+        }
+        PipeWriter.publishWrites(ring);
+    }
+
+    public static void writeIntMessage(Pipe ring, boolean isSigned, String name, int value, boolean isNull) {
+        if (isSigned) {
+            if (isNull) {
+                writeNull(ring, name, NULLABLEINT32_LOC, MetaMessageDefs.NULLABLEINT32_NOTNULL_LOC,
+                          NAMEDNULLABLEINT32_LOC, MetaMessageDefs.NAMEDNULLABLEINT32_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEINT32_NOTNULL_LOC);
+            } else if (name == null) {
+                beginFragment(ring, INT32_LOC);
+                PipeWriter.writeInt(ring, MetaMessageDefs.INT32_VALUE_LOC, value);
+                PipeWriter.publishWrites(ring);
+            } else {
+                beginFragment(ring, NAMEDINT32_LOC);
+                PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDINT32_NAME_LOC, name);
+                PipeWriter.writeInt(ring, MetaMessageDefs.NAMEDINT32_VALUE_LOC, value);
+                PipeWriter.publishWrites(ring);
+            }
+        } else {
+            if (isNull) {
+                writeNull(ring, name, NULLABLEUINT32_LOC, MetaMessageDefs.NULLABLEUINT32_NOTNULL_LOC,
+                          NAMEDNULLABLEUINT32_LOC, MetaMessageDefs.NAMEDNULLABLEUINT32_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEUINT32_NOTNULL_LOC);
+            } else if (name == null) {
+                beginFragment(ring, UINT32_LOC);
+                PipeWriter.writeInt(ring, MetaMessageDefs.UINT32_VALUE_LOC, value);
+                PipeWriter.publishWrites(ring);
+            } else {
+                beginFragment(ring, NAMEDUINT32_LOC);
+                PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDUINT32_NAME_LOC, name);
+                PipeWriter.writeInt(ring, MetaMessageDefs.NAMEDUINT32_VALUE_LOC, value);
+                PipeWriter.publishWrites(ring);
+            }
+        }
+    }
+
+    public static void writeLongMessage(Pipe ring, String name, long value, boolean isNull) {
+        if (isNull) {
+            writeNull(ring, name, NULLABLEINT64_LOC, MetaMessageDefs.NULLABLEINT64_NOTNULL_LOC,
+                      NAMEDNULLABLEINT64_LOC, MetaMessageDefs.NAMEDNULLABLEINT64_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEINT64_NOTNULL_LOC);
+        } else if (name == null) {
+            beginFragment(ring, INT64_LOC);
+            PipeWriter.writeLong(ring, MetaMessageDefs.INT64_VALUE_LOC, value);
+            PipeWriter.publishWrites(ring);
+        } else {
+            beginFragment(ring, NAMEDINT64_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDINT64_NAME_LOC, name);
+            PipeWriter.writeLong(ring, MetaMessageDefs.NAMEDINT64_VALUE_LOC, value);
+            PipeWriter.publishWrites(ring);
+        }
+    }
+
+    public static void writeBooleanMessage(Pipe ring, String name, boolean value, boolean isNull) {
+        if (isNull) {
+            writeNull(ring, name, NULLABLEBOOLEAN_LOC, MetaMessageDefs.NULLABLEBOOLEAN_NOTNULL_LOC,
+                      NAMEDNULLABLEBOOLEAN_LOC, MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEBOOLEAN_NOTNULL_LOC);
+        } else if (name == null) {
+            beginFragment(ring, BOOLEAN_LOC);
+            PipeWriter.writeInt(ring, MetaMessageDefs.BOOLEAN_VALUE_LOC, value ? 1 : 0);
+            PipeWriter.publishWrites(ring);
+        } else {
+            beginFragment(ring, NAMEDBOOLEAN_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDBOOLEAN_NAME_LOC, name);
+            PipeWriter.writeInt(ring, MetaMessageDefs.NAMEDBOOLEAN_VALUE_LOC, value ? 1 : 0);
+            PipeWriter.publishWrites(ring);
+        }
+    }
+
+    public static void writeFloatMessage(Pipe ring, String name, float value, boolean isNull) {
+        if (isNull) {
+            writeNull(ring, name, NULLABLEFLOAT_LOC, MetaMessageDefs.NULLABLEFLOAT_NOTNULL_LOC,
+                      NAMEDNULLABLEFLOAT_LOC, MetaMessageDefs.NAMEDNULLABLEFLOAT_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEFLOAT_NOTNULL_LOC);
+        } else if (name == null) {
+            beginFragment(ring, FLOAT_LOC);
+            PipeWriter.writeInt(ring, MetaMessageDefs.FLOAT_VALUE_LOC, Float.floatToIntBits(value));
+            PipeWriter.publishWrites(ring);
+        } else {
+            beginFragment(ring, NAMEDFLOAT_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDFLOAT_NAME_LOC, name);
+            PipeWriter.writeInt(ring, MetaMessageDefs.NAMEDFLOAT_VALUE_LOC, Float.floatToIntBits(value));
+            PipeWriter.publishWrites(ring);
+        }
+    }
+
+    public static void writeDoubleMessage(Pipe ring, String name, double value, boolean isNull) {
+        if (isNull) {
+            writeNull(ring, name, NULLABLEDOUBLE_LOC, MetaMessageDefs.NULLABLEDOUBLE_NOTNULL_LOC,
+                      NAMEDNULLABLEDOUBLE_LOC, MetaMessageDefs.NAMEDNULLABLEDOUBLE_NAME_LOC, MetaMessageDefs.NAMEDNULLABLEDOUBLE_NOTNULL_LOC);
+        } else if (name == null) {
+            beginFragment(ring, DOUBLE_LOC);
+            PipeWriter.writeLong(ring, MetaMessageDefs.DOUBLE_VALUE_LOC, Double.doubleToLongBits(value));
+            PipeWriter.publishWrites(ring);
+        } else {
+            beginFragment(ring, NAMEDDOUBLE_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDDOUBLE_NAME_LOC, name);
+            PipeWriter.writeLong(ring, MetaMessageDefs.NAMEDDOUBLE_VALUE_LOC, Double.doubleToLongBits(value));
+            PipeWriter.publishWrites(ring);
+        }
+    }
+
+    /**
+     * A ByteArray or NamedByteArray message with length bytes from the start of
+     * value, for binary cells read into a reused buffer and for LOB chunks.
+     */
+    public static void writeByteArrayMessage(Pipe ring, String name, byte[] value, int length) {
+        if (name == null) {
+            beginFragment(ring, BYTEARRAY_LOC);
+            PipeWriter.writeBytes(ring, MetaMessageDefs.BYTEARRAY_VALUE_LOC, value, 0, length);
+        } else {
+            beginFragment(ring, NAMEDBYTEARRAY_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDBYTEARRAY_NAME_LOC, name);
+            PipeWriter.writeBytes(ring, MetaMessageDefs.NAMEDBYTEARRAY_VALUE_LOC, value, 0, length);
+        }
+        PipeWriter.publishWrites(ring);
+    }
+
+    /**
+     * Single byte text, for columns the dialect reports as ASCII: one byte per
+     * char with no UTF-8 encoding step.
+     */
+    public static void writeASCIIMessage(Pipe ring, String name, char[] value, int length) {
+        if (name == null) {
+            beginFragment(ring, ASCII_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.ASCII_VALUE_LOC, value, 0, length);
+        } else {
+            beginFragment(ring, NAMEDASCII_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDASCII_NAME_LOC, name);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDASCII_VALUE_LOC, value, 0, length);
+        }
+        PipeWriter.publishWrites(ring);
+    }
+
+    public static void writeUTF8Message(Pipe ring, String name, char[] value, int length) {
+        if (name == null) {
+            beginFragment(ring, UTF8_LOC);
+            PipeWriter.writeUTF8(ring, MetaMessageDefs.UTF8_VALUE_LOC, value, 0, length);
+        } else {
+            beginFragment(ring, NAMEDUTF8_LOC);
+            PipeWriter.writeASCII(ring, MetaMessageDefs.NAMEDUTF8_NAME_LOC, name);
+            PipeWriter.writeUTF8(ring, MetaMessageDefs.NAMEDUTF8_VALUE_LOC, value, 0, length);
+        }
+        PipeWriter.publishWrites(ring);
+    }
+}
@@ -0,0 +1,132 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Query results kept as recorded pipe fragments in direct (off-heap) buffers,
+ * so a repeated query can be answered without JDBC, see ResultCacheStage. Each
+ * result is keyed by its SQL text and parameter values, see key().
+ *
+ * The cache holds at most maxBytes of fragments and evicts the least recently
+ * used results to stay within it; a result larger than maxBytes is not kept.
+ * With a ttlMillis above 0 results also expire that long after they were
+ * stored. The cache is shared by the stages of any number of graphs.
+ */
+public class ResultCache {
+
+    /**
+     * A recorded result: the fragments of one query in the format of
+     * FragmentPlan.record, up to but not including EOF.
+     */
+    public static class Entry {
+        final ByteBuffer fragments;
+        final int largestFragment; // bytes, sizes the replay scratch buffer
+        final long stored;
+
+        Entry(ByteBuffer fragments, int largestFragment, long stored) {
+            this.fragments = fragments;
+            this.largestFragment = largestFragment;
+            this.stored = stored;
+        }
+
+        public int size() {
+            return fragments.capacity();
+        }
+    }
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access order
+    private long bytes = 0;
+
+    public ResultCache(long maxBytes, long ttlMillis) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Key for a query: its SQL text and the values bound to its parameters, in
+     * order. Values of different types never give the same key.
+     */
+    public static String key(String sql, Object... parameters) {
+        StringBuilder key = new StringBuilder(sql);
+        for (Object parameter : parameters) {
+            key.append('\u0000');
+            if (parameter == null) {
+                key.append("null");
+            } else {
+                key.append(parameter.getClass().getName()).append(':');
+                key.append((parameter instanceof byte[]) ? Arrays.toString((byte[]) parameter) : parameter.toString());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * The result stored for key, or null when there is none or it expired.
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.stored >= ttlMillis) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the recorded fragments between the buffer's position and limit,
+     * copied into a buffer of their exact size. Returns false when they are
+     * larger than the whole cache.
+     */
+    synchronized boolean put(String key, ByteBuffer fragments, int largestFragment) {
+        int size = fragments.remaining();
+        if (size > maxBytes) {
+            return false;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(size);
+        copy.put(fragments.duplicate());
+        copy.flip();
+        remove(key);
+        entries.put(key, new Entry(copy, largestFragment, System.currentTimeMillis()));
+        bytes += size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Bytes of fragments held.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Largest result the cache will keep.
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,202 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.nio.ByteBuffer;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Puts a ResultCache in front of a source stage. On a miss the stage sits
+ * between the source and its consumer, passing every fragment through while
+ * recording it; at EOF the recording is stored under the query's key, unless
+ * the source failed or was stopped part way. On a hit there is no source at
+ * all: the stage replays the stored fragments into the output, no statement is
+ * executed and no value is converted again.
+ *
+ *   String key = ResultCache.key(sql, parameters...);
+ *   ResultCache.Entry hit = cache.get(key);
+ *   if (hit == null) {
+ *       H2Stage source = new H2Stage(gm, stmt, results);
+ *       new ResultCacheStage(gm, cache, key, source, results, output);
+ *   } else {
+ *       new ResultCacheStage(gm, hit, output);
+ *   }
+ *
+ * Any template works as long as every message is a single fragment, which is
+ * true of the meta, batch, row and lookup templates. A result larger than the
+ * cache, or than the 2GB one direct buffer holds, is passed through but not
+ * stored.
+ */
+public class ResultCacheStage extends PronghornStage {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ResultCacheStage.class);
+
+    private static final int INITIAL_RECORDING = 1 << 16;
+
+    private final Pipe input; // null when replaying
+    private final Pipe output;
+    private final FragmentPlan[] plans;
+    private final int room; // the largest fragment of the template
+    private int fragmentsPerRun = JdbcSourceStage.DEFAULT_ROWS_PER_RUN;
+
+    // recording
+    private final ResultCache cache;
+    private final String key;
+    private final JdbcSourceStage source; // stored only if it read the whole result
+    private ByteBuffer recording = null; // null once the result outgrew the cache
+    private int largestFragment = 0;
+
+    // replaying
+    private final ByteBuffer replay;
+
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Miss: passes input, written by source, through to output and stores the
+     * result under key.
+     */
+    public ResultCacheStage(GraphManager gm, ResultCache cache, String key, JdbcSourceStage source, Pipe input, Pipe output) {
+        super(gm, input, output);
+        this.input = input;
+        this.output = output;
+        this.cache = cache;
+        this.key = key;
+        this.source = source;
+        this.replay = null;
+        FieldReferenceOffsetManager FROM = Pipe.from(output);
+        this.plans = FragmentPlan.plans(FROM);
+        this.room = maxFragmentSize(FROM);
+        this.recording = ByteBuffer.allocateDirect(Math.min(INITIAL_RECORDING, maxRecording()));
+    }
+
+    /**
+     * Hit: writes the stored result to output, then EOF.
+     */
+    public ResultCacheStage(GraphManager gm, ResultCache.Entry hit, Pipe output) {
+        super(gm, NONE, output);
+        this.input = null;
+        this.output = output;
+        this.cache = null;
+        this.key = null;
+        this.source = null;
+        this.replay = hit.fragments.duplicate();
+        this.scratch = new byte[hit.largestFragment];
+        FieldReferenceOffsetManager FROM = Pipe.from(output);
+        this.plans = FragmentPlan.plans(FROM);
+        this.room = maxFragmentSize(FROM);
+    }
+
+    private static int maxFragmentSize(FieldReferenceOffsetManager from) {
+        int max = 0;
+        for (int size : from.fragDataSize) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    /**
+     * Upper bound on the fragments moved by a single call to run().
+     */
+    public void setFragmentsPerRun(int fragmentsPerRun) {
+        if (fragmentsPerRun < 1) {
+            throw new IllegalArgumentException("fragmentsPerRun must be positive: " + fragmentsPerRun);
+        }
+        this.fragmentsPerRun = fragmentsPerRun;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (replay != null) {
+                runReplay();
+            } else {
+                runRecord();
+            }
+        } catch (Exception e) {
+            logger.error("ResultCacheStage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        PipeWriter.publishEOF(output);
+    }
+
+    private void runReplay() {
+        int fragments = fragmentsPerRun;
+        while (replay.hasRemaining()) {
+            if (--fragments < 0 || !Pipe.roomToLowLevelWrite(output, room)) {
+                return;
+            }
+            FragmentPlan plan = plans[replay.getInt()];
+            PrimitiveMetaMessageWriter.beginFragment(output, plan.messageLoc);
+            plan.replay(replay, output, scratch);
+            PipeWriter.publishWrites(output);
+        }
+        requestShutdown();
+    }
+
+    /**
+     * Checks for room before taking each fragment, so a fragment is never read
+     * that can not be written.
+     */
+    private void runRecord() {
+        int fragments = fragmentsPerRun;
+        while (--fragments >= 0 && Pipe.roomToLowLevelWrite(output, room) && PipeReader.tryReadFragment(input)) {
+            if (!PipeReader.isNewMessage(input)) {
+                throw new IllegalStateException("ResultCacheStage only moves single fragment messages");
+            }
+            int msgLoc = PipeReader.getMsgIdx(input);
+            if (msgLoc < 0) {
+                PipeReader.releaseReadLock(input);
+                if (recording != null && source.isComplete()) {
+                    recording.flip();
+                    cache.put(key, recording, largestFragment);
+                    recording = null;
+                }
+                requestShutdown();
+                return;
+            }
+            FragmentPlan plan = plans[msgLoc];
+            if (recording != null) {
+                record(plan);
+            }
+            PrimitiveMetaMessageWriter.beginFragment(output, msgLoc);
+            plan.copy(input, output);
+            PipeWriter.publishWrites(output);
+            PipeReader.releaseReadLock(input);
+        }
+    }
+
+    /**
+     * The largest result that can be stored: the cache's maxBytes, which may be
+     * above the int range of a buffer's capacity.
+     */
+    private int maxRecording() {
+        return (int) Math.min(cache.maxBytes(), Integer.MAX_VALUE);
+    }
+
+    private void record(FragmentPlan plan) {
+        int size = plan.recordSize(input);
+        if (recording.remaining() < size) {
+            long needed = (long) recording.position() + size;
+            if (needed > maxRecording()) {
+                recording = null; // too big to keep, pass the rest through
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocateDirect((int) Math.min(Math.max(needed, 2L * recording.capacity()), maxRecording()));
+            recording.flip();
+            larger.put(recording);
+            recording = larger;
+        }
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        largestFragment = Math.max(largestFragment, size);
+        plan.record(input, recording, scratch);
+    }
+}
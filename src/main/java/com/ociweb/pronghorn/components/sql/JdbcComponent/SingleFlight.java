@@ -0,0 +1,289 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Runs identical queries once while they overlap. The first subscriber for a
+ * key (see ResultCache.key) becomes the leader: its source stage runs the
+ * query and a SingleFlightStage passes the rows to its output while recording
+ * them. Anyone subscribing to the same key before the leader reaches EOF, in
+ * the same graph or another one, gets a SingleFlightStage that replays the
+ * recording into their output from the first fragment and follows it until
+ * the end, so a burst of stages starting together costs one cursor.
+ *
+ * Once the leader has seen EOF the key is free again and the next subscriber
+ * runs the query anew; keep results across flights with ResultCache.
+ *
+ * The recording holds at most maxRecordingBytes. When it is full, the part
+ * every follower has replayed is dropped and later subscribers start a flight
+ * of their own; a follower still maxRecordingBytes behind the leader is cut
+ * off. The recording is released once the last follower has caught up.
+ *
+ * When the source fails, is stopped, or a follower is cut off, the stages end
+ * with EOF after part of the result; isComplete() tells them apart from a
+ * whole result, as for JdbcSourceStage.
+ */
+public class SingleFlight {
+
+    public static final int DEFAULT_MAX_RECORDING = 1 << 24;
+
+    /**
+     * Builds the leader's source stage, e.g. new H2Stage(gm, conn, sql, ring).
+     */
+    public interface SourceFactory {
+        JdbcSourceStage create(GraphManager gm, Pipe ring) throws SQLException;
+    }
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private final int maxRecordingBytes;
+
+    public SingleFlight() {
+        this(DEFAULT_MAX_RECORDING);
+    }
+
+    public SingleFlight(int maxRecordingBytes) {
+        if (maxRecordingBytes < 1) {
+            throw new IllegalArgumentException("maxRecordingBytes must be positive: " + maxRecordingBytes);
+        }
+        this.maxRecordingBytes = maxRecordingBytes;
+    }
+
+    /**
+     * The stage writing the result of the query to output. A leader also builds
+     * the source on results, which must have output's template; a follower
+     * leaves results unused. The factory is called outside the lock, so other
+     * keys are not held up by a slow prepare.
+     */
+    public SingleFlightStage subscribe(GraphManager gm, String key, Pipe results, Pipe output, SourceFactory factory) throws SQLException {
+        Flight flight;
+        synchronized (this) {
+            flight = flights.get(key);
+            if (flight != null) {
+                Flight.Cursor cursor = flight.join();
+                if (cursor != null) {
+                    return new SingleFlightStage(gm, flight, cursor, output);
+                }
+                // too far along to replay from the start
+            }
+            flight = new Flight(this, key, maxRecordingBytes);
+            flights.put(key, flight);
+        }
+        // followers of this key may join while the source is built
+        JdbcSourceStage source = null;
+        try {
+            source = factory.create(gm, results);
+        } finally {
+            if (source == null) {
+                flight.fail();
+            }
+        }
+        return new SingleFlightStage(gm, flight, source, results, output);
+    }
+
+    /**
+     * Keys with a query in flight.
+     */
+    public synchronized int inFlight() {
+        return flights.size();
+    }
+
+    private synchronized void land(Flight flight) {
+        if (flights.get(flight.key) == flight) {
+            flights.remove(flight.key);
+        }
+    }
+
+    /**
+     * The fragments of one execution as the leader passed them on, in the format
+     * of FragmentPlan.record. Follower positions count from the first fragment,
+     * base is the position of the oldest one still recorded.
+     */
+    static class Flight {
+        private static final int INITIAL_RECORDING = 1 << 16;
+
+        // what replay() did
+        static final int REPLAYED = 0;
+        static final int WAITING = 1; // caught up with the leader
+        static final int ENDED = 2; // replayed the whole result
+        static final int FAILED = 3; // the result will not be complete
+
+        private final SingleFlight owner;
+        private final String key;
+        private final int maxBytes;
+        private ByteBuffer recording; // null once nobody can read it
+        private long base = 0;
+        private int largestFragment = 0;
+        private final List<Cursor> followers = new ArrayList<Cursor>();
+        private boolean joinable = true; // nothing dropped yet
+        private boolean done = false;
+        private boolean failed = false;
+
+        private Flight(SingleFlight owner, String key, int maxBytes) {
+            this.owner = owner;
+            this.key = key;
+            this.maxBytes = maxBytes;
+            this.recording = ByteBuffer.allocate(Math.min(INITIAL_RECORDING, maxBytes));
+        }
+
+        /**
+         * Where one follower is in the recording.
+         */
+        static class Cursor {
+            private long position = 0;
+        }
+
+        /**
+         * A cursor at the first fragment, or null when that has been dropped or
+         * the flight has ended.
+         */
+        synchronized Cursor join() {
+            if (!joinable || done || failed) {
+                return null;
+            }
+            Cursor cursor = new Cursor();
+            followers.add(cursor);
+            return cursor;
+        }
+
+        /**
+         * The follower stopped; its cursor no longer holds fragments back.
+         */
+        synchronized void leave(Cursor cursor) {
+            followers.remove(cursor);
+            if (done && followers.isEmpty()) {
+                recording = null;
+            }
+        }
+
+        synchronized void record(FragmentPlan plan, Pipe input, byte[] scratch) {
+            if (recording == null) {
+                return;
+            }
+            int size = plan.recordSize(input);
+            if (recording.remaining() < size) {
+                if ((long) recording.position() + size > maxBytes) {
+                    trim();
+                    while ((long) recording.position() + size > maxBytes && !followers.isEmpty()) {
+                        cutOffSlowest();
+                        trim();
+                    }
+                    if ((long) recording.position() + size > maxBytes || followers.isEmpty()) {
+                        // nobody left who could replay it
+                        joinable = false;
+                        followers.clear();
+                        recording = null;
+                        return;
+                    }
+                }
+                if (recording.remaining() < size) {
+                    long needed = (long) recording.position() + size;
+                    ByteBuffer larger = ByteBuffer.allocate((int) Math.min(Math.max(needed, 2L * recording.capacity()), maxBytes));
+                    recording.flip();
+                    larger.put(recording);
+                    recording = larger;
+                }
+            }
+            largestFragment = Math.max(largestFragment, size);
+            plan.record(input, recording, scratch);
+        }
+
+        /**
+         * Drops the fragments every follower has replayed. The first fragment is
+         * gone after that, so the flight takes no more followers.
+         */
+        private void trim() {
+            long keep = base + recording.position();
+            for (Cursor cursor : followers) {
+                keep = Math.min(keep, cursor.position);
+            }
+            int drop = (int) (keep - base);
+            if (drop > 0) {
+                recording.flip();
+                recording.position(drop);
+                recording.compact();
+                base = keep;
+                joinable = false;
+            }
+        }
+
+        private void cutOffSlowest() {
+            long slowest = Long.MAX_VALUE;
+            for (Cursor cursor : followers) {
+                slowest = Math.min(slowest, cursor.position);
+            }
+            for (int i = followers.size() - 1; i >= 0; i--) {
+                if (followers.get(i).position == slowest) {
+                    followers.remove(i);
+                }
+            }
+        }
+
+        /**
+         * No more fragments; followers end once they have replayed everything.
+         */
+        void land() {
+            synchronized (this) {
+                done = true;
+                joinable = false;
+                if (followers.isEmpty()) {
+                    recording = null;
+                }
+            }
+            owner.land(this);
+        }
+
+        /**
+         * The result will not be complete; followers end where they are and a
+         * later subscriber starts a new flight.
+         */
+        void fail() {
+            synchronized (this) {
+                failed = true;
+                joinable = false;
+                recording = null;
+                followers.clear();
+            }
+            owner.land(this);
+        }
+
+        /**
+         * Writes the next recorded fragment for follower to output when there is
+         * one. The caller has checked output for room.
+         */
+        synchronized int replay(SingleFlightStage follower, FragmentPlan[] plans, Pipe output) {
+            Cursor cursor = follower.cursor;
+            if (failed || !followers.contains(cursor)) {
+                return FAILED;
+            }
+            long end = base + recording.position();
+            if (cursor.position >= end) {
+                if (!done) {
+                    return WAITING;
+                }
+                followers.remove(cursor);
+                if (followers.isEmpty()) {
+                    recording = null;
+                }
+                return ENDED;
+            }
+            ByteBuffer fragment = recording.duplicate();
+            fragment.flip();
+            fragment.position((int) (cursor.position - base));
+            FragmentPlan plan = plans[fragment.getInt()];
+            PrimitiveMetaMessageWriter.beginFragment(output, plan.messageLoc);
+            plan.replay(fragment, output, follower.scratch(largestFragment));
+            PipeWriter.publishWrites(output);
+            cursor.position = base + fragment.position();
+            return REPLAYED;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * One subscriber of a SingleFlight. The leader sits between the source and its
+ * consumer, passing every fragment through while recording it for the
+ * followers; a follower has no source and replays the leader's recording into
+ * its output, waiting for the leader whenever it has caught up. Both end with
+ * EOF once the source has; when the source failed, or a follower fell too far
+ * behind, they end early and isComplete() stays false. Built by
+ * SingleFlight.subscribe.
+ *
+ * Every message must be a single fragment, as for ResultCacheStage.
+ */
+public class SingleFlightStage extends PronghornStage {
+    private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(SingleFlightStage.class);
+
+    private final SingleFlight.Flight flight;
+    private final JdbcSourceStage source; // null for a follower
+    private final Pipe input; // null for a follower
+    final SingleFlight.Flight.Cursor cursor; // null for the leader
+    private final Pipe output;
+    private final FragmentPlan[] plans;
+    private final int room; // the largest fragment of the template
+    private int fragmentsPerRun = JdbcSourceStage.DEFAULT_ROWS_PER_RUN;
+
+    private boolean landed = false; // leader: saw EOF
+    private volatile boolean complete = false;
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Leader: passes input, written by source, through to output and records it
+     * into flight.
+     */
+    SingleFlightStage(GraphManager gm, SingleFlight.Flight flight, JdbcSourceStage source, Pipe input, Pipe output) {
+        super(gm, input, output);
+        this.flight = flight;
+        this.source = source;
+        this.input = input;
+        this.cursor = null;
+        this.output = output;
+        FieldReferenceOffsetManager FROM = Pipe.from(output);
+        this.plans = FragmentPlan.plans(FROM);
+        this.room = maxFragmentSize(FROM);
+    }
+
+    /**
+     * Follower: writes everything recorded into flight to output from cursor,
+     * then EOF.
+     */
+    SingleFlightStage(GraphManager gm, SingleFlight.Flight flight, SingleFlight.Flight.Cursor cursor, Pipe output) {
+        super(gm, NONE, output);
+        this.flight = flight;
+        this.source = null;
+        this.input = null;
+        this.cursor = cursor;
+        this.output = output;
+        FieldReferenceOffsetManager FROM = Pipe.from(output);
+        this.plans = FragmentPlan.plans(FROM);
+        this.room = maxFragmentSize(FROM);
+    }
+
+    private static int maxFragmentSize(FieldReferenceOffsetManager from) {
+        int max = 0;
+        for (int size : from.fragDataSize) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    /**
+     * Upper bound on the fragments moved by a single call to run().
+     */
+    public void setFragmentsPerRun(int fragmentsPerRun) {
+        if (fragmentsPerRun < 1) {
+            throw new IllegalArgumentException("fragmentsPerRun must be positive: " + fragmentsPerRun);
+        }
+        this.fragmentsPerRun = fragmentsPerRun;
+    }
+
+    /**
+     * True for the subscriber whose source executes the query.
+     */
+    public boolean isLeader() {
+        return input != null;
+    }
+
+    /**
+     * True once the whole result has been written to output; a stage that ended
+     * early publishes EOF all the same, see JdbcSourceStage.isComplete.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    byte[] scratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (input == null) {
+                runFollower();
+            } else {
+                runLeader();
+            }
+        } catch (Exception e) {
+            logger.error("SingleFlightStage.run(): " + e.getClass().getName() + ": " + e.getMessage(), e);
+            requestShutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (input != null && !landed) {
+            // this stage failed or the graph is stopping, the followers can not finish either
+            flight.fail();
+        } else if (cursor != null) {
+            flight.leave(cursor);
+        }
+        PipeWriter.publishEOF(output);
+    }
+
+    private void runFollower() {
+        int fragments = fragmentsPerRun;
+        while (--fragments >= 0 && Pipe.roomToLowLevelWrite(output, room)) {
+            switch (flight.replay(this, plans, output)) {
+            case SingleFlight.Flight.REPLAYED:
+                break;
+            case SingleFlight.Flight.WAITING:
+                return;
+            case SingleFlight.Flight.ENDED:
+                complete = true;
+                requestShutdown();
+                return;
+            default:
+                requestShutdown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks for room before taking each fragment, so a fragment is never read
+     * that can not be written.
+     */
+    private void runLeader() {
+        int fragments = fragmentsPerRun;
+        while (--fragments >= 0 && Pipe.roomToLowLevelWrite(output, room) && PipeReader.tryReadFragment(input)) {
+            if (!PipeReader.isNewMessage(input)) {
+                throw new IllegalStateException("SingleFlightStage only moves single fragment messages");
+            }
+            int msgLoc = PipeReader.getMsgIdx(input);
+            if (msgLoc < 0) {
+                PipeReader.releaseReadLock(input);
+                landed = true;
+                if (source.isComplete()) {
+                    flight.land();
+                    complete = true;
+                } else {
+                    flight.fail();
+                }
+                requestShutdown();
+                return;
+            }
+            FragmentPlan plan = plans[msgLoc];
+            flight.record(plan, input, scratch(plan.recordSize(input)));
+            PrimitiveMetaMessageWriter.beginFragment(output, msgLoc);
+            plan.copy(input, output);
+            PipeWriter.publishWrites(output);
+            PipeReader.releaseReadLock(input);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.ociweb.pronghorn.components.sql.JdbcComponent;
+
+import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldLocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.NotImplementedException;
+
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+/**
+ * Column writers for the typed (user template) mode. Each writer holds the field
+ * LOCs resolved once from the template: the value field named after the column
+ * and, for nullable columns, an int32 field named column + "_IsNull" which is 1
+ * for SQL NULL. Null values still write the value field (0 or empty) so every
+ * field of the fragment is populated.
+ *
+ * A template can instead carry a row null bitmap: int64 fields "_NullBitmap0",
+ * "_NullBitmap1", ... one per 64 columns, bit (i & 63) of field i / 64 set when
+ * the i-th column (0 based) is NULL. The writers then set the bit in the
+ * stage's row bitmap rather than writing an _IsNull field.
+ *
+ * Field encodings follow the meta messages: float/double are sent as their
+ * IEEE bits in int32/int64, dates and times as milliseconds since the epoch in
+ * int64, and decimals as a FAST decimal with exponent = -scale.
+ */
+public class UserColumnWriters {
+
+    public static final String IS_NULL_SUFFIX = "_IsNull";
+    public static final String NULL_BITMAP_PREFIX = "_NullBitmap";
+    public static final String DICTIONARY_VALUE_SUFFIX = "_DictValue";
+    // codes are sent as uInt32, but the dictionary is bounded well below that
+    public static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public abstract static class UserColumnWriter extends ColumnWriter {
+        public final int valueLoc;
+        public final int isNullLoc; // -1 when the column is not nullable or the template has a null bitmap
+        private long[] rowNulls = null;
+
+        protected UserColumnWriter(Column column, int valueLoc, int isNullLoc) {
+            super(column, null);
+            this.valueLoc = valueLoc;
+            this.isNullLoc = isNullLoc;
+        }
+
+        /**
+         * Record nulls in the stage's row bitmap, cleared before every row.
+         */
+        public void setRowNulls(long[] rowNulls) {
+            this.rowNulls = rowNulls;
+        }
+
+        protected final void writeIsNull(Pipe ring, boolean isNull) {
+            if (isNullLoc >= 0) {
+                PipeWriter.writeInt(ring, isNullLoc, isNull ? 1 : 0);
+            } else if (isNull && rowNulls != null) {
+                int bit = index - 1;
+                rowNulls[bit >>> 6] |= 1L << (bit & 63);
+            }
+        }
+    }
+
+    public static int nullBitmapFields(int columns) {
+        return (columns + 63) >>> 6;
+    }
+
+    /**
+     * LOCs of the template's null bitmap fields, or null when it uses _IsNull
+     * fields instead.
+     */
+    public static int[] nullBitmapLocs(int messageLoc, FieldReferenceOffsetManager FROM, int columns) {
+        int[] locs = new int[nullBitmapFields(columns)];
+        for (int i = 0; i < locs.length; i++) {
+            locs[i] = optionalFieldLocator(NULL_BITMAP_PREFIX + i, messageLoc, FROM);
+            if (locs[i] < 0) {
+                if (i == 0) {
+                    return null;
+                }
+                throw new IllegalArgumentException("Template has " + i + " null bitmap fields, " + locs.length + " needed for " + columns + " columns");
+            }
+        }
+        return locs;
+    }
+
+    /**
+     * The field's LOC, or -1 when the template does not have it.
+     */
+    public static int optionalFieldLocator(String name, int messageLoc, FieldReferenceOffsetManager FROM) {
+        try {
+            return lookupFieldLocator(name, messageLoc, FROM);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The writer for a column of one of the standard java.sql.Types, see
+     * JdbcSourceStage.buildUserColumnWriter.
+     */
+    public static UserColumnWriter writer(Column column, int valueLoc, int isNullLoc) {
+        switch (column.type) {
+        case Types.BIT: // -7
+        case Types.BOOLEAN: // 16
+            return booleanWriter(column, valueLoc, isNullLoc);
+        case Types.TINYINT: // -6
+        case Types.SMALLINT: // 5
+        case Types.INTEGER: // 4
+            return intWriter(column, valueLoc, isNullLoc);
+        case Types.BIGINT: // -5
+            return longWriter(column, valueLoc, isNullLoc);
+        case Types.REAL: // 7
+            return floatWriter(column, valueLoc, isNullLoc);
+        case Types.FLOAT: // 6
+        case Types.DOUBLE: // 8
+            return doubleWriter(column, valueLoc, isNullLoc);
+        case Types.NUMERIC: // 2
+        case Types.DECIMAL: // 3
+            return decimalWriter(column, valueLoc, isNullLoc);
+        case Types.DATE: // 91
+            return dateWriter(column, valueLoc, isNullLoc);
+        case Types.TIME: // 92
+            return timeWriter(column, valueLoc, isNullLoc);
+        case Types.TIMESTAMP: // 93
+            return timestampWriter(column, valueLoc, isNullLoc);
+        case Types.CHAR: // 1
+        case Types.VARCHAR: // 12
+        case Types.LONGVARCHAR: // -1
+        case Types.NCHAR: // -15
+        case Types.NVARCHAR: // -9
+        case Types.LONGNVARCHAR: // -16
+            return utf8Writer(column, valueLoc, isNullLoc);
+        case Types.CLOB: // 2005
+        case Types.NCLOB: // 2011
+            return clobWriter(column, valueLoc, isNullLoc);
+        case Types.BINARY: // -2
+        case Types.VARBINARY: // -3
+        case Types.LONGVARBINARY: // -4
+            return bytesWriter(column, valueLoc, isNullLoc);
+        case Types.BLOB: // 2004
+            return blobWriter(column, valueLoc, isNullLoc);
+        case Types.OTHER: // 1111
+        case Types.JAVA_OBJECT: // 2000
+        case Types.ARRAY: // 2003
+            return serializedWriter(column, valueLoc, isNullLoc);
+        default:
+            throw new NotImplementedException(column.typeName + "/" + column.type + " not implemented for column " + column.index + "/" + column.name);
+        } // switch on column type
+    }
+
+    public static UserColumnWriter intWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                int value = rs.getInt(index);
+                writeIsNull(ring, rs.wasNull());
+                PipeWriter.writeInt(ring, valueLoc, value);
+            }
+        };
+    }
+
+    public static UserColumnWriter longWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                long value = rs.getLong(index);
+                writeIsNull(ring, rs.wasNull());
+                PipeWriter.writeLong(ring, valueLoc, value);
+            }
+        };
+    }
+
+    public static UserColumnWriter booleanWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                boolean value = rs.getBoolean(index);
+                writeIsNull(ring, rs.wasNull());
+                PipeWriter.writeInt(ring, valueLoc, value ? 1 : 0);
+            }
+        };
+    }
+
+    public static UserColumnWriter floatWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                float value = rs.getFloat(index);
+                writeIsNull(ring, rs.wasNull());
+                PipeWriter.writeInt(ring, valueLoc, Float.floatToIntBits(value));
+            }
+        };
+    }
+
+    public static UserColumnWriter doubleWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                double value = rs.getDouble(index);
+                writeIsNull(ring, rs.wasNull());
+                PipeWriter.writeLong(ring, valueLoc, Double.doubleToLongBits(value));
+            }
+        };
+    }
+
+    public static UserColumnWriter decimalWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                BigDecimal value = rs.getBigDecimal(index);
+                writeIsNull(ring, value == null);
+                if (value == null) {
+                    PipeWriter.writeDecimal(ring, valueLoc, 0, 0);
+                } else {
+                    BigInteger mantissa = value.unscaledValue();
+                    if (mantissa.bitLength() > 63) {
+                        throw new ArithmeticException("Decimal " + value + " does not fit in a 64 bit mantissa for column " + column);
+                    }
+                    PipeWriter.writeDecimal(ring, valueLoc, -value.scale(), mantissa.longValue());
+                }
+            }
+        };
+    }
+
+    public static UserColumnWriter dateWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                java.sql.Date value = rs.getDate(index);
+                writeIsNull(ring, value == null);
+                PipeWriter.writeLong(ring, valueLoc, (value == null) ? 0 : value.getTime());
+            }
+        };
+    }
+
+    public static UserColumnWriter timeWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                java.sql.Time value = rs.getTime(index);
+                writeIsNull(ring, value == null);
+                PipeWriter.writeLong(ring, valueLoc, (value == null) ? 0 : value.getTime());
+            }
+        };
+    }
+
+    public static UserColumnWriter timestampWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                java.sql.Timestamp value = rs.getTimestamp(index);
+                writeIsNull(ring, value == null);
+                PipeWriter.writeLong(ring, valueLoc, (value == null) ? 0 : value.getTime());
+            }
+        };
+    }
+
+    public static UserColumnWriter asciiWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readCharacters(rs);
+                writeIsNull(ring, length < 0);
+                PipeWriter.writeASCII(ring, valueLoc, chars(), 0, Math.max(0, length));
+            }
+        };
+    }
+
+    public static UserColumnWriter utf8Writer(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readCharacters(rs);
+                writeIsNull(ring, length < 0);
+                PipeWriter.writeUTF8(ring, valueLoc, chars(), 0, Math.max(0, length));
+            }
+        };
+    }
+
+    /**
+     * Dictionary encoded text, see ColumnEncoding. The uInt32 code field holds
+     * 1 + the value's index in a dictionary kept for the whole stream, and the
+     * dictValueLoc string field carries the value only when the code is new
+     * (code == dictionary size). Code 0 sends the value every time: for NULL
+     * (empty) and once the dictionary holds MAX_DICTIONARY_SIZE values.
+     */
+    public static UserColumnWriter dictionaryWriter(Column column, int codeLoc, int dictValueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, codeLoc, isNullLoc) {
+            private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                String value = rs.getString(index);
+                writeIsNull(ring, value == null);
+                if (value == null) {
+                    PipeWriter.writeInt(ring, valueLoc, 0);
+                    PipeWriter.writeUTF8(ring, dictValueLoc, "");
+                    return;
+                }
+                Integer code = codes.get(value);
+                if (code != null) {
+                    PipeWriter.writeInt(ring, valueLoc, code);
+                    PipeWriter.writeUTF8(ring, dictValueLoc, "");
+                } else if (codes.size() < MAX_DICTIONARY_SIZE) {
+                    int next = codes.size() + 1;
+                    codes.put(value, next);
+                    PipeWriter.writeInt(ring, valueLoc, next);
+                    PipeWriter.writeUTF8(ring, dictValueLoc, value);
+                } else {
+                    PipeWriter.writeInt(ring, valueLoc, 0);
+                    PipeWriter.writeUTF8(ring, dictValueLoc, value);
+                }
+            }
+        };
+    }
+
+    public static UserColumnWriter bytesWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                int length = readBinary(rs);
+                writeIsNull(ring, length < 0);
+                PipeWriter.writeBytes(ring, valueLoc, buffer(), 0, Math.max(0, length));
+            }
+        };
+    }
+
+    public static UserColumnWriter blobWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException {
+                Blob blob = rs.getBlob(index);
+                writeIsNull(ring, blob == null);
+                PipeWriter.writeBytes(ring, valueLoc, (blob == null) ? EMPTY : blob.getBytes(1l, (int) blob.length()));
+            }
+        };
+    }
+
+    public static UserColumnWriter clobWriter(Column column, int valueLoc, int isNullLoc) {
+        // getCharacterStream reads a CLOB as well, and a typed field holds the whole value anyway
+        return utf8Writer(column, valueLoc, isNullLoc);
+    }
+
+    public static UserColumnWriter serializedWriter(Column column, int valueLoc, int isNullLoc) {
+        return new UserColumnWriter(column, valueLoc, isNullLoc) {
+            @Override
+            public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                Object value = getObject(rs);
+                writeIsNull(ring, value == null);
+                PipeWriter.writeBytes(ring, valueLoc, (value == null) ? EMPTY : serialize(value));
+            }
+        };
+    }
+
+    public static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        try {
+            out.writeObject(value);
+        } finally {
+            out.close();
+        }
+        return bos.toByteArray();
+    }
+}
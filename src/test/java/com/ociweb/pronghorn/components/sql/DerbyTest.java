@@ -14,6 +14,7 @@ import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Calendar;
@@ -23,8 +24,15 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
+import com.ociweb.pronghorn.components.sql.DBUtil.LookupDecoder;
+import com.ociweb.pronghorn.components.sql.DBUtil.LookupRequests;
 import com.ociweb.pronghorn.components.sql.DBUtil.MetaDumper;
+import com.ociweb.pronghorn.components.sql.DBUtil.TemplateGenerator;
+import com.ociweb.pronghorn.components.sql.DBUtil.UserDumper;
 import com.ociweb.pronghorn.components.sql.DerbyComponent.DerbyStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.BatchLookupStage;
 import com.ociweb.pronghorn.pipe.MessageSchemaDynamic;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
@@ -74,6 +82,7 @@ public class DerbyTest {
         setupLONGVARCHARFORBITDATA(conn);
         setupUSERDEFINED(conn);
         setupXML(conn);
+        setupLOOKUP(conn);
 
         conn.commit();
         conn.close();
@@ -85,9 +94,9 @@ public class DerbyTest {
         try {
             GraphManager gm = new GraphManager();
             Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
-            DerbyStage stage = new DerbyStage(conn, sql, emitFieldNames, emitRowMarkers, output);
+            new DerbyStage(gm, conn, sql, emitFieldNames, emitRowMarkers, output);
             MetaDumper dumper = new MetaDumper(gm, output);
-            return runTest(stage, dumper);
+            return runTest(gm, dumper);
         } finally {
             conn.close();
         }
@@ -97,9 +106,9 @@ public class DerbyTest {
         // System.out.println("runMetaTest(): '" + stmt.toString() + "' " + emitFieldNames + " " + emitRowMarkers);
         Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
         GraphManager gm = new GraphManager();
-        DerbyStage stage = new DerbyStage(stmt, emitFieldNames, emitRowMarkers, output);
+        new DerbyStage(gm, stmt, emitFieldNames, emitRowMarkers, output);
         MetaDumper dumper = new MetaDumper(gm, output);
-        return runTest(stage, dumper);
+        return runTest(gm, dumper);
     }
 
     private static void setupINTEGER(Connection conn) throws SQLException {
@@ -118,6 +127,33 @@ public class DerbyTest {
         assertEquals(2, result.get(3));
     }
 
+    @Test
+    public void testINTEGER_fetchPolicy() throws Exception {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = getConnection();
+            // one row per round trip, the cursor must still deliver every row
+            stmt = FetchPolicy.DERBY.withFetchSize(1).prepare(conn, "SELECT Field, FieldNullable FROM INTEGERData");
+            assertEquals(ResultSet.TYPE_FORWARD_ONLY, stmt.getResultSetType());
+            assertEquals(ResultSet.CONCUR_READ_ONLY, stmt.getResultSetConcurrency());
+            assertEquals(1, stmt.getFetchSize());
+            List<Object> result = runMetaTest(stmt, false, false);
+            assertEquals(4, result.size());
+            assertEquals(0, result.get(0));
+            assertNull(result.get(1));
+            assertEquals(1, result.get(2));
+            assertEquals(2, result.get(3));
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
     @Test
     public void testINTEGER_rowmarkers() throws Exception {
         List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM INTEGERData", false, true);
@@ -879,4 +915,50 @@ public class DerbyTest {
         assertEquals(xml3, result.get(7));
     }
 
+    private static void setupLOOKUP(Connection conn) throws SQLException {
+        executeSQL(conn, "CREATE TABLE LOOKUPData (Id INTEGER NOT NULL PRIMARY KEY, Name VARCHAR(10))");
+        for (int id = 1; id <= 20; id++) {
+            executeSQL(conn, "INSERT INTO LOOKUPData (Id, Name) VALUES (" + id + ", 'N" + id + "')");
+        }
+    }
+
+    @Test
+    public void testLOOKUP_batch() throws Exception {
+        String sql = "SELECT Id, Name FROM LOOKUPData WHERE Id IN " + BatchLookupStage.IN_LIST + " ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(LookupRequests.KEY_REQUEST_XML))));
+            Column[] columns;
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                columns = Column.columns(stmt.getMetaData());
+            } finally {
+                stmt.close();
+            }
+            Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+            // a missing key, a key asked for twice and more requests than one batch holds
+            new LookupRequests(gm, requests, new String[] { "RequestId", "Id" }, new Object[][] {
+                { 1L, 3 },
+                { 2L, 7 },
+                { 3L, 99 },
+                { 4L, 3 },
+                { 5L, 20 }
+            });
+            BatchLookupStage stage = new BatchLookupStage(gm, conn, sql, "Id", requests, "Lookup", "RequestId", "Id", responses);
+            stage.setMaxBatch(4);
+            stage.setWindowMicros(1000);
+            LookupDecoder decoder = new LookupDecoder(columns);
+            List<Object> result = runTest(gm, new UserDumper(gm, responses, decoder));
+
+            assertArrayEquals(new Object[] { 3, "N3", "Done", 1L, 1 }, decoder.request(result, 1L).toArray());
+            assertArrayEquals(new Object[] { 7, "N7", "Done", 2L, 1 }, decoder.request(result, 2L).toArray());
+            assertArrayEquals(new Object[] { "Done", 3L, 0 }, decoder.request(result, 3L).toArray());
+            assertArrayEquals(new Object[] { 3, "N3", "Done", 4L, 1 }, decoder.request(result, 4L).toArray());
+            assertArrayEquals(new Object[] { 20, "N20", "Done", 5L, 1 }, decoder.request(result, 5L).toArray());
+        } finally {
+            conn.close();
+        }
+    }
+
 }
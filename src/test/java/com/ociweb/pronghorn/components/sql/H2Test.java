@@ -4,7 +4,12 @@ import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupFieldL
 import static com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager.lookupTemplateLocator;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import static com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil.executeSQL;
 import static com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil.deleteFile;
@@ -13,39 +18,78 @@ import static com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil.getDate;
 import static com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil.unicodeTwoHeartsGlyph;
 import static com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil.metaFROM;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.BeforeClass;
-import org.junit.Ignore;
 import org.junit.Test;
 
+import com.ociweb.pronghorn.components.sql.DBUtil.Column;
+import com.ociweb.pronghorn.components.sql.DBUtil.ColumnBatch;
+import com.ociweb.pronghorn.components.sql.DBUtil.ColumnEncoding;
 import com.ociweb.pronghorn.components.sql.DBUtil.DBTestUtil;
 import com.ociweb.pronghorn.components.sql.DBUtil.DBUtil;
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
+import com.ociweb.pronghorn.components.sql.DBUtil.LookupDecoder;
+import com.ociweb.pronghorn.components.sql.DBUtil.LookupRequests;
 import com.ociweb.pronghorn.components.sql.DBUtil.MetaDumper;
+import com.ociweb.pronghorn.components.sql.DBUtil.MetaVisitorAdapter;
+import com.ociweb.pronghorn.components.sql.DBUtil.RowDecoder;
+import com.ociweb.pronghorn.components.sql.DBUtil.Stmt;
+import com.ociweb.pronghorn.components.sql.DBUtil.TemplateGenerator;
 import com.ociweb.pronghorn.components.sql.DBUtil.UserDumper;
+import com.ociweb.pronghorn.components.sql.DBUtil.Watermark;
 import com.ociweb.pronghorn.components.sql.H2Component.H2Stage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.BatchLookupStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ColumnBatchWriter;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ColumnWriter;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.JdbcSourceStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.LookupStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.MergeStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.PartitionedScan;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ResultCache;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.ResultCacheStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.SingleFlight;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.SingleFlightStage;
+import com.ociweb.pronghorn.components.sql.JdbcComponent.UserColumnWriters;
 import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
 import com.ociweb.pronghorn.pipe.MessageSchemaDynamic;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+import com.ociweb.pronghorn.stage.scheduling.ThreadPerStageScheduler;
 
 public class H2Test {
     private org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(H2Test.class);
 
     private static String h2DB = "H2Test";
     private static String h2DBFile = "H2Test.mv.db";
+    private static String watermarkFile = "H2Test.watermark";
+    private static String exportFile = "H2Test.export";
 
     private static FieldReferenceOffsetManager userFROM = DBUtil.buildFROM("/userTemplate.xml");
 
@@ -59,6 +103,8 @@ public class H2Test {
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
         deleteFile(h2DBFile);
+        deleteFile(watermarkFile);
+        deleteFile(exportFile);
 
         // create the database and table
         Connection conn = getConnection();
@@ -85,6 +131,10 @@ public class H2Test {
         setupCLOB(conn);
         setupUUID(conn);
         setupARRAY(conn);
+        setupENCODING(conn);
+        setupPARTITION(conn);
+        setupMERGE(conn);
+        setupPOLL(conn);
 
         conn.commit();
         conn.close();
@@ -97,9 +147,9 @@ public class H2Test {
         try {
             Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
             GraphManager gm = new GraphManager();
-            H2Stage stage = new H2Stage(conn, sql, emitFieldNames, emitRowMarkers, output);
+            new H2Stage(gm, conn, sql, emitFieldNames, emitRowMarkers, output);
             MetaDumper dumper = new MetaDumper(gm, output);
-            return runTest(stage, dumper);
+            return runTest(gm, dumper);
         } finally {
             conn.close();
         }
@@ -109,20 +159,98 @@ public class H2Test {
         // System.out.println("runMetaTest(): '" + stmt.toString() + "' " + emitFieldNames + " " + emitRowMarkers);
         Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
         GraphManager gm = new GraphManager();
-        H2Stage stage = new H2Stage(stmt, emitFieldNames, emitRowMarkers, output);
+        new H2Stage(gm, stmt, emitFieldNames, emitRowMarkers, output);
         MetaDumper dumper = new MetaDumper(gm, output);
-        return runTest(stage, dumper);
+        return runTest(gm, dumper);
+    }
+
+    private List<Object> runLobTest(String sql, int lobChunkSize) throws Exception {
+        return runLobTest(sql, lobChunkSize, new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM))));
+    }
+
+    /**
+     * lobChunkSize 0 keeps the default, the pipe's variable length.
+     */
+    private List<Object> runLobTest(String sql, int lobChunkSize, Pipe output) throws Exception {
+        Connection conn = getConnection();
+        try {
+            GraphManager gm = new GraphManager();
+            H2Stage stage = new H2Stage(gm, conn, sql, true, false, output);
+            if (lobChunkSize > 0) {
+                stage.setLobChunkSize(lobChunkSize);
+            }
+            MetaDumper dumper = new MetaDumper(gm, output);
+            return runTest(gm, dumper);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private List<Object> runSchemaHeaderTest(String sql, boolean emitRowMarkers) throws Exception {
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            H2Stage stage = new H2Stage(gm, conn, sql, false, emitRowMarkers, output);
+            stage.setEmitSchemaHeader(true);
+            MetaDumper dumper = new MetaDumper(gm, output);
+            return runTest(gm, dumper);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private List<Object> runBatchTest(String sql, int batchRows) throws Exception {
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            H2Stage stage = new H2Stage(gm, conn, sql, false, false, output);
+            stage.setBatchRows(batchRows);
+            MetaDumper dumper = new MetaDumper(gm, output);
+            return runTest(gm, dumper);
+        } finally {
+            conn.close();
+        }
     }
 
     private List<Object> runUserTest(String sql, String message, UserDumper.Decoder decoder) throws Exception {
+        return runUserTest(sql, message, userFROM, decoder);
+    }
+
+    private List<Object> runUserTest(String sql, String message, FieldReferenceOffsetManager FROM, UserDumper.Decoder decoder) throws Exception {
         // System.out.println("runUserTest(): '" + sql + "' " + message);
         Connection conn = getConnection();
         try {
-            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(userFROM)));
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(FROM)));
             GraphManager gm = new GraphManager();
-            H2Stage stage = new H2Stage(conn, sql, message, userFROM, output);
+            new H2Stage(gm, conn, sql, message, FROM, output);
             UserDumper dumper = new UserDumper(gm, output, decoder);
-            return runTest(stage, dumper);
+            return runTest(gm, dumper);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private List<Object> runRowTest(String sql) throws Exception {
+        return runRowTest(sql, 0);
+    }
+
+    private List<Object> runRowTest(String sql, int sampleRows) throws Exception {
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, sql);
+            try {
+                FieldReferenceOffsetManager rowFROM = (sampleRows > 0) ? TemplateGenerator.rowFROM(conn, sql, sampleRows)
+                                                                       : TemplateGenerator.rowFROM(stmt.getColumns());
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                GraphManager gm = new GraphManager();
+                new H2Stage(gm, stmt.getStatement(), output);
+                UserDumper dumper = new UserDumper(gm, output, new RowDecoder(stmt.getColumns()));
+                return runTest(gm, dumper);
+            } finally {
+                stmt.close();
+            }
         } finally {
             conn.close();
         }
@@ -192,6 +320,36 @@ public class H2Test {
     }
     
     
+    @Test
+    public void testINT_fetchPolicy() throws Exception {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = getConnection();
+            // one row per round trip, the cursor must still deliver every row
+            stmt = FetchPolicy.H2.withFetchSize(1).prepare(conn, "SELECT Field, FieldNullable FROM INTData");
+            assertEquals(1, stmt.getFetchSize());
+            // the session setting took effect
+            ResultSet settings = conn.createStatement().executeQuery("SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = 'MAX_MEMORY_ROWS'");
+            assertTrue(settings.next());
+            assertEquals(String.valueOf(10 * FetchPolicy.DEFAULT_FETCH_SIZE), settings.getString(1));
+            settings.close();
+            List<Object> result = runMetaTest(stmt, false, false);
+            assertEquals(4, result.size());
+            assertEquals(0, result.get(0));
+            assertNull(result.get(1));
+            assertEquals(1, result.get(2));
+            assertEquals(2, result.get(3));
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
     @Test
     public void testINT_prepared() throws Exception {
         Connection conn = null;
@@ -248,10 +406,8 @@ public class H2Test {
         }
     }
 
-    @Ignore
     @Test
     public void testINT_user() throws Exception {
-        // something isn't right with this - as if the reads are out of synch with the writes
         List<Object> result = runUserTest("SELECT Field, FieldNullable FROM INTData", "INTData", new INTDecoder());
         assertEquals(4, result.size());
         assertEquals(0, result.get(0));
@@ -260,6 +416,183 @@ public class H2Test {
         assertEquals(2, result.get(3));
     }
 
+    @Test
+    public void testINT_generatedTemplate() throws Exception {
+        String sql = "SELECT Field, FieldNullable FROM INTData";
+        FieldReferenceOffsetManager FROM;
+        Connection conn = getConnection();
+        try {
+            FROM = TemplateGenerator.buildFROM(conn, sql, "INTData", 1);
+        } finally {
+            conn.close();
+        }
+        List<Object> result = runUserTest(sql, "INTData", FROM, new INTDecoder());
+        assertEquals(4, result.size());
+        assertEquals(0, result.get(0));
+        assertNull(result.get(1));
+        assertEquals(1, result.get(2));
+        assertEquals(2, result.get(3));
+    }
+
+    @Test
+    public void testINT_rowWiderThanPipe() throws Exception {
+        // a whole row of meta messages does not fit in this pipe, so rows must be written in pieces
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 5, (byte) 8, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            new H2Stage(gm, conn, "SELECT Field, FieldNullable, Field, FieldNullable, Field, FieldNullable FROM INTData", false, true, output);
+            List<Object> result = runTest(gm, new MetaDumper(gm, output));
+            assertEquals(16, result.size());
+            assertEquals("**BEGIN GROUP**", result.get(0));
+            assertEquals(0, result.get(1));
+            assertNull(result.get(2));
+            assertEquals("**END GROUP**", result.get(7));
+            assertEquals(1, result.get(13));
+            assertEquals(2, result.get(14));
+            assertEquals("**END GROUP**", result.get(15));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testINT_schemaHeader() throws Exception {
+        List<Object> result = runSchemaHeaderTest("SELECT Field, FieldNullable FROM INTData", true);
+        assertEquals(12, result.size());
+        assertEquals("**BEGIN GROUP**", result.get(0));
+        assertEquals("FIELD", result.get(1));
+        assertEquals(0, result.get(2));
+        assertEquals("FIELDNULLABLE", result.get(3));
+        assertNull(result.get(4));
+        assertEquals("**END GROUP**", result.get(5));
+        assertEquals("**BEGIN GROUP**", result.get(6));
+        assertEquals("FIELD", result.get(7));
+        assertEquals(1, result.get(8));
+        assertEquals("FIELDNULLABLE", result.get(9));
+        assertEquals(2, result.get(10));
+        assertEquals("**END GROUP**", result.get(11));
+    }
+
+    @Test
+    public void testINT_visitor() throws Exception {
+        final int[] sums = new int[2];
+        final int[] nulls = new int[2];
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            new H2Stage(gm, conn, "SELECT Field, FieldNullable FROM INTData", false, true, output);
+            MetaDumper dumper = new MetaDumper(gm, output, new MetaVisitorAdapter() {
+                @Override
+                public void onInt(int col, int value) {
+                    sums[col] += value;
+                }
+
+                @Override
+                public void onNull(int col) {
+                    nulls[col]++;
+                }
+            });
+            assertEquals(0, runTest(gm, dumper).size());
+        } finally {
+            conn.close();
+        }
+        assertEquals(1, sums[0]);
+        assertEquals(2, sums[1]);
+        assertEquals(0, nulls[0]);
+        assertEquals(1, nulls[1]);
+    }
+
+    @Test
+    public void testINT_rowNullBitmap() throws Exception {
+        // more than 64 nullable columns, so the row bitmap takes two fields
+        StringBuilder sql = new StringBuilder("SELECT Field");
+        for (int i = 0; i < 70; i++) {
+            sql.append(", FieldNullable AS N").append(i);
+        }
+        sql.append(" FROM INTData");
+        List<Object> result = runRowTest(sql.toString());
+        assertEquals(142, result.size());
+        assertEquals(0, result.get(0));
+        for (int i = 1; i <= 70; i++) {
+            assertNull(result.get(i));
+        }
+        assertEquals(1, result.get(71));
+        for (int i = 72; i < 142; i++) {
+            assertEquals(2, result.get(i));
+        }
+    }
+
+    @Test
+    public void testINT_batch() throws Exception {
+        // one row per batch, so the second batch only goes out after the first
+        List<Object> result = runBatchTest("SELECT Field, FieldNullable FROM INTData", 1);
+        assertEquals(4, result.size());
+        assertEquals(0, result.get(0));
+        assertNull(result.get(1));
+        assertEquals(1, result.get(2));
+        assertEquals(2, result.get(3));
+    }
+
+    @Test
+    public void testINT_batchColumns() throws Exception {
+        final int[] sums = new int[2];
+        final int[] nulls = new int[2];
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            H2Stage stage = new H2Stage(gm, conn, "SELECT Field, FieldNullable FROM INTData", false, false, output);
+            stage.setBatchRows(100);
+            MetaDumper dumper = new MetaDumper(gm, output, new MetaVisitorAdapter() {
+                @Override
+                public void onBatch(ColumnBatch batch) {
+                    for (int col = 0; col < batch.columns(); col++) {
+                        IntBuffer values = batch.ints(col);
+                        for (int row = 0; row < batch.rows(); row++) {
+                            if (batch.isNull(col, row)) {
+                                nulls[col]++;
+                            } else {
+                                sums[col] += values.get(row);
+                            }
+                        }
+                    }
+                }
+            });
+            assertEquals(0, runTest(gm, dumper).size());
+        } finally {
+            conn.close();
+        }
+        assertEquals(1, sums[0]);
+        assertEquals(2, sums[1]);
+        assertEquals(0, nulls[0]);
+        assertEquals(1, nulls[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testINT_batchWiderThanPipe() throws Exception {
+        // 100 rows of two ints take more than this pipe's variable length
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 5, (byte) 8, null, new MessageSchemaDynamic(metaFROM)));
+            H2Stage stage = new H2Stage(new GraphManager(), conn, "SELECT Field, FieldNullable FROM INTData", false, false, output);
+            stage.setBatchRows(100);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testINT_row() throws Exception {
+        List<Object> result = runRowTest("SELECT Field, FieldNullable FROM INTData");
+        assertEquals(4, result.size());
+        assertEquals(0, result.get(0));
+        assertNull(result.get(1));
+        assertEquals(1, result.get(2));
+        assertEquals(2, result.get(3));
+    }
+
     private static void setupBOOLEAN(Connection conn) throws SQLException {
         // TRUE and FALSE, java.lang.Boolean
         executeSQL(conn, "CREATE TABLE BOOLEANData (Field BOOLEAN NOT NULL, FieldNullable BOOLEAN);");
@@ -384,6 +717,85 @@ public class H2Test {
         assertEquals(2l, result.get(7));
     }
 
+    @Test
+    public void testBIGINT_allocation() throws Exception {
+        assumeTrue(allocatedBytes() >= 0);
+        // values far outside the Long cache, so boxing would allocate for every cell;
+        // both results stay below FetchPolicy.H2's MAX_MEMORY_ROWS, so H2 reads them from memory
+        long small = allocatedWhileWriting(2000);
+        long large = allocatedWhileWriting(8000);
+        double perRow = (double) (large - small) / 6000;
+        assertTrue("allocated " + perRow + " bytes per extra row", perRow < 4);
+    }
+
+    /**
+     * Bytes the stage thread allocated from the first to the last cell of a
+     * BIGINT result with rows rows.
+     */
+    private long allocatedWhileWriting(final int rows) throws Exception {
+        final long[] allocated = new long[2];
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            new H2Stage(gm, conn, "SELECT X * 1099511627776 AS Field FROM SYSTEM_RANGE(1, " + rows + ")", false, false, output) {
+                @Override
+                protected ColumnWriter buildColumnWriter(Column column, String columnName) throws SQLException {
+                    final ColumnWriter writer = super.buildColumnWriter(column, columnName);
+                    return new ColumnWriter(column, columnName) {
+                        private int written = 0;
+
+                        @Override
+                        public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+                            if (written == 0) {
+                                allocated[0] = allocatedBytes();
+                            }
+                            writer.write(rs, ring);
+                            if (++written == rows) {
+                                allocated[1] = allocatedBytes();
+                            }
+                        }
+                    };
+                }
+            };
+            assertEquals(rows, runTest(gm, new MetaDumper(gm, output)).size());
+        } finally {
+            conn.close();
+        }
+        return allocated[1] - allocated[0];
+    }
+
+    private static final Object THREAD_BEAN;
+    private static final Method THREAD_ALLOCATED_BYTES;
+    static {
+        // by reflection, the compact2 profile has no java.lang.management
+        Object bean = null;
+        Method allocatedBytes = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            bean = null;
+        }
+        THREAD_BEAN = bean;
+        THREAD_ALLOCATED_BYTES = allocatedBytes;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 when the JVM doesn't
+     * count them.
+     */
+    private static long allocatedBytes() {
+        if (THREAD_BEAN == null) {
+            return -1;
+        }
+        try {
+            return (Long) THREAD_ALLOCATED_BYTES.invoke(THREAD_BEAN, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
     private static void setupIDENTITY(Connection conn) throws SQLException {
         // -9223372036854775808 to 9223372036854775807, java.lang.Long
         executeSQL(conn, "CREATE TABLE IDENTITYData (Field IDENTITY NOT NULL, FieldNullable INT);");
@@ -432,6 +844,16 @@ public class H2Test {
         assertEquals(BigDecimal.valueOf(4000, 4), result.get(3));
     }
 
+    @Test
+    public void testDECIMAL_row() throws Exception {
+        List<Object> result = runRowTest("SELECT Field, FieldNullable FROM DECIMALData");
+        assertEquals(4, result.size());
+        assertEquals(BigDecimal.valueOf(10, 2), result.get(0));
+        assertNull(result.get(1));
+        assertEquals(BigDecimal.valueOf(20, 2), result.get(2));
+        assertEquals(BigDecimal.valueOf(4000, 4), result.get(3));
+    }
+
     @Test
     public void testDECIMAL_names() throws Exception {
         List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM DECIMALData", true, false);
@@ -446,6 +868,39 @@ public class H2Test {
         assertEquals(BigDecimal.valueOf(4000, 4), result.get(7));
     }
 
+    @Test
+    public void testDECIMAL_batch() throws Exception {
+        List<Object> result = runBatchTest("SELECT Field, FieldNullable FROM DECIMALData", 10);
+        assertEquals(4, result.size());
+        assertEquals(BigDecimal.valueOf(10, 2), result.get(0));
+        assertNull(result.get(1));
+        assertEquals(BigDecimal.valueOf(20, 2), result.get(2));
+        assertEquals(0, BigDecimal.valueOf(4, 1).compareTo((BigDecimal) result.get(3)));
+    }
+
+    @Test
+    public void testDECIMAL_batchComputed() throws Exception {
+        // computed values may have a larger scale than the metadata reports
+        List<Object> result = runBatchTest("SELECT Field * FieldNullable AS Product, Field + 0.001 AS Shifted, (SELECT AVG(d.Field) FROM DECIMALData d) AS Average FROM DECIMALData", 10);
+        assertEquals(6, result.size());
+        assertNull(result.get(0));
+        assertEquals(0, new BigDecimal("0.101").compareTo((BigDecimal) result.get(1)));
+        assertEquals(0, new BigDecimal("0.15").compareTo((BigDecimal) result.get(2)));
+        assertEquals(0, new BigDecimal("0.08").compareTo((BigDecimal) result.get(3)));
+        assertEquals(0, new BigDecimal("0.201").compareTo((BigDecimal) result.get(4)));
+        assertEquals(0, new BigDecimal("0.15").compareTo((BigDecimal) result.get(5)));
+    }
+
+    @Test
+    public void testDECIMAL_schemaHeader() throws Exception {
+        // the non-null nullable cell is preceded by a NOTNULL=1 message, which must not be named
+        List<Object> result = runSchemaHeaderTest("SELECT Field, FieldNullable FROM DECIMALData", false);
+        assertArrayEquals(runMetaTest("SELECT Field, FieldNullable FROM DECIMALData", true, false).toArray(), result.toArray());
+        assertEquals(8, result.size());
+        assertEquals("FIELDNULLABLE", result.get(6));
+        assertEquals(BigDecimal.valueOf(4000, 4), result.get(7));
+    }
+
     private static void setupDOUBLE(Connection conn) throws SQLException {
         // floating point number, java.lang.Double
         executeSQL(conn, "CREATE TABLE DOUBLEData (Field DOUBLE NOT NULL, FieldNullable DOUBLE);");
@@ -573,6 +1028,15 @@ public class H2Test {
         assertEquals(getDate(2010, Calendar.JANUARY, 3, 0, 0, 0, 0), result.get(7));
     }
 
+    @Test
+    public void testDATE_schemaHeader() throws Exception {
+        List<Object> result = runSchemaHeaderTest("SELECT Field, FieldNullable FROM DATEData", false);
+        assertArrayEquals(runMetaTest("SELECT Field, FieldNullable FROM DATEData", true, false).toArray(), result.toArray());
+        assertEquals(8, result.size());
+        assertEquals("FIELDNULLABLE", result.get(6));
+        assertEquals(getDate(2010, Calendar.JANUARY, 3, 0, 0, 0, 0), result.get(7));
+    }
+
     private static void setupTIMESTAMP(Connection conn) throws SQLException {
         // yyyy-MM-dd hh:mm:ss[.nnnnnnnnn], java.sql.Timestamp - really java.util.Date, plus a holder for fractional
         // seconds
@@ -729,6 +1193,26 @@ public class H2Test {
         assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(3));
     }
 
+    @Test
+    public void testVARCHAR_row() throws Exception {
+        List<Object> result = runRowTest("SELECT Field, FieldNullable FROM VARCHARData");
+        assertEquals(4, result.size());
+        assertEquals("Bob", result.get(0));
+        assertNull(result.get(1));
+        assertEquals("Fred", result.get(2));
+        assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(3));
+    }
+
+    @Test
+    public void testVARCHAR_batch() throws Exception {
+        List<Object> result = runBatchTest("SELECT Field, FieldNullable FROM VARCHARData", 10);
+        assertEquals(4, result.size());
+        assertEquals("Bob", result.get(0));
+        assertNull(result.get(1));
+        assertEquals("Fred", result.get(2));
+        assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(3));
+    }
+
     @Test
     public void testVARCHAR_names() throws Exception {
         List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM VARCHARData", true, false);
@@ -790,6 +1274,21 @@ public class H2Test {
         ps.setBytes(2, ba3);
         ps.execute();
         ps.close();
+
+        // much larger than the blob ring of a small pipe
+        executeSQL(conn, "CREATE TABLE BLOBLargeData (Field BLOB NOT NULL);");
+        ps = conn.prepareStatement("INSERT INTO BLOBLargeData (Field) values (?);");
+        ps.setBytes(1, largeBlob());
+        ps.execute();
+        ps.close();
+    }
+
+    private static byte[] largeBlob() {
+        byte[] blob = new byte[100 * 1024];
+        for (int i = 0; i < blob.length; i++) {
+            blob[i] = (byte) (i % 251);
+        }
+        return blob;
     }
 
     @Test
@@ -822,20 +1321,1112 @@ public class H2Test {
         assertArrayEquals(ba3, (byte[]) result.get(7));
     }
 
-    private static void setupCLOB(Connection conn) throws SQLException {
-        // like VARCHAR but for large values, java.sql.Clob or java.io.Reader
-        executeSQL(conn, "CREATE TABLE CLOBData (Field CLOB NOT NULL, FieldNullable CLOB);");
-        executeSQL(conn, "INSERT INTO CLOBData (Field, FieldNullable) VALUES ('Bob', NULL);");
-        executeSQL(conn, "INSERT INTO CLOBData (Field, FieldNullable) VALUES ('Fred', 'Alice" + unicodeTwoHeartsGlyph + "');");
-        // use setCharacterStream() instead?
+    @Test
+    public void testBLOB_chunked() throws Exception {
+        // 4 byte chunks, so each value goes out as one or two chunks
+        List<Object> result = runLobTest("SELECT Field, FieldNullable FROM BLOBData", 4);
+        byte[] ba1 = { 0, 1, 2, 3, 4, 5 };
+        byte[] ba2 = { 1, 2, 3, 4, 5 };
+        byte[] ba3 = { 2, 3, 4, 5 };
+        assertEquals(8, result.size());
+        assertEquals("FIELD", result.get(0));
+        assertArrayEquals(ba1, (byte[]) result.get(1));
+        assertEquals("FIELDNULLABLE", result.get(2));
+        assertNull(result.get(3));
+        assertEquals("FIELD", result.get(4));
+        assertArrayEquals(ba2, (byte[]) result.get(5));
+        assertEquals("FIELDNULLABLE", result.get(6));
+        assertArrayEquals(ba3, (byte[]) result.get(7));
     }
 
     @Test
-    public void testCLOB() throws Exception {
-        List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM CLOBData", false, false);
-        assertEquals(4, result.size());
-        assertEquals("Bob", result.get(0));
-        assertNull(result.get(1));
+    public void testBLOB_smallPipe() throws Exception {
+        // a 4KB blob ring: the default chunk size follows the pipe, not a fixed 64KB
+        Pipe output = new Pipe(new PipeConfig((byte) 6, (byte) 12, null, new MessageSchemaDynamic(metaFROM)));
+        assertTrue(output.maxAvgVarLen < 4096);
+        List<Object> result = runLobTest("SELECT Field FROM BLOBLargeData", 0, output);
+        assertEquals(2, result.size());
+        assertEquals("FIELD", result.get(0));
+        assertArrayEquals(largeBlob(), (byte[]) result.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBLOB_chunkLargerThanPipe() throws Exception {
+        Pipe output = new Pipe(new PipeConfig((byte) 6, (byte) 12, null, new MessageSchemaDynamic(metaFROM)));
+        runLobTest("SELECT Field FROM BLOBLargeData", output.maxAvgVarLen + 1, output);
+    }
+
+    @Test
+    public void testBLOB_batchWiderThanPipe() throws Exception {
+        // a BLOB has no declared width, so only publish can tell the batch is too long
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 6, (byte) 12, null, new MessageSchemaDynamic(metaFROM)));
+            String sql = "SELECT Field FROM BLOBLargeData";
+            Column[] columns = new Stmt(conn, sql).getColumns();
+            assertTrue(ColumnBatchWriter.maxEncodedSize(columns, 1) <= output.maxAvgVarLen);
+            ColumnBatchWriter batch = new ColumnBatchWriter(new ColumnBatchWriter.BatchColumn[] { ColumnBatchWriter.column(columns[0], 1) }, 1);
+            ResultSet rs = conn.createStatement().executeQuery(sql);
+            assertTrue(rs.next());
+            batch.append(rs);
+            rs.close();
+            try {
+                batch.publish(output);
+                fail("a 100KB batch was published to a pipe with a 4KB blob ring");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("variable length"));
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static final String[] encodingStatus = { "NEW", "OPEN", "DONE" };
+
+    private static void setupENCODING(Connection conn) throws SQLException {
+        // an increasing key and a low cardinality string, for ColumnEncoding
+        executeSQL(conn, "CREATE TABLE ENCODINGData (Id INT AUTO_INCREMENT PRIMARY KEY, Status VARCHAR(10));");
+        for (int i = 0; i < 40; i++) {
+            String status = (i % 10 == 9) ? "NULL" : "'" + encodingStatus[i % 3] + "'";
+            executeSQL(conn, "INSERT INTO ENCODINGData (Status) VALUES (" + status + ");");
+        }
+    }
+
+    @Test
+    public void testENCODING_choose() throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, sql);
+            try {
+                int[] encodings = ColumnEncoding.choose(conn, sql, stmt.getColumns(), ColumnEncoding.DEFAULT_SAMPLE_ROWS);
+                assertEquals(ColumnEncoding.DELTA, encodings[0]);
+                assertEquals(ColumnEncoding.DICTIONARY, encodings[1]);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_chooseBound() throws Exception {
+        // the sample runs with the parameters bound: 32 rows are enough for a dictionary, 4 are not
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id > ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, sql);
+            try {
+                assertEquals(ColumnEncoding.DICTIONARY, ColumnEncoding.choose(conn, sql, stmt.getColumns(), ColumnEncoding.DEFAULT_SAMPLE_ROWS, 8)[1]);
+                assertEquals(ColumnEncoding.NONE, ColumnEncoding.choose(conn, sql, stmt.getColumns(), ColumnEncoding.DEFAULT_SAMPLE_ROWS, 36)[1]);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_rowBound() throws Exception {
+        // the template is sampled from the same bound statement the stage then runs
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id > ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                stmt.setInt(1, 8);
+                FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(stmt, ColumnEncoding.DEFAULT_SAMPLE_ROWS);
+                assertEquals(0, stmt.getMaxRows());
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                GraphManager gm = new GraphManager();
+                new H2Stage(gm, stmt, output);
+                List<Object> result = runTest(gm, new UserDumper(gm, output, new RowDecoder(Column.columns(stmt.getMetaData()))));
+                assertEquals(64, result.size());
+                for (int i = 8; i < 40; i++) {
+                    assertEquals(i + 1, result.get(2 * (i - 8)));
+                    assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * (i - 8) + 1));
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_row() throws Exception {
+        List<Object> result = runRowTest("SELECT Id, Status FROM ENCODINGData ORDER BY Id", ColumnEncoding.DEFAULT_SAMPLE_ROWS);
+        assertEquals(80, result.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 1, result.get(2 * i));
+            assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * i + 1));
+        }
+    }
+
+    @Test
+    public void testENCODING_partitioned() throws Exception {
+        int partitions = 4;
+        Connection[] connections = new Connection[partitions];
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe[] pipes = new Pipe[partitions];
+            MetaDumper[] dumpers = new MetaDumper[partitions];
+            for (int i = 0; i < partitions; i++) {
+                connections[i] = getConnection();
+                pipes[i] = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+                dumpers[i] = new MetaDumper(gm, pipes[i]);
+            }
+            PartitionedScan scan = new PartitionedScan("ENCODINGData", "Id", "Id", FetchPolicy.H2);
+            scan.setOrdered(true);
+            scan.stages(gm, connections, pipes, new PartitionedScan.SourceFactory() {
+                @Override
+                public JdbcSourceStage create(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+                    return new H2Stage(gm, stmt, false, false, ring);
+                }
+            });
+            runTest(gm, dumpers[0]);
+            // ids 1..40 in four ranges of ten
+            for (int i = 0; i < partitions; i++) {
+                List<Object> result = dumpers[i].result();
+                assertEquals(10, result.size());
+                for (int row = 0; row < 10; row++) {
+                    assertEquals(i * 10 + row + 1, result.get(row));
+                }
+            }
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private static final long[] partitionKeys = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 1000, 1000000 };
+
+    private static void setupPARTITION(Connection conn) throws SQLException {
+        // a skewed key: nearly every row falls in the first of the even ranges, and some keys are NULL
+        executeSQL(conn, "CREATE TABLE PARTITIONData (Id BIGINT, Name VARCHAR(10));");
+        for (long key : partitionKeys) {
+            executeSQL(conn, "INSERT INTO PARTITIONData (Id, Name) VALUES (" + key + ", 'Row" + key + "');");
+        }
+        for (int i = 0; i < 3; i++) {
+            executeSQL(conn, "INSERT INTO PARTITIONData (Id, Name) VALUES (NULL, 'Null" + i + "');");
+        }
+        executeSQL(conn, "CREATE TABLE PARTITIONEmpty (Id BIGINT, Name VARCHAR(10));");
+    }
+
+    /**
+     * The keys read by each partition of a scan of table.
+     */
+    private List<Object>[] runPartitionTest(String table, int partitions, long[] boundaries) throws Exception {
+        Connection[] connections = new Connection[partitions];
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe[] pipes = new Pipe[partitions];
+            MetaDumper[] dumpers = new MetaDumper[partitions];
+            for (int i = 0; i < partitions; i++) {
+                connections[i] = getConnection();
+                pipes[i] = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+                dumpers[i] = new MetaDumper(gm, pipes[i]);
+            }
+            PartitionedScan scan = new PartitionedScan(table, "Id", "Id", FetchPolicy.H2);
+            System.arraycopy(scan.boundaries(connections[0], partitions), 0, boundaries, 0, partitions - 1);
+            scan.stages(gm, connections, pipes, new PartitionedScan.SourceFactory() {
+                @Override
+                public JdbcSourceStage create(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+                    return new H2Stage(gm, stmt, false, false, ring);
+                }
+            });
+            runTest(gm, dumpers[0]);
+            @SuppressWarnings("unchecked")
+            List<Object>[] results = new List[partitions];
+            for (int i = 0; i < partitions; i++) {
+                results[i] = dumpers[i].result();
+            }
+            return results;
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPARTITION_skewed() throws Exception {
+        int partitions = 4;
+        long[] boundaries = new long[partitions - 1];
+        List<Object>[] results = runPartitionTest("PARTITIONData", partitions, boundaries);
+        List<Long> keys = new ArrayList<Long>();
+        int nulls = 0;
+        for (int i = 0; i < partitions; i++) {
+            for (Object key : results[i]) {
+                if (key == null) {
+                    // NULL keys only in partition 0
+                    assertEquals(0, i);
+                    nulls++;
+                    continue;
+                }
+                long id = (Long) key;
+                assertTrue(i == 0 || id >= boundaries[i - 1]);
+                assertTrue(i == partitions - 1 || id < boundaries[i]);
+                keys.add(id);
+            }
+        }
+        assertEquals(3, nulls);
+        // every key exactly once, however uneven the ranges
+        Collections.sort(keys);
+        assertEquals(partitionKeys.length, keys.size());
+        for (int i = 0; i < partitionKeys.length; i++) {
+            assertEquals(partitionKeys[i], (long) keys.get(i));
+        }
+        // 1..10, 1000 and the NULLs below the first boundary, only 1000000 above the last
+        assertEquals(14, results[0].size());
+        assertEquals(0, results[1].size());
+        assertEquals(0, results[2].size());
+        assertEquals(1, results[3].size());
+    }
+
+    @Test
+    public void testPARTITION_empty() throws Exception {
+        int partitions = 3;
+        List<Object>[] results = runPartitionTest("PARTITIONEmpty", partitions, new long[partitions - 1]);
+        for (int i = 0; i < partitions; i++) {
+            assertEquals(0, results[i].size());
+        }
+    }
+
+    @Test
+    public void testPARTITION_moreThanKeys() throws Exception {
+        // more partitions than distinct keys in the range: some are empty, none overlap
+        int partitions = 8;
+        long[] boundaries = new long[partitions - 1];
+        List<Object>[] results = runPartitionTest("(SELECT Id FROM PARTITIONData WHERE Id <= 3) AS Small", partitions, boundaries);
+        int rows = 0;
+        for (int i = 0; i < partitions; i++) {
+            rows += results[i].size();
+        }
+        assertEquals(3, rows);
+    }
+
+    @Test
+    public void testENCODING_merged() throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData";
+        int partitions = 3;
+        Connection[] connections = new Connection[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                connections[i] = getConnection();
+            }
+            Stmt stmt = new Stmt(connections[0], sql);
+            Column[] columns = stmt.getColumns();
+            stmt.close();
+            FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(columns);
+
+            GraphManager gm = new GraphManager();
+            Pipe[] pipes = new Pipe[partitions];
+            for (int i = 0; i < partitions; i++) {
+                pipes[i] = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+            }
+            PartitionedScan scan = new PartitionedScan("ENCODINGData", "Id", "Id, Status", FetchPolicy.H2);
+            scan.setOrdered(true);
+            scan.stages(gm, connections, pipes, new PartitionedScan.SourceFactory() {
+                @Override
+                public JdbcSourceStage create(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+                    return new H2Stage(gm, stmt, ring);
+                }
+            });
+            Pipe merged = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+            new MergeStage(gm, pipes, merged, TemplateGenerator.ROW_TEMPLATE_NAME, "ID");
+            List<Object> result = runTest(gm, new UserDumper(gm, merged, new RowDecoder(columns)));
+            assertEquals(80, result.size());
+            for (int i = 0; i < 40; i++) {
+                assertEquals(i + 1, result.get(2 * i));
+                assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * i + 1));
+            }
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private List<Object> runExportTest(int pageRows) throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id > ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, sql);
+            try {
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.rowFROM(stmt.getColumns()))));
+                GraphManager gm = new GraphManager();
+                H2Stage stage = new H2Stage(gm, stmt.getStatement(), output);
+                stage.setPaging(new Watermark("Id", new File(exportFile), "0"), pageRows);
+                UserDumper dumper = new UserDumper(gm, output, new RowDecoder(stmt.getColumns()));
+                return runTest(gm, dumper);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_mergedDictionary() throws Exception {
+        // every partition numbers the Status strings on its own, the merge must encode them again
+        String sql = "SELECT Id, Status FROM ENCODINGData";
+        int partitions = 3;
+        Connection[] connections = new Connection[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                connections[i] = getConnection();
+            }
+            Stmt stmt = new Stmt(connections[0], sql);
+            Column[] columns = stmt.getColumns();
+            stmt.close();
+            FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(connections[0], sql, ColumnEncoding.DEFAULT_SAMPLE_ROWS);
+            assertTrue(UserColumnWriters.optionalFieldLocator("STATUS" + UserColumnWriters.DICTIONARY_VALUE_SUFFIX,
+                                                              lookupTemplateLocator(TemplateGenerator.ROW_TEMPLATE_NAME, rowFROM), rowFROM) >= 0);
+
+            GraphManager gm = new GraphManager();
+            Pipe[] pipes = new Pipe[partitions];
+            for (int i = 0; i < partitions; i++) {
+                pipes[i] = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+            }
+            PartitionedScan scan = new PartitionedScan("ENCODINGData", "Id", "Id, Status", FetchPolicy.H2);
+            scan.setOrdered(true);
+            scan.stages(gm, connections, pipes, new PartitionedScan.SourceFactory() {
+                @Override
+                public JdbcSourceStage create(GraphManager gm, PreparedStatement stmt, Pipe ring) throws SQLException {
+                    return new H2Stage(gm, stmt, ring);
+                }
+            });
+            Pipe merged = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+            new MergeStage(gm, pipes, merged, TemplateGenerator.ROW_TEMPLATE_NAME, "ID");
+            List<Object> result = runTest(gm, new UserDumper(gm, merged, new RowDecoder(columns)));
+            assertEquals(80, result.size());
+            for (int i = 0; i < 40; i++) {
+                assertEquals(i + 1, result.get(2 * i));
+                assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * i + 1));
+            }
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private static final int mergeSources = 3;
+    private static final int mergeKeys = 30;
+
+    private static void setupMERGE(Connection conn) throws SQLException {
+        // every source has the same keys, and a different Status for each, so the inputs of a merge tie on every key
+        executeSQL(conn, "CREATE TABLE MERGEData (Id INT NOT NULL, Source INT NOT NULL, Status VARCHAR(10));");
+        for (int source = 0; source < mergeSources; source++) {
+            for (int id = 1; id <= mergeKeys; id++) {
+                executeSQL(conn, "INSERT INTO MERGEData (Id, Source, Status) VALUES (" + id + ", " + source + ", '" + encodingStatus[(id + source) % 3] + "');");
+            }
+        }
+    }
+
+    @Test
+    public void testMERGE_duplicateKeys() throws Exception {
+        String sql = "SELECT Id, Source, Status FROM MERGEData WHERE Source = ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            Stmt meta = new Stmt(conn, sql);
+            Column[] columns = meta.getColumns();
+            meta.close();
+            FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(conn, sql, ColumnEncoding.DEFAULT_SAMPLE_ROWS, 0);
+            GraphManager gm = new GraphManager();
+            Pipe[] pipes = new Pipe[mergeSources];
+            for (int source = 0; source < mergeSources; source++) {
+                pipes[source] = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                PreparedStatement stmt = conn.prepareStatement(sql);
+                stmt.setInt(1, source);
+                new H2Stage(gm, stmt, pipes[source]);
+            }
+            Pipe merged = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+            new MergeStage(gm, pipes, merged, TemplateGenerator.ROW_TEMPLATE_NAME, "ID");
+            List<Object> result = runTest(gm, new UserDumper(gm, merged, new RowDecoder(columns)));
+            // equal keys come out in input order
+            assertEquals(3 * mergeSources * mergeKeys, result.size());
+            int row = 0;
+            for (int id = 1; id <= mergeKeys; id++) {
+                for (int source = 0; source < mergeSources; source++) {
+                    assertEquals(id, result.get(row++));
+                    assertEquals(source, result.get(row++));
+                    assertEquals(encodingStatus[(id + source) % 3], result.get(row++));
+                }
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_export() throws Exception {
+        // pages of 16, 16 and 8 rows
+        List<Object> result = runExportTest(16);
+        assertEquals(80, result.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 1, result.get(2 * i));
+            assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * i + 1));
+        }
+        assertEquals("40", readWatermark(exportFile));
+
+        // an export that stopped after Id 30 resumes with 31
+        Files.write(new File(exportFile).toPath(), "30\n".getBytes("UTF-8"));
+        result = runExportTest(4);
+        assertEquals(20, result.size());
+        for (int i = 30; i < 40; i++) {
+            assertEquals(i + 1, result.get(2 * (i - 30)));
+        }
+        assertEquals("40", readWatermark(exportFile));
+    }
+
+    @Test
+    public void testENCODING_exportPageBoundary() throws Exception {
+        // 40 rows in pages of 10: the last page is full, so only the empty page after it ends the export
+        Files.write(new File(exportFile).toPath(), "0\n".getBytes("UTF-8"));
+        List<Object> result = runExportTest(10);
+        assertEquals(80, result.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 1, result.get(2 * i));
+        }
+        assertEquals("40", readWatermark(exportFile));
+
+        // stopped exactly at the end of the second page: resumes with the first row of the third
+        Files.write(new File(exportFile).toPath(), "20\n".getBytes("UTF-8"));
+        result = runExportTest(10);
+        assertEquals(40, result.size());
+        for (int i = 20; i < 40; i++) {
+            assertEquals(i + 1, result.get(2 * (i - 20)));
+            assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], result.get(2 * (i - 20) + 1));
+        }
+        assertEquals("40", readWatermark(exportFile));
+
+        // stopped after the last page had been acknowledged: nothing is sent again
+        result = runExportTest(10);
+        assertEquals(0, result.size());
+        assertEquals("40", readWatermark(exportFile));
+    }
+
+    @Test
+    public void testENCODING_exportSlowConsumer() throws Exception {
+        // all four pages of 10 fit in the pipe, the consumer stops after 15 rows
+        Files.write(new File(exportFile).toPath(), "0\n".getBytes("UTF-8"));
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id > ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, sql);
+            try {
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.rowFROM(stmt.getColumns()))));
+                GraphManager gm = new GraphManager();
+                H2Stage stage = new H2Stage(gm, stmt.getStatement(), output);
+                stage.setPaging(new Watermark("Id", new File(exportFile), "0"), 10);
+                final RowDecoder rows = new RowDecoder(stmt.getColumns());
+                final CountDownLatch gate = new CountDownLatch(1);
+                UserDumper dumper = new UserDumper(gm, output, new UserDumper.Decoder() {
+                    private int decoded = 0;
+
+                    @Override
+                    public boolean decode(Pipe ring, int templateID, List<Object> output) throws Exception {
+                        if (++decoded == 16) {
+                            gate.await(1, TimeUnit.MINUTES);
+                        }
+                        return rows.decode(ring, templateID, output);
+                    }
+                });
+                StageScheduler scheduler = new ThreadPerStageScheduler(gm);
+                scheduler.startup();
+                // the first page is released while the later ones are still waiting in the pipe
+                waitForWatermark(exportFile, "10");
+                assertEquals("10", readWatermark(exportFile));
+                gate.countDown();
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+                assertEquals(80, dumper.result().size());
+                assertEquals("40", readWatermark(exportFile));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testENCODING_exportEmptyWatermark() throws Exception {
+        // an empty file is damage, not a reason to export everything again
+        Files.write(new File(exportFile).toPath(), new byte[0]);
+        Connection conn = getConnection();
+        try {
+            Stmt stmt = new Stmt(conn, "SELECT Id FROM ENCODINGData WHERE Id > ?");
+            try {
+                new Watermark("Id", new File(exportFile), "0").open(stmt.getColumns());
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+            deleteFile(exportFile);
+        }
+    }
+
+    private static final String lookupRequestXML =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<templates xmlns=\"http://www.fixprotocol.org/ns/fast/td/1.1\">\n" +
+        "<template name=\"Lookup\" id=\"1\">\n" +
+        "\t<int64 name=\"RequestId\" id=\"1\"/>\n" +
+        "\t<string name=\"Status\" id=\"2\" charset=\"unicode\"/>\n" +
+        "\t<int32 name=\"MaxId\" id=\"3\"/>\n" +
+        "</template>\n" +
+        "</templates>\n";
+
+    @Test
+    public void testENCODING_lookup() throws Exception {
+        Connection conn = getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT Id, Status FROM ENCODINGData WHERE Status = ? AND Id <= ? ORDER BY Id");
+            try {
+                Column[] columns = Column.columns(stmt.getMetaData());
+                GraphManager gm = new GraphManager();
+                Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(lookupRequestXML))));
+                Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+                new LookupRequests(gm, requests, new String[] { "RequestId", "Status", "MaxId" }, new Object[][] {
+                    { 100L, "OPEN", 10 },
+                    { 101L, "NONE", 40 },
+                    { 102L, "DONE", 6 }
+                });
+                new LookupStage(gm, stmt, requests, "Lookup", "RequestId", responses);
+                List<Object> result = runTest(gm, new UserDumper(gm, responses, new LookupDecoder(columns)));
+                Object[] expected = {
+                    100L, 2, "OPEN", 100L, 5, "OPEN", 100L, 8, "OPEN", "Done", 100L, 3,
+                    "Done", 101L, 0,
+                    102L, 3, "DONE", 102L, 6, "DONE", "Done", 102L, 2
+                };
+                assertArrayEquals(expected, result.toArray());
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Delegates to writer but throws in place of its failAt'th value, to fail a
+     * stage part way through a result.
+     */
+    private static class FailingWriter extends ColumnWriter {
+        private final ColumnWriter writer;
+        private int remaining;
+
+        FailingWriter(ColumnWriter writer, int failAt) {
+            super(writer.column, writer.name);
+            this.writer = writer;
+            this.remaining = failAt;
+        }
+
+        @Override
+        public void write(ResultSet rs, Pipe ring) throws SQLException, IOException {
+            if (--remaining == 0) {
+                throw new SQLException("FailingWriter: failed on purpose");
+            }
+            writer.write(rs, ring);
+        }
+    }
+
+    @Test
+    public void testENCODING_lookupFailed() throws Exception {
+        Connection conn = getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT Id, Status FROM ENCODINGData WHERE Status = ? AND Id <= ? ORDER BY Id");
+            try {
+                Column[] columns = Column.columns(stmt.getMetaData());
+                GraphManager gm = new GraphManager();
+                Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(lookupRequestXML))));
+                Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+                new LookupRequests(gm, requests, new String[] { "RequestId", "Status", "MaxId" }, new Object[][] {
+                    { 100L, "OPEN", 10 },
+                    { 101L, "NONE", 40 },
+                    { 102L, "DONE", 6 }
+                });
+                // the Id of the second row fails
+                new LookupStage(gm, stmt, requests, "Lookup", "RequestId", responses) {
+                    @Override
+                    protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+                        ColumnWriter writer = super.buildUserColumnWriter(column, valueLoc, isNullLoc);
+                        return (column.index == 1) ? new FailingWriter(writer, 2) : writer;
+                    }
+                };
+                List<Object> result = runTest(gm, new UserDumper(gm, responses, new LookupDecoder(columns)));
+                // the first row and the abandoned second row of the failed request,
+                // then the requests after it are answered as usual
+                assertEquals(21, result.size());
+                assertArrayEquals(new Object[] { 100L, 2, "OPEN" }, result.subList(0, 3).toArray());
+                assertEquals(100L, result.get(3));
+                Object[] after = {
+                    "Failed", 100L, 1,
+                    "Done", 101L, 0,
+                    102L, 3, "DONE", 102L, 6, "DONE", "Done", 102L, 2
+                };
+                assertArrayEquals(after, result.subList(6, 21).toArray());
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_batchLookup() throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id IN " + BatchLookupStage.IN_LIST + " ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(LookupRequests.KEY_REQUEST_XML))));
+            Column[] columns;
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                columns = Column.columns(stmt.getMetaData());
+            } finally {
+                stmt.close();
+            }
+            Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+            // a missing key, a key asked for twice and more requests than one batch holds
+            long[] requestIds = { 200, 201, 202, 203, 204, 205 };
+            int[] ids = { 5, 7, 99, 5, 12, 10 };
+            Object[][] values = new Object[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                values[i] = new Object[] { requestIds[i], ids[i] };
+            }
+            new LookupRequests(gm, requests, new String[] { "RequestId", "Id" }, values);
+            BatchLookupStage stage = new BatchLookupStage(gm, conn, sql, "Id", requests, "Lookup", "RequestId", "Id", responses);
+            stage.setMaxBatch(4);
+            stage.setWindowMicros(1000);
+            List<Object> result = runTest(gm, new UserDumper(gm, responses, new LookupDecoder(columns)));
+
+            // batches may split anywhere, so check each request on its own
+            Map<Long, List<Object>> rows = new HashMap<Long, List<Object>>();
+            Map<Long, Integer> done = new HashMap<Long, Integer>();
+            for (int i = 0; i < result.size(); ) {
+                if (TemplateGenerator.DONE_TEMPLATE_NAME.equals(result.get(i))) {
+                    assertNull(done.put((Long) result.get(i + 1), (Integer) result.get(i + 2)));
+                    i += 3;
+                } else {
+                    Long requestId = (Long) result.get(i);
+                    assertNull("row after Done", done.get(requestId));
+                    if (!rows.containsKey(requestId)) {
+                        rows.put(requestId, new ArrayList<Object>());
+                    }
+                    rows.get(requestId).add(result.get(i + 1));
+                    rows.get(requestId).add(result.get(i + 2));
+                    i += 3;
+                }
+            }
+            assertEquals(ids.length, done.size());
+            for (int i = 0; i < ids.length; i++) {
+                List<Object> found = rows.get(requestIds[i]);
+                if (ids[i] > 40) {
+                    assertNull(found);
+                    assertEquals(Integer.valueOf(0), done.get(requestIds[i]));
+                } else {
+                    int row = ids[i] - 1;
+                    assertArrayEquals(new Object[] { ids[i], (row % 10 == 9) ? null : encodingStatus[row % 3] }, found.toArray());
+                    assertEquals(Integer.valueOf(1), done.get(requestIds[i]));
+                }
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_batchLookupFailed() throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id IN " + BatchLookupStage.IN_LIST + " ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(LookupRequests.KEY_REQUEST_XML))));
+            Column[] columns;
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                columns = Column.columns(stmt.getMetaData());
+            } finally {
+                stmt.close();
+            }
+            Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+            new LookupRequests(gm, requests, new String[] { "RequestId", "Id" }, new Object[][] {
+                { 300L, 5 },
+                { 301L, 7 },
+                { 302L, 12 },
+                { 303L, 10 },
+                { 304L, 14 }
+            });
+            // the Id of the second row fails; the window holds the first four in one
+            // batch, the last one goes in a batch of its own after the failure
+            BatchLookupStage stage = new BatchLookupStage(gm, conn, sql, "Id", requests, "Lookup", "RequestId", "Id", responses) {
+                @Override
+                protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+                    ColumnWriter writer = super.buildUserColumnWriter(column, valueLoc, isNullLoc);
+                    return (column.index == 1) ? new FailingWriter(writer, 2) : writer;
+                }
+            };
+            stage.setMaxBatch(4);
+            stage.setWindowMicros(TimeUnit.SECONDS.toMicros(10));
+            LookupDecoder decoder = new LookupDecoder(columns);
+            List<Object> result = runTest(gm, new UserDumper(gm, responses, decoder));
+
+            assertArrayEquals(new Object[] { 5, encodingStatus[1], "Failed", 300L, 1 }, decoder.request(result, 300L).toArray());
+            List<Object> abandoned = decoder.request(result, 301L);
+            assertArrayEquals(new Object[] { "Failed", 301L, 0 }, abandoned.subList(abandoned.size() - 3, abandoned.size()).toArray());
+            assertArrayEquals(new Object[] { "Failed", 302L, 0 }, decoder.request(result, 302L).toArray());
+            assertArrayEquals(new Object[] { "Failed", 303L, 0 }, decoder.request(result, 303L).toArray());
+            assertArrayEquals(new Object[] { 14, encodingStatus[1], "Done", 304L, 1 }, decoder.request(result, 304L).toArray());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testENCODING_batchLookupTextKey() throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Status IN " + BatchLookupStage.IN_LIST;
+        Connection conn = getConnection();
+        try {
+            GraphManager gm = new GraphManager();
+            Pipe requests = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.buildFROM(lookupRequestXML))));
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                Column[] columns = Column.columns(stmt.getMetaData());
+                Pipe responses = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(TemplateGenerator.lookupFROM(columns))));
+                // matching text in Java would ignore the database's collation
+                new BatchLookupStage(gm, conn, sql, "Status", requests, "Lookup", "RequestId", "Status", responses);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private List<Object> runCachedTest(ResultCache cache, int maxId) throws Exception {
+        return runCachedTest(cache, maxId, 0);
+    }
+
+    /**
+     * Row mode query for Ids up to maxId through the cache: the source only runs
+     * on a miss, and fails at row failAt unless that is 0.
+     */
+    private List<Object> runCachedTest(ResultCache cache, int maxId, final int failAt) throws Exception {
+        String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id <= ? ORDER BY Id";
+        Connection conn = getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                stmt.setInt(1, maxId);
+                Column[] columns = Column.columns(stmt.getMetaData());
+                FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(columns);
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                GraphManager gm = new GraphManager();
+                String key = ResultCache.key(sql, maxId);
+                ResultCache.Entry hit = cache.get(key);
+                if (hit == null) {
+                    Pipe results = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                    H2Stage source = new H2Stage(gm, stmt, results) {
+                        @Override
+                        protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+                            ColumnWriter writer = super.buildUserColumnWriter(column, valueLoc, isNullLoc);
+                            return (failAt > 0 && column.index == 1) ? new FailingWriter(writer, failAt) : writer;
+                        }
+                    };
+                    new ResultCacheStage(gm, cache, key, source, results, output);
+                } else {
+                    new ResultCacheStage(gm, hit, output);
+                }
+                return runTest(gm, new UserDumper(gm, output, new RowDecoder(columns)));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_cached() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 0);
+        List<Object> miss = runCachedTest(cache, 10);
+        assertEquals(20, miss.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, miss.get(2 * i));
+            assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], miss.get(2 * i + 1));
+        }
+        assertNotNull(cache.get(ResultCache.key("SELECT Id, Status FROM ENCODINGData WHERE Id <= ? ORDER BY Id", 10)));
+        // the replay gives the same rows, other parameters are another result
+        assertArrayEquals(miss.toArray(), runCachedTest(cache, 10).toArray());
+        assertEquals(8, runCachedTest(cache, 4).size());
+
+        // a result larger than the cache is only passed through
+        ResultCache small = new ResultCache(64, 0);
+        assertEquals(80, runCachedTest(small, 40).size());
+        assertEquals(0, small.size());
+    }
+
+    @Test
+    public void testENCODING_cachedFailed() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 0);
+        String key = ResultCache.key("SELECT Id, Status FROM ENCODINGData WHERE Id <= ? ORDER BY Id", 10);
+        // the source fails on the sixth row, after five have been passed through
+        List<Object> failed = runCachedTest(cache, 10, 6);
+        assertEquals(10, failed.size());
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+
+        // the next run executes the query again and stores the whole result
+        assertEquals(20, runCachedTest(cache, 10).size());
+        assertNotNull(cache.get(key));
+    }
+
+    @Test
+    public void testENCODING_singleFlight() throws Exception {
+        final String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id <= ? ORDER BY Id";
+        final Connection conn = getConnection();
+        try {
+            Column[] columns;
+            PreparedStatement meta = conn.prepareStatement(sql);
+            try {
+                columns = Column.columns(meta.getMetaData());
+            } finally {
+                meta.close();
+            }
+            FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(columns);
+            final List<Integer> executed = new ArrayList<Integer>();
+            SingleFlight flights = new SingleFlight();
+            GraphManager gm = new GraphManager();
+            int[] maxIds = new int[] {10, 10, 10, 4};
+            List<UserDumper> dumpers = new ArrayList<UserDumper>();
+            for (final int maxId : maxIds) {
+                Pipe results = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                flights.subscribe(gm, ResultCache.key(sql, maxId), results, output, new SingleFlight.SourceFactory() {
+                    @Override
+                    public JdbcSourceStage create(GraphManager gm, Pipe ring) throws SQLException {
+                        executed.add(maxId);
+                        PreparedStatement stmt = conn.prepareStatement(sql);
+                        stmt.setInt(1, maxId);
+                        return new H2Stage(gm, stmt, ring);
+                    }
+                });
+                dumpers.add(new UserDumper(gm, output, new RowDecoder(columns)));
+            }
+            // one execution per distinct key
+            assertArrayEquals(new Object[] {10, 4}, executed.toArray());
+            assertEquals(2, flights.inFlight());
+
+            StageScheduler scheduler = new ThreadPerStageScheduler(gm);
+            scheduler.startup();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            assertEquals(0, flights.inFlight());
+
+            List<Object> leader = dumpers.get(0).result();
+            assertEquals(20, leader.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, leader.get(2 * i));
+                assertEquals((i % 10 == 9) ? null : encodingStatus[i % 3], leader.get(2 * i + 1));
+            }
+            assertArrayEquals(leader.toArray(), dumpers.get(1).result().toArray());
+            assertArrayEquals(leader.toArray(), dumpers.get(2).result().toArray());
+            assertEquals(8, dumpers.get(3).result().size());
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Subscribes a leader and a follower to the rows up to maxId, the leader's
+     * source failing at row failAt unless that is 0, and runs them to the end.
+     */
+    private SingleFlightStage[] runSingleFlightTest(SingleFlight flights, final int maxId, final int failAt, List<UserDumper> dumpers) throws Exception {
+        final String sql = "SELECT Id, Status FROM ENCODINGData WHERE Id <= ? ORDER BY Id";
+        final Connection conn = getConnection();
+        try {
+            Column[] columns;
+            PreparedStatement meta = conn.prepareStatement(sql);
+            try {
+                columns = Column.columns(meta.getMetaData());
+            } finally {
+                meta.close();
+            }
+            FieldReferenceOffsetManager rowFROM = TemplateGenerator.rowFROM(columns);
+            GraphManager gm = new GraphManager();
+            SingleFlightStage[] stages = new SingleFlightStage[2];
+            for (int i = 0; i < stages.length; i++) {
+                Pipe results = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(rowFROM)));
+                stages[i] = flights.subscribe(gm, ResultCache.key(sql, maxId), results, output, new SingleFlight.SourceFactory() {
+                    @Override
+                    public JdbcSourceStage create(GraphManager gm, Pipe ring) throws SQLException {
+                        PreparedStatement stmt = conn.prepareStatement(sql);
+                        stmt.setInt(1, maxId);
+                        return new H2Stage(gm, stmt, ring) {
+                            @Override
+                            protected ColumnWriter buildUserColumnWriter(Column column, int valueLoc, int isNullLoc) throws SQLException {
+                                ColumnWriter writer = super.buildUserColumnWriter(column, valueLoc, isNullLoc);
+                                return (failAt > 0 && column.index == 1) ? new FailingWriter(writer, failAt) : writer;
+                            }
+                        };
+                    }
+                });
+                dumpers.add(new UserDumper(gm, output, new RowDecoder(columns)));
+            }
+            assertTrue(stages[0].isLeader());
+            assertFalse(stages[1].isLeader());
+
+            StageScheduler scheduler = new ThreadPerStageScheduler(gm);
+            scheduler.startup();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            assertEquals(0, flights.inFlight());
+            return stages;
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testENCODING_singleFlightFailed() throws Exception {
+        SingleFlight flights = new SingleFlight();
+        List<UserDumper> dumpers = new ArrayList<UserDumper>();
+        // the source fails on the sixth row
+        SingleFlightStage[] stages = runSingleFlightTest(flights, 10, 6, dumpers);
+        assertFalse(stages[0].isComplete());
+        assertFalse(stages[1].isComplete());
+        assertEquals(10, dumpers.get(0).result().size());
+        assertTrue(dumpers.get(1).result().size() <= 10);
+
+        // the failed flight is gone, the next subscribers run the query again
+        dumpers.clear();
+        stages = runSingleFlightTest(flights, 10, 0, dumpers);
+        assertTrue(stages[0].isComplete());
+        assertTrue(stages[1].isComplete());
+        assertEquals(20, dumpers.get(0).result().size());
+        assertArrayEquals(dumpers.get(0).result().toArray(), dumpers.get(1).result().toArray());
+    }
+
+    @Test
+    public void testENCODING_singleFlightBounded() throws Exception {
+        // far less than the 40 rows: replayed fragments are dropped, a follower
+        // that falls behind by the whole recording is cut off
+        SingleFlight flights = new SingleFlight(256);
+        List<UserDumper> dumpers = new ArrayList<UserDumper>();
+        SingleFlightStage[] stages = runSingleFlightTest(flights, 40, 0, dumpers);
+        assertTrue(stages[0].isComplete());
+        List<Object> leader = dumpers.get(0).result();
+        List<Object> follower = dumpers.get(1).result();
+        assertEquals(80, leader.size());
+        if (stages[1].isComplete()) {
+            assertArrayEquals(leader.toArray(), follower.toArray());
+        } else {
+            assertArrayEquals(leader.subList(0, follower.size()).toArray(), follower.toArray());
+        }
+    }
+
+    private static void setupPOLL(Connection conn) throws SQLException {
+        // rows are added while a polling stage runs
+        executeSQL(conn, "CREATE TABLE POLLData (Id INT AUTO_INCREMENT PRIMARY KEY, Name VARCHAR(10));");
+        for (int i = 0; i < 3; i++) {
+            executeSQL(conn, "INSERT INTO POLLData (Name) VALUES ('Row" + i + "');");
+        }
+    }
+
+    private static void waitForRows(UserDumper dumper, int rows) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (dumper.result().size() < rows && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static String readWatermark(String path) throws Exception {
+        File file = new File(path);
+        return file.exists() ? Files.readAllLines(file.toPath(), Charset.forName("UTF-8")).get(0) : null;
+    }
+
+    private static void waitForWatermark(String path, String mark) throws Exception {
+        // the watermark is stored once the dumper has released the rows
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (!mark.equals(readWatermark(path)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Polls POLLData until rows Ids have been sent, adding newRows rows once the
+     * first poll is through, and returns the Ids that were sent.
+     */
+    private List<Object> runPollTest(int rows, int newRows) throws Exception {
+        Connection conn = getConnection();
+        try {
+            Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
+            GraphManager gm = new GraphManager();
+            H2Stage stage = new H2Stage(gm, conn, "SELECT Id FROM POLLData WHERE Id > ? ORDER BY Id", false, false, output);
+            stage.setPolling(new Watermark("Id", new File(watermarkFile), "0"), 10);
+            MetaDumper dumper = new MetaDumper(gm, output);
+            StageScheduler scheduler = new ThreadPerStageScheduler(gm);
+            scheduler.startup();
+            waitForRows(dumper, rows - newRows);
+            for (int i = 0; i < newRows; i++) {
+                executeSQL(conn, "INSERT INTO POLLData (Name) VALUES ('New" + i + "');");
+            }
+            waitForRows(dumper, rows);
+            waitForWatermark(watermarkFile, String.valueOf(dumper.result().get(rows - 1)));
+            stage.stop();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            return dumper.result();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testPOLL() throws Exception {
+        // the first run sends the existing rows and the ones added while it polls
+        List<Object> result = runPollTest(5, 2);
+        assertEquals(5, result.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, result.get(i));
+        }
+        assertEquals("5", readWatermark(watermarkFile));
+
+        // a restart resumes after the stored watermark
+        result = runPollTest(1, 1);
+        assertEquals(1, result.size());
+        assertEquals(6, result.get(0));
+    }
+
+    private static void setupCLOB(Connection conn) throws SQLException {
+        // like VARCHAR but for large values, java.sql.Clob or java.io.Reader
+        executeSQL(conn, "CREATE TABLE CLOBData (Field CLOB NOT NULL, FieldNullable CLOB);");
+        executeSQL(conn, "INSERT INTO CLOBData (Field, FieldNullable) VALUES ('Bob', NULL);");
+        executeSQL(conn, "INSERT INTO CLOBData (Field, FieldNullable) VALUES ('Fred', 'Alice" + unicodeTwoHeartsGlyph + "');");
+        // use setCharacterStream() instead?
+    }
+
+    @Test
+    public void testCLOB() throws Exception {
+        List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM CLOBData", false, false);
+        assertEquals(4, result.size());
+        assertEquals("Bob", result.get(0));
+        assertNull(result.get(1));
         assertEquals("Fred", result.get(2));
         assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(3));
     }
@@ -854,6 +2445,21 @@ public class H2Test {
         assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(7));
     }
 
+    @Test
+    public void testCLOB_chunked() throws Exception {
+        // 2 chars per chunk, the surrogate pair in the glyph must not be split
+        List<Object> result = runLobTest("SELECT Field, FieldNullable FROM CLOBData", 6);
+        assertEquals(8, result.size());
+        assertEquals("FIELD", result.get(0));
+        assertEquals("Bob", result.get(1));
+        assertEquals("FIELDNULLABLE", result.get(2));
+        assertNull(result.get(3));
+        assertEquals("FIELD", result.get(4));
+        assertEquals("Fred", result.get(5));
+        assertEquals("FIELDNULLABLE", result.get(6));
+        assertEquals("Alice" + unicodeTwoHeartsGlyph, result.get(7));
+    }
+
     private static void setupUUID(Connection conn) throws SQLException {
         // universally unique identifier (128 bits), ResultSet.getObject()
         // returns a java.util.UUID, but SQL type BINARY
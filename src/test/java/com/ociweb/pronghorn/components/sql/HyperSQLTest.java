@@ -15,6 +15,7 @@ import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
@@ -26,6 +27,7 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.ociweb.pronghorn.components.sql.DBUtil.FetchPolicy;
 import com.ociweb.pronghorn.components.sql.DBUtil.MetaDumper;
 import com.ociweb.pronghorn.components.sql.HyperSQLComponent.HyperSQLStage;
 import com.ociweb.pronghorn.pipe.MessageSchemaDynamic;
@@ -100,9 +102,9 @@ public class HyperSQLTest {
         try {
             Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
             GraphManager gm = new GraphManager();
-            HyperSQLStage stage = new HyperSQLStage(conn, sql, emitFieldNames, emitRowMarkers, output);
+            new HyperSQLStage(gm, conn, sql, emitFieldNames, emitRowMarkers, output);
             MetaDumper dumper = new MetaDumper(gm, output);
-            return runTest(stage, dumper);
+            return runTest(gm, dumper);
         } finally {
             conn.close();
         }
@@ -112,9 +114,9 @@ public class HyperSQLTest {
         // System.out.println("runMetaTest(): '" + stmt.toString() + "' " + emitFieldNames + " " + emitRowMarkers);
         Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
         GraphManager gm = new GraphManager();
-        HyperSQLStage stage = new HyperSQLStage(stmt, emitFieldNames, emitRowMarkers, output);
+        new HyperSQLStage(gm, stmt, emitFieldNames, emitRowMarkers, output);
         MetaDumper dumper = new MetaDumper(gm, output);
-        return runTest(stage, dumper);
+        return runTest(gm, dumper);
     }
 
     private static void setupINTEGER(Connection conn) throws SQLException {
@@ -133,6 +135,33 @@ public class HyperSQLTest {
         assertEquals(2, result.get(3));
     }
 
+    @Test
+    public void testINTEGER_fetchPolicy() throws Exception {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = getConnection();
+            // one row per round trip, the cursor must still deliver every row
+            stmt = FetchPolicy.HSQLDB.withFetchSize(1).prepare(conn, "SELECT Field, FieldNullable FROM INTEGERData");
+            assertEquals(ResultSet.TYPE_FORWARD_ONLY, stmt.getResultSetType());
+            assertEquals(ResultSet.CONCUR_READ_ONLY, stmt.getResultSetConcurrency());
+            assertEquals(1, stmt.getFetchSize());
+            List<Object> result = runMetaTest(stmt, false, false);
+            assertEquals(4, result.size());
+            assertEquals(0, result.get(0));
+            assertNull(result.get(1));
+            assertEquals(1, result.get(2));
+            assertEquals(2, result.get(3));
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
     @Test
     public void testINTEGER_rowmarkers() throws Exception {
         List<Object> result = runMetaTest("SELECT Field, FieldNullable FROM INTEGERData", false, true);
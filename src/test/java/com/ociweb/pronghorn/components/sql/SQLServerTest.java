@@ -304,9 +304,9 @@ public class SQLServerTest {
         try {
             Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
             GraphManager gm = new GraphManager();
-            SQLServerStage stage = new SQLServerStage(conn, sql, emitFieldNames, emitRowMarkers, output);
+            new SQLServerStage(gm, conn, sql, emitFieldNames, emitRowMarkers, output);
             MetaDumper dumper = new MetaDumper(gm, output);
-            return runTest(stage, dumper);
+            return runTest(gm, dumper);
         } finally {
             conn.close();
         }
@@ -316,9 +316,9 @@ public class SQLServerTest {
         // System.out.println("runMetaTest(): '" + stmt.toString() + "' " + emitFieldNames + " " + emitRowMarkers);
         Pipe output = new Pipe(new PipeConfig((byte) 10, (byte) 24, null, new MessageSchemaDynamic(metaFROM)));
         GraphManager gm = new GraphManager();
-        SQLServerStage stage = new SQLServerStage(stmt, emitFieldNames, emitRowMarkers, output);
+        new SQLServerStage(gm, stmt, emitFieldNames, emitRowMarkers, output);
         MetaDumper dumper = new MetaDumper(gm, output);
-        return runTest(stage, dumper);
+        return runTest(gm, dumper);
     }
 
     private static void setupINT(Connection conn) throws SQLException {